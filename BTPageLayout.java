@@ -0,0 +1,727 @@
+package btree;
+
+import java.io.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTPageLayout works directly on the bytes of a BTSortedPage. A sorted page keeps its slot directory dense
+ * and in key order, slot i at DPFIXED + i * SIZE_OF_SLOT holding the record length followed by its offset,
+ * and its records packed against the end of the page. Values are big-endian as written by Convert, but are
+ * read and written in place so that moving records creates no entry objects or streams.
+ *
+ * An array page of an integer index has the same header but no slot directory. Slot i holds the int key
+ * itself, and the rest of the record, which is equally wide in every slot of the page, sits width * (i + 1)
+ * bytes from the end of the page, so that keys and records form two parallel arrays. A leaf record then
+ * takes twelve bytes with its key, where a slotted page needs twelve for the record and four for its slot.
+ * USED_PTR holds the negated width, which tells the layouts apart. On an array page slotOffset is where the
+ * key is and slotLength is the width, so code that reads keys at slotOffset and counts slotLength +
+ * SIZE_OF_SLOT bytes per record works on both layouts. Files with RID-ordered duplicates keep slotted pages,
+ * as their separators carry a RID behind the key.
+ *
+ * A slotted page of a string index can keep a prefix shared by its keys in a trailer at the end of the page:
+ * the prefix bytes followed by their two byte length, with the records packed against the trailer. A key
+ * stored against it has PREFIXED set in its length, which then counts only the bytes behind the prefix, so
+ * that the key takes the part of its writeUTF form that follows the prefix. Keys without the flag are stored
+ * whole. compress sets the prefix to what the first and last key share, which every key in between shares
+ * as well, and is run when records have moved between pages. Neither the trailer nor the flag is known to
+ * BTLeafPage or BTFileScan, so a file sets FORMAT_PREFIX_KEYS when it uses them.
+ */
+final class BTPageLayout implements GlobalConst {
+
+	// set in the length of a key stored behind the prefix of its page, which keys stay far below
+	static final int PREFIXED = 0x8000;
+
+	private BTPageLayout() {
+	}
+
+	static int getShort(byte[] data, int pos) {
+		return (short) (((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff));
+	}
+
+	static void putShort(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 8);
+		data[pos + 1] = (byte) value;
+	}
+
+	static int getInt(byte[] data, int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8)
+				| (data[pos + 3] & 0xff);
+	}
+
+	static void putInt(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+
+	static int slotCount(byte[] data) {
+		return getShort(data, HFPage.SLOT_CNT);
+	}
+
+	static int slotLength(byte[] data, int slot) {
+		if (isArrayPage(data))
+			return width(data);
+		return getShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT);
+	}
+
+	static int slotOffset(byte[] data, int slot) {
+		if (isArrayPage(data))
+			return HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+		return getShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+	}
+
+	static void setSlot(byte[] data, int slot, int length, int offset) {
+		putShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT, length);
+		putShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2, offset);
+	}
+
+	/**
+	 * Offset right behind the record in slot, where the RID of a leaf record or the child of an index record
+	 * ends. On an array page the record there is what follows the key.
+	 */
+	static int recordEnd(byte[] data, int slot) {
+		if (isArrayPage(data))
+			return data.length - slot * width(data);
+		return slotOffset(data, slot) + slotLength(data, slot);
+	}
+
+	static boolean isArrayPage(byte[] data) {
+		return getShort(data, HFPage.USED_PTR) < 0;
+	}
+
+	private static int width(byte[] data) {
+		return -getShort(data, HFPage.USED_PTR);
+	}
+
+	/**
+	 * Makes the empty page held in data an array page whose records take width bytes besides their key.
+	 */
+	static void formatArrayPage(byte[] data, int width) {
+		putShort(data, HFPage.USED_PTR, -width);
+		setArrayBounds(data, 0);
+	}
+
+	static int freeSpace(byte[] data) {
+		return getShort(data, HFPage.FREE_SPACE);
+	}
+
+	/**
+	 * Bytes taken by records and their slots.
+	 */
+	static int usedSpace(byte[] data) {
+		return data.length - HFPage.DPFIXED - freeSpace(data);
+	}
+
+	/**
+	 * Whether less than half of the page is taken by records and slots.
+	 */
+	static boolean isUnderfull(byte[] data) {
+		return usedSpace(data) < (data.length - HFPage.DPFIXED) / 2;
+	}
+
+	/**
+	 * Number of bytes the key stored at off takes on the page: an integer key takes four bytes, a string key is
+	 * written by writeUTF and so starts with its own two byte length, which leaves out the page prefix when
+	 * the key is stored against it.
+	 */
+	static int keyLength(byte[] data, int off, int keyType) {
+		if (keyType == AttrType.attrInteger)
+			return 4;
+		return 2 + (getShort(data, off) & ~PREFIXED & 0xffff);
+	}
+
+	/**
+	 * Number of bytes the key stored at off takes in its writeUTF form, with the page prefix.
+	 */
+	static int wholeKeyLength(byte[] data, int off, int keyType) {
+		if (keyType == AttrType.attrInteger)
+			return 4;
+		return 2 + contentLength(data, off);
+	}
+
+	/**
+	 * The key stored at off in the form it has on a page without prefix.
+	 */
+	static byte[] keyBytes(byte[] data, int off, int keyType) {
+		byte[] key = new byte[wholeKeyLength(data, off, keyType)];
+		if (keyType == AttrType.attrInteger) {
+			System.arraycopy(data, off, key, 0, 4);
+			return key;
+		}
+		putShort(key, 0, key.length - 2);
+		copyContent(data, off, 0, key.length - 2, key, 2);
+		return key;
+	}
+
+	/**
+	 * Builds the KeyClass for the key stored at off.
+	 */
+	static KeyClass keyAt(byte[] data, int off, int keyType) throws IOException {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(getInt(data, off));
+		if (isPrefixed(data, off))
+			return new StringKey(
+					new DataInputStream(new ByteArrayInputStream(keyBytes(data, off, keyType))).readUTF());
+		return new StringKey(new DataInputStream(new ByteArrayInputStream(data, off, keyLength(data, off, keyType)))
+				.readUTF());
+	}
+
+	/**
+	 * Length of the record in slot with its key stored whole.
+	 */
+	static int wholeLength(byte[] data, int slot, int keyType) {
+		if (keyType == AttrType.attrInteger)
+			return slotLength(data, slot);
+		return encodedLength(data, slot, 0);
+	}
+
+	/**
+	 * Whether the string key at off is stored behind the prefix of its page.
+	 */
+	static boolean isPrefixed(byte[] data, int off) {
+		return (getShort(data, off) & PREFIXED) != 0;
+	}
+
+	/**
+	 * Length of the page prefix, which is only there when the page has a trailer. A page that holds a key
+	 * stored against the prefix always has one.
+	 */
+	static int prefixLength(byte[] data) {
+		return getShort(data, data.length - 2) & 0xffff;
+	}
+
+	/**
+	 * Offset of the page prefix.
+	 */
+	static int prefixOffset(byte[] data) {
+		return data.length - 2 - prefixLength(data);
+	}
+
+	/**
+	 * Number of bytes between the records and the end of the page, the prefix and its length or nothing.
+	 */
+	static int trailerLength(byte[] data) {
+		if (isArrayPage(data))
+			return 0;
+		int end = getShort(data, HFPage.USED_PTR);
+		for (int slot = slotCount(data) - 1; slot >= 0; slot--)
+			end += slotLength(data, slot);
+		return data.length - end;
+	}
+
+	/**
+	 * Number of bytes of the string key at off behind its two byte length, in its writeUTF form.
+	 */
+	static int contentLength(byte[] data, int off) {
+		int length = getShort(data, off) & 0xffff;
+		if ((length & PREFIXED) == 0)
+			return length;
+		return prefixLength(data) + (length & ~PREFIXED);
+	}
+
+	/**
+	 * Copies length bytes of the string key at off to dst at dstOff, starting with byte from behind the two
+	 * byte length of its writeUTF form.
+	 */
+	static void copyContent(byte[] data, int off, int from, int length, byte[] dst, int dstOff) {
+		if (!isPrefixed(data, off)) {
+			System.arraycopy(data, off + 2 + from, dst, dstOff, length);
+			return;
+		}
+		int prefixLength = prefixLength(data);
+		int fromPrefix = Math.max(0, Math.min(length, prefixLength - from));
+		if (fromPrefix > 0)
+			System.arraycopy(data, prefixOffset(data) + from, dst, dstOff, fromPrefix);
+		if (length > fromPrefix)
+			System.arraycopy(data, off + 2 + from + fromPrefix - prefixLength, dst, dstOff + fromPrefix,
+					length - fromPrefix);
+	}
+
+	/**
+	 * Byte i of the string key at off behind the two byte length of its writeUTF form.
+	 */
+	private static byte contentAt(byte[] data, int off, int i) {
+		if (!isPrefixed(data, off))
+			return data[off + 2 + i];
+		int prefixLength = prefixLength(data);
+		return i < prefixLength ? data[prefixOffset(data) + i] : data[off + 2 + i - prefixLength];
+	}
+
+	/**
+	 * Length of the page prefix of dst when the string key at off of src starts with it, otherwise 0, so that
+	 * the key is stored whole on dst.
+	 */
+	private static int prefixOn(byte[] src, int off, byte[] dst) {
+		if (trailerLength(dst) == 0)
+			return 0;
+		int prefixLength = prefixLength(dst);
+		if (contentLength(src, off) < prefixLength)
+			return 0;
+		int prefixOff = prefixOffset(dst);
+		for (int i = 0; i < prefixLength; i++)
+			if (contentAt(src, off, i) != dst[prefixOff + i])
+				return 0;
+		return prefixLength;
+	}
+
+	/**
+	 * Whether src and dst have the same trailer, so that records move between them as they are.
+	 */
+	private static boolean samePrefix(byte[] src, byte[] dst) {
+		int trailer = trailerLength(src);
+		if (trailer != trailerLength(dst))
+			return false;
+		for (int i = 1; i <= trailer; i++)
+			if (src[src.length - i] != dst[dst.length - i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Length of the record in slot of src once its key is stored against prefixLength bytes of prefix.
+	 */
+	private static int encodedLength(byte[] src, int slot, int prefixLength) {
+		int off = slotOffset(src, slot);
+		return slotLength(src, slot) - keyLength(src, off, AttrType.attrString) + 2 + contentLength(src, off)
+				- prefixLength;
+	}
+
+	/**
+	 * Writes the record in slot of src to dst at dstOff, its key stored against prefixLength bytes of prefix.
+	 */
+	private static void encodeRecord(byte[] src, int slot, int prefixLength, byte[] dst, int dstOff) {
+		int off = slotOffset(src, slot);
+		int suffix = contentLength(src, off) - prefixLength;
+		putShort(dst, dstOff, prefixLength > 0 ? PREFIXED | suffix : suffix);
+		copyContent(src, off, prefixLength, suffix, dst, dstOff + 2);
+		int key = keyLength(src, off, AttrType.attrString);
+		System.arraycopy(src, off + key, dst, dstOff + 2 + suffix, slotLength(src, slot) - key);
+	}
+
+	/**
+	 * First slot whose key is not less than key, found by binary search over the slot directory.
+	 */
+	static int lowerBound(byte[] data, BTSearchKey key) {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (key.compareTo(data, slotOffset(data, mid)) > 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * First slot whose key is greater than key.
+	 */
+	static int upperBound(byte[] data, BTSearchKey key) {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (key.compareTo(data, slotOffset(data, mid)) >= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Slot for a new separator key whose left neighbour is the child page leftPid, the page that was split:
+	 * right behind the record of leftPid, or slot 0 when leftPid is the left link. Among separators equal to key
+	 * only the child tells where that is. Falls back to upperBound when leftPid is not found next to key.
+	 */
+	static int slotBehindChild(byte[] data, BTSearchKey key, int leftPid) {
+		int hi = upperBound(data, key);
+		for (int slot = lowerBound(data, key) - 1; slot < hi; slot++)
+			if ((slot < 0 ? getInt(data, HFPage.PREV_PAGE) : childAt(data, slot)) == leftPid)
+				return slot + 1;
+		return hi;
+	}
+
+	/**
+	 * Child page of an index record, stored in its last four bytes.
+	 */
+	static int childAt(byte[] data, int slot) {
+		return getInt(data, recordEnd(data, slot) - 4);
+	}
+
+	/**
+	 * Whether the leaf record in slot points to rid. A RID is written as its slot number followed by its page
+	 * number in the last eight bytes of the record.
+	 */
+	static boolean ridMatches(byte[] data, int slot, RID rid) {
+		int end = recordEnd(data, slot);
+		return getInt(data, end - 8) == rid.slotNo && getInt(data, end - 4) == rid.pageNo.pid;
+	}
+
+	/**
+	 * The RID of the leaf record in slot as a BTSearchKey.ridValue.
+	 */
+	static long ridValueAt(byte[] data, int slot) {
+		int end = recordEnd(data, slot);
+		return BTSearchKey.ridValue(getInt(data, end - 4), getInt(data, end - 8));
+	}
+
+	/**
+	 * Builds the KeyDataEntry of slot in a page of type nodeType, as BT.getEntryFromBytes does for a slotted
+	 * page.
+	 */
+	static KeyDataEntry entryAt(byte[] data, int slot, int keyType, short nodeType) throws IOException {
+		KeyClass key = keyAt(data, slotOffset(data, slot), keyType);
+		if (nodeType == NodeType.INDEX)
+			return new KeyDataEntry(key, new PageId(childAt(data, slot)));
+		RID rid = new RID();
+		ridAt(data, slot, rid);
+		return new KeyDataEntry(key, rid);
+	}
+
+	static void ridAt(byte[] data, int slot, RID rid) {
+		int end = recordEnd(data, slot);
+		rid.slotNo = getInt(data, end - 8);
+		rid.pageNo = new PageId(getInt(data, end - 4));
+	}
+
+	/**
+	 * Whether a record of length bytes and its slot still fit on the page.
+	 */
+	static boolean hasRoom(byte[] data, int length) {
+		return freeSpace(data) >= length + HFPage.SIZE_OF_SLOT;
+	}
+
+	/**
+	 * Inserts the leaf record <key, rid> behind the entries with an equal key, as BTLeafPage.insertRecord does,
+	 * but without building the entry. A key that has a RID goes among the equal keys by it. The caller checks
+	 * hasRoom first. Returns the slot the record took.
+	 */
+	static int insertLeafRecord(byte[] data, BTSearchKey key, RID rid) {
+		return insertLeafRecord(data, key, null, rid);
+	}
+
+	/**
+	 * insertLeafRecord for a covering index, with payload between the key and the RID, where BT and BTLeafPage
+	 * skip it when they read the record. payload may be null.
+	 */
+	static int insertLeafRecord(byte[] data, BTSearchKey key, byte[] payload, RID rid) {
+		int payloadLength = payload == null ? 0 : payload.length;
+		int slot = upperBound(data, key);
+		int prefixLength = key.prefixOn(data);
+		openRecord(data, slot, key.length(prefixLength) + payloadLength + 8);
+		key.writeTo(data, slotOffset(data, slot), prefixLength);
+		int end = recordEnd(data, slot);
+		if (payloadLength > 0)
+			System.arraycopy(payload, 0, data, end - 8 - payloadLength, payloadLength);
+		putInt(data, end - 8, rid.slotNo);
+		putInt(data, end - 4, rid.pageNo.pid);
+		return slot;
+	}
+
+	/**
+	 * Inserts the index record <key, childPid>, with the RID of key behind the key when it has one, see
+	 * insertLeafRecord.
+	 */
+	static void insertIndexRecord(byte[] data, BTSearchKey key, int childPid) {
+		insertIndexRecord(data, upperBound(data, key), key, childPid);
+	}
+
+	/**
+	 * Inserts the index record <key, childPid> into slot, which has to keep the keys in order. Among separators
+	 * with an equal key only the caller knows which child comes first.
+	 */
+	static void insertIndexRecord(byte[] data, int slot, BTSearchKey key, int childPid) {
+		int prefixLength = key.prefixOn(data);
+		openRecord(data, slot, key.length(prefixLength) + key.ridLength() + 4);
+		int off = slotOffset(data, slot);
+		key.writeTo(data, off, prefixLength);
+		key.writeRidTo(data, off + key.length(prefixLength));
+		putInt(data, recordEnd(data, slot) - 4, childPid);
+	}
+
+	/**
+	 * Inserts the index record <key, count, childPid> of a file with order statistics, see countAt.
+	 */
+	static void insertCountedIndexRecord(byte[] data, BTSearchKey key, int count, int childPid) {
+		insertCountedIndexRecord(data, upperBound(data, key), key, count, childPid);
+	}
+
+	static void insertCountedIndexRecord(byte[] data, int slot, BTSearchKey key, int count, int childPid) {
+		int prefixLength = key.prefixOn(data);
+		openRecord(data, slot, key.length(prefixLength) + key.ridLength() + 8);
+		int off = slotOffset(data, slot);
+		key.writeTo(data, off, prefixLength);
+		key.writeRidTo(data, off + key.length(prefixLength));
+		int end = recordEnd(data, slot);
+		putInt(data, end - 8, count);
+		putInt(data, end - 4, childPid);
+	}
+
+	/**
+	 * Number of entries below the child of an index record in a file with order statistics. The count sits
+	 * between the key and the child page number, where BT.getEntryFromBytes does not look.
+	 */
+	static int countAt(byte[] data, int slot) {
+		return getInt(data, recordEnd(data, slot) - 8);
+	}
+
+	static void setCountAt(byte[] data, int slot, int count) {
+		putInt(data, recordEnd(data, slot) - 8, count);
+	}
+
+	/**
+	 * Sum of the counts of all index records of the page, which is everything below it but the left link.
+	 */
+	static int sumCounts(byte[] data) {
+		int sum = 0;
+		for (int slot = slotCount(data) - 1; slot >= 0; slot--)
+			sum += countAt(data, slot);
+		return sum;
+	}
+
+	/**
+	 * Makes room for a record of length bytes in slot, to be written between slotOffset and recordEnd of the
+	 * slot. An array page makes room for one of its width.
+	 */
+	private static void openRecord(byte[] data, int slot, int length) {
+		int count = slotCount(data);
+		int slotPos = HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+		System.arraycopy(data, slotPos, data, slotPos + HFPage.SIZE_OF_SLOT, (count - slot) * HFPage.SIZE_OF_SLOT);
+		if (isArrayPage(data)) {
+			// the records from slot on move one width towards the start of the page
+			int width = width(data);
+			System.arraycopy(data, data.length - count * width, data, data.length - (count + 1) * width,
+					(count - slot) * width);
+			setArrayBounds(data, count + 1);
+			return;
+		}
+		int usedPtr = getShort(data, HFPage.USED_PTR) - length;
+		setSlot(data, slot, length, usedPtr);
+		setBounds(data, count + 1, usedPtr);
+	}
+
+	/**
+	 * Stores the slot count and the start of the record area, and the free space that follows from them.
+	 */
+	private static void setBounds(byte[] data, int slotCnt, int usedPtr) {
+		putShort(data, HFPage.SLOT_CNT, slotCnt);
+		putShort(data, HFPage.USED_PTR, usedPtr);
+		putShort(data, HFPage.FREE_SPACE, usedPtr - HFPage.DPFIXED - slotCnt * HFPage.SIZE_OF_SLOT);
+	}
+
+	/**
+	 * setBounds for an array page, whose USED_PTR keeps the width.
+	 */
+	private static void setArrayBounds(byte[] data, int slotCnt) {
+		putShort(data, HFPage.SLOT_CNT, slotCnt);
+		putShort(data, HFPage.FREE_SPACE,
+				data.length - HFPage.DPFIXED - slotCnt * (HFPage.SIZE_OF_SLOT + width(data)));
+	}
+
+	/**
+	 * Returns the first slot of the upper half of a page, chosen so that both halves hold about the same
+	 * number of bytes and neither of them is empty.
+	 */
+	static int splitSlot(byte[] data) {
+		return splitSlot(data, 0.5);
+	}
+
+	/**
+	 * Returns the first slot of the upper part of a page, chosen so that the lower part holds about fraction
+	 * of its bytes and neither part is empty.
+	 */
+	static int splitSlot(byte[] data, double fraction) {
+		int count = slotCount(data);
+		int lower = (int) (usedSpace(data) * fraction);
+		int used = 0;
+		for (int slot = 0; slot < count - 1; slot++) {
+			used += slotLength(data, slot) + HFPage.SIZE_OF_SLOT;
+			if (used >= lower)
+				return slot + 1;
+		}
+		return count - 1;
+	}
+
+	/**
+	 * Whether a record of length bytes and its slot fit on the part of the page it goes to when the page is
+	 * split at slot and the record sorts into position pos: the upper part when pos is past slot or nothing
+	 * moves, the lower part otherwise.
+	 */
+	static boolean splitFits(byte[] data, int slot, int pos, int length) {
+		int lower = 0;
+		for (int i = 0; i < slot; i++)
+			lower += slotLength(data, i) + HFPage.SIZE_OF_SLOT;
+		// the upper part goes to a new page that takes the trailer along, see moveRecords
+		int part = slot < pos || slot == slotCount(data) ? usedSpace(data) - lower : lower + trailerLength(data);
+		return part + length + HFPage.SIZE_OF_SLOT <= data.length - HFPage.DPFIXED;
+	}
+
+	/**
+	 * Moves the records in slots [from, to) of src into dst, where they take the slots starting at dstPos.
+	 * The caller guarantees that dst has room, see movedSpace, and that key order is kept. src is compacted
+	 * afterwards. An empty dst takes the trailer of src, so that a split copies records as they are; into a
+	 * page with another prefix the keys are stored again, against its prefix where they start with it.
+	 */
+	static void moveRecords(byte[] src, int from, int to, byte[] dst, int dstPos, byte[] scratch) {
+		int count = to - from;
+		int dstCount = slotCount(dst);
+		if (dstCount == 0 && !isArrayPage(dst)) {
+			int trailer = trailerLength(src);
+			System.arraycopy(src, src.length - trailer, dst, dst.length - trailer, trailer);
+			setBounds(dst, 0, dst.length - trailer);
+		}
+		int slotPos = HFPage.DPFIXED + dstPos * HFPage.SIZE_OF_SLOT;
+		// open a gap in the destination slot directory
+		System.arraycopy(dst, slotPos, dst, slotPos + count * HFPage.SIZE_OF_SLOT,
+				(dstCount - dstPos) * HFPage.SIZE_OF_SLOT);
+		if (isArrayPage(dst)) {
+			// and in the records, then copy keys and records across one by one
+			int width = width(dst);
+			System.arraycopy(dst, dst.length - dstCount * width, dst, dst.length - (dstCount + count) * width,
+					(dstCount - dstPos) * width);
+			for (int i = 0; i < count; i++) {
+				System.arraycopy(src, slotOffset(src, from + i), dst, slotPos + i * HFPage.SIZE_OF_SLOT,
+						HFPage.SIZE_OF_SLOT);
+				System.arraycopy(src, recordEnd(src, from + i) - width, dst, recordEnd(dst, dstPos + i) - width,
+						width);
+			}
+			setArrayBounds(dst, dstCount + count);
+			removeRecords(src, from, to, scratch);
+			return;
+		}
+		int usedPtr = getShort(dst, HFPage.USED_PTR);
+		boolean same = samePrefix(src, dst);
+		for (int i = 0; i < count; i++) {
+			int length;
+			if (same) {
+				length = slotLength(src, from + i);
+				usedPtr -= length;
+				System.arraycopy(src, slotOffset(src, from + i), dst, usedPtr, length);
+			} else {
+				int prefixLength = prefixOn(src, slotOffset(src, from + i), dst);
+				length = encodedLength(src, from + i, prefixLength);
+				usedPtr -= length;
+				encodeRecord(src, from + i, prefixLength, dst, usedPtr);
+			}
+			setSlot(dst, dstPos + i, length, usedPtr);
+		}
+		setBounds(dst, dstCount + count, usedPtr);
+		removeRecords(src, from, to, scratch);
+	}
+
+	/**
+	 * Number of bytes the records in slots [from, to) of src and their slots take once moveRecords has moved
+	 * them into dst, with the trailer an empty dst takes along.
+	 */
+	static int movedSpace(byte[] src, int from, int to, byte[] dst) {
+		int space = (to - from) * HFPage.SIZE_OF_SLOT;
+		if (isArrayPage(dst))
+			return space + (to - from) * width(dst);
+		boolean empty = slotCount(dst) == 0;
+		boolean same = empty || samePrefix(src, dst);
+		if (empty)
+			space += trailerLength(src) - trailerLength(dst);
+		for (int slot = from; slot < to; slot++)
+			space += same ? slotLength(src, slot)
+					: encodedLength(src, slot, prefixOn(src, slotOffset(src, slot), dst));
+		return space;
+	}
+
+	/**
+	 * Appends the record in slot of src to dst, behind the last slot of dst, its key stored against the
+	 * prefix of dst where it starts with it. The caller guarantees that dst has room for the key without
+	 * prefix and that key order is kept.
+	 */
+	static void appendRecord(byte[] src, int slot, byte[] dst) {
+		int dstSlot = slotCount(dst);
+		if (!isArrayPage(dst) && !samePrefix(src, dst)) {
+			int prefixLength = prefixOn(src, slotOffset(src, slot), dst);
+			openRecord(dst, dstSlot, encodedLength(src, slot, prefixLength));
+			encodeRecord(src, slot, prefixLength, dst, slotOffset(dst, dstSlot));
+			return;
+		}
+		int length = slotLength(src, slot);
+		openRecord(dst, dstSlot, length);
+		if (isArrayPage(dst))
+			System.arraycopy(src, slotOffset(src, slot), dst, slotOffset(dst, dstSlot), HFPage.SIZE_OF_SLOT);
+		System.arraycopy(src, recordEnd(src, slot) - length, dst, recordEnd(dst, dstSlot) - length, length);
+	}
+
+	/**
+	 * Drops the records in slots [from, to) and packs the remaining ones against the trailer again, through
+	 * scratch, which has to be at least one page long.
+	 */
+	static void removeRecords(byte[] data, int from, int to, byte[] scratch) {
+		int count = slotCount(data);
+		if (isArrayPage(data)) {
+			// the keys and records behind the gap close it, without going through scratch
+			int width = width(data);
+			System.arraycopy(data, slotOffset(data, to), data, slotOffset(data, from),
+					(count - to) * HFPage.SIZE_OF_SLOT);
+			System.arraycopy(data, data.length - count * width, data, data.length - (count - to + from) * width,
+					(count - to) * width);
+			setArrayBounds(data, count - to + from);
+			return;
+		}
+		int end = data.length - trailerLength(data);
+		int usedPtr = end;
+		int kept = 0;
+		for (int slot = 0; slot < count; slot++) {
+			if (slot >= from && slot < to)
+				continue;
+			int length = slotLength(data, slot);
+			usedPtr -= length;
+			System.arraycopy(data, slotOffset(data, slot), scratch, usedPtr, length);
+			// kept <= slot, so the slots still to be read are not overwritten
+			setSlot(data, kept++, length, usedPtr);
+		}
+		System.arraycopy(scratch, usedPtr, data, usedPtr, end - usedPtr);
+		setBounds(data, kept, usedPtr);
+	}
+
+	/**
+	 * Stores the keys of a slotted string page against the prefix its first and last key share, when that
+	 * makes the page smaller, and returns whether it did. The page is rebuilt through scratch, which has to be
+	 * at least one page long.
+	 */
+	static boolean compress(byte[] data, byte[] scratch) {
+		int count = slotCount(data);
+		if (count < 2 || isArrayPage(data))
+			return false;
+		int first = slotOffset(data, 0);
+		int last = slotOffset(data, count - 1);
+		int prefixLength = 0;
+		int shared = Math.min(contentLength(data, first), contentLength(data, last));
+		while (prefixLength < shared && contentAt(data, first, prefixLength) == contentAt(data, last, prefixLength))
+			prefixLength++;
+		int trailer = prefixLength > 0 ? prefixLength + 2 : 0;
+		int before = trailerLength(data);
+		int after = trailer;
+		for (int slot = 0; slot < count; slot++) {
+			before += slotLength(data, slot);
+			after += encodedLength(data, slot, prefixLength);
+		}
+		if (after >= before)
+			return false;
+		// the records go to scratch in slot order, so the slots still to be read and the old prefix stay put
+		int usedPtr = data.length - trailer;
+		if (prefixLength > 0) {
+			copyContent(data, first, 0, prefixLength, scratch, usedPtr);
+			putShort(scratch, data.length - 2, prefixLength);
+		}
+		for (int slot = 0; slot < count; slot++) {
+			int length = encodedLength(data, slot, prefixLength);
+			usedPtr -= length;
+			encodeRecord(data, slot, prefixLength, scratch, usedPtr);
+			setSlot(data, slot, length, usedPtr);
+		}
+		System.arraycopy(scratch, usedPtr, data, usedPtr, data.length - usedPtr);
+		setBounds(data, count, usedPtr);
+		return true;
+	}
+}
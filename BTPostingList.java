@@ -0,0 +1,301 @@
+package btree;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTPostingList works on the leaf records of a file with posting lists, see BTreeFile.enablePostingLists, where
+ * every key has a single leaf record that holds all of its RIDs in ascending BTSearchKey.ridValue order. The
+ * smallest RID sits where every leaf record keeps its RID, in the last eight bytes, so that lookup, splits,
+ * prefix compression and compact handle the record like any other. The other RIDs go between the key and that
+ * RID, where a covering index keeps its payload:
+ * - nothing when the key has a single RID,
+ * - INLINE followed by the difference of every further RID to the one before it, seven bits a byte with the
+ *   high bit set on every byte but the last, as long as the record takes no more than MAX_RECORD bytes,
+ * - CHAINED followed by the first page of an overflow chain and the number of RIDs on it otherwise.
+ * An overflow page keeps the number of its RIDs in SLOT_CNT and the next page of the chain in NEXT_PAGE of the
+ * HFPage header, and its RIDs in ascending order from DPFIXED on, eight bytes each. The pages of a chain hold
+ * one ascending run between them and none of them is empty.
+ */
+final class BTPostingList implements GlobalConst {
+
+	static final int INLINE = 0;
+	static final int CHAINED = 1;
+	// bytes a CHAINED list takes behind the key
+	static final int CHAINED_LENGTH = 9;
+	// most bytes a record takes with its RIDs inline, a quarter of a page as for a covering index, so that a
+	// split always has room for it
+	static final int MAX_RECORD = MINIBASE_PAGESIZE / 4;
+	// most RIDs a chain keeps before it moves back into its record, see BTreeFile.foldChain
+	static final int FOLD_COUNT = MAX_RECORD / 16;
+	// RIDs an overflow page holds
+	static final int PAGE_CAPACITY = (MINIBASE_PAGESIZE - HFPage.DPFIXED) / 8;
+
+	private BTPostingList() {
+	}
+
+	/**
+	 * Offset of the list of the leaf record in slot, right behind its key.
+	 */
+	static int listOffset(byte[] data, int slot, int keyType) {
+		int off = BTPageLayout.slotOffset(data, slot);
+		return off + BTPageLayout.keyLength(data, off, keyType);
+	}
+
+	/**
+	 * Number of bytes the list of the leaf record in slot takes, 0 for a key with a single RID.
+	 */
+	static int listLength(byte[] data, int slot, int keyType) {
+		return BTPageLayout.recordEnd(data, slot) - 8 - listOffset(data, slot, keyType);
+	}
+
+	static boolean isChained(byte[] data, int slot, int keyType) {
+		return listLength(data, slot, keyType) > 0 && data[listOffset(data, slot, keyType)] == CHAINED;
+	}
+
+	/**
+	 * Number of RIDs of the leaf record in slot.
+	 */
+	static int size(byte[] data, int slot, int keyType) {
+		int off = listOffset(data, slot, keyType);
+		int end = off + listLength(data, slot, keyType);
+		if (off == end)
+			return 1;
+		if (data[off] == CHAINED)
+			return 1 + chainCount(data, off);
+		// one RID ends with every byte that has the high bit clear
+		int count = 1;
+		for (int pos = off + 1; pos < end; pos++)
+			if (data[pos] >= 0)
+				count++;
+		return count;
+	}
+
+	/**
+	 * Decodes the RIDs of the leaf record in slot, which keeps them inline, into values and returns how many
+	 * there are. values has to have room for size of them.
+	 */
+	static int decodeInline(byte[] data, int slot, int keyType, long[] values) {
+		int off = listOffset(data, slot, keyType);
+		int end = off + listLength(data, slot, keyType);
+		long value = BTPageLayout.ridValueAt(data, slot);
+		values[0] = value;
+		int count = 1;
+		long delta = 0;
+		int shift = 0;
+		for (int pos = off + 1; pos < end; pos++) {
+			delta |= (long) (data[pos] & 0x7f) << shift;
+			shift += 7;
+			if (data[pos] >= 0) {
+				value += delta;
+				values[count++] = value;
+				delta = 0;
+				shift = 0;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The list that keeps values [from, to) inline behind values[from - 1], empty when from is to.
+	 */
+	static byte[] inlineList(long[] values, int from, int to) {
+		if (from == to)
+			return new byte[0];
+		int length = 1;
+		for (int i = from; i < to; i++)
+			length += varintLength(values[i] - values[i - 1]);
+		byte[] list = new byte[length];
+		list[0] = INLINE;
+		int pos = 1;
+		for (int i = from; i < to; i++) {
+			long delta = values[i] - values[i - 1];
+			while (delta >= 0x80) {
+				list[pos++] = (byte) (delta | 0x80);
+				delta >>>= 7;
+			}
+			list[pos++] = (byte) delta;
+		}
+		return list;
+	}
+
+	private static int varintLength(long value) {
+		int length = 1;
+		while (value >= 0x80) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * The list of a record whose RIDs but the first are on the overflow chain starting at head, count of them.
+	 */
+	static byte[] chainedList(int head, int count) {
+		byte[] list = new byte[CHAINED_LENGTH];
+		list[0] = CHAINED;
+		BTPageLayout.putInt(list, 1, head);
+		BTPageLayout.putInt(list, 5, count);
+		return list;
+	}
+
+	/**
+	 * First page of the chain of the CHAINED list at off.
+	 */
+	static int chainHead(byte[] data, int off) {
+		return BTPageLayout.getInt(data, off + 1);
+	}
+
+	static void setChainHead(byte[] data, int off, int head) {
+		BTPageLayout.putInt(data, off + 1, head);
+	}
+
+	/**
+	 * Number of RIDs on the chain of the CHAINED list at off.
+	 */
+	static int chainCount(byte[] data, int off) {
+		return BTPageLayout.getInt(data, off + 5);
+	}
+
+	static void setChainCount(byte[] data, int off, int count) {
+		BTPageLayout.putInt(data, off + 5, count);
+	}
+
+	/**
+	 * Makes value, a ridValue, the RID in the last eight bytes of the leaf record in slot.
+	 */
+	static void setFirst(byte[] data, int slot, long value) {
+		int end = BTPageLayout.recordEnd(data, slot);
+		BTPageLayout.putInt(data, end - 8, (int) value);
+		BTPageLayout.putInt(data, end - 4, (int) (value >>> 32));
+	}
+
+	static RID rid(long value) {
+		return new RID(new PageId((int) (value >>> 32)), (int) value);
+	}
+
+	/**
+	 * First slot of values [0, count) that is not less than value.
+	 */
+	static int lowerBound(long[] values, int count, long value) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * First slot of values [0, count) that is greater than value.
+	 */
+	static int upperBound(long[] values, int count, long value) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] <= value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Makes the page held in data an empty overflow page followed by the page next.
+	 */
+	static void formatOverflowPage(byte[] data, int next) {
+		BTPageLayout.putShort(data, HFPage.SLOT_CNT, 0);
+		BTPageLayout.putInt(data, HFPage.NEXT_PAGE, next);
+	}
+
+	static int pageCount(byte[] data) {
+		return BTPageLayout.slotCount(data);
+	}
+
+	static long valueAt(byte[] data, int i) {
+		int pos = HFPage.DPFIXED + i * 8;
+		return ((long) BTPageLayout.getInt(data, pos) << 32) | (BTPageLayout.getInt(data, pos + 4) & 0xffffffffL);
+	}
+
+	private static void putValue(byte[] data, int i, long value) {
+		int pos = HFPage.DPFIXED + i * 8;
+		BTPageLayout.putInt(data, pos, (int) (value >>> 32));
+		BTPageLayout.putInt(data, pos + 4, (int) value);
+	}
+
+	/**
+	 * Appends values [from, to) behind the RIDs of the overflow page held in data, which has room for them.
+	 */
+	static void appendValues(byte[] data, long[] values, int from, int to) {
+		int count = pageCount(data);
+		for (int i = from; i < to; i++)
+			putValue(data, count++, values[i]);
+		BTPageLayout.putShort(data, HFPage.SLOT_CNT, count);
+	}
+
+	/**
+	 * First position on the overflow page held in data whose RID is not less than value.
+	 */
+	static int lowerBound(byte[] data, long value) {
+		int lo = 0;
+		int hi = pageCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (valueAt(data, mid) < value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * First position on the overflow page held in data whose RID is greater than value.
+	 */
+	static int upperBound(byte[] data, long value) {
+		int lo = 0;
+		int hi = pageCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (valueAt(data, mid) <= value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Puts value into position pos of the overflow page held in data, which is not full.
+	 */
+	static void insertValue(byte[] data, int pos, long value) {
+		int count = pageCount(data);
+		int at = HFPage.DPFIXED + pos * 8;
+		System.arraycopy(data, at, data, at + 8, (count - pos) * 8);
+		putValue(data, pos, value);
+		BTPageLayout.putShort(data, HFPage.SLOT_CNT, count + 1);
+	}
+
+	static void removeValue(byte[] data, int pos) {
+		int count = pageCount(data);
+		int at = HFPage.DPFIXED + pos * 8;
+		System.arraycopy(data, at + 8, data, at, (count - pos - 1) * 8);
+		BTPageLayout.putShort(data, HFPage.SLOT_CNT, count - 1);
+	}
+
+	/**
+	 * Moves the RIDs from position from on of the overflow page src behind those of the empty page dst.
+	 */
+	static void moveValues(byte[] src, int from, byte[] dst) {
+		int count = pageCount(src);
+		System.arraycopy(src, HFPage.DPFIXED + from * 8, dst, HFPage.DPFIXED, (count - from) * 8);
+		BTPageLayout.putShort(dst, HFPage.SLOT_CNT, count - from);
+		BTPageLayout.putShort(src, HFPage.SLOT_CNT, from);
+	}
+}
@@ -0,0 +1,261 @@
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * BTSearchKey holds a search key in the form it has on a page, so that it can be compared with the keys of a
+ * sorted page where they are stored instead of building a KeyDataEntry for every slot. String keys compare
+ * on their writeUTF bytes, which order the same way as String.compareTo for every character but \u0000, see
+ * keyCompare. A key stored behind the prefix of its page, see BTPageLayout, compares and hashes as the whole
+ * key without being put together.
+ * In a file with RID-ordered duplicates a key can take a RID along, which then orders it among the entries
+ * and separators with an equal key: those store the RID right behind the key, slot number first.
+ */
+final class BTSearchKey {
+
+	final int keyType;
+	private final int intKey;
+	// writeUTF form of a string key, starting with its two byte length
+	private final byte[] utf;
+	// page number in the upper and slot number in the lower half, NO_RID for a key alone
+	private final long rid;
+
+	private static final long NO_RID = -1;
+	private static final long FNV_BASIS = 0xcbf29ce484222325L;
+
+	BTSearchKey(KeyClass key, int keyType) throws KeyNotMatchException, IOException {
+		this(key, keyType, null);
+	}
+
+	BTSearchKey(KeyClass key, int keyType, RID rid) throws KeyNotMatchException, IOException {
+		this.keyType = keyType;
+		this.rid = rid == null ? NO_RID : ridValue(rid.pageNo.pid, rid.slotNo);
+		if (keyType == AttrType.attrInteger && key instanceof IntegerKey) {
+			intKey = ((IntegerKey) key).getKey().intValue();
+			utf = null;
+		} else if (keyType == AttrType.attrString && key instanceof StringKey) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new DataOutputStream(out).writeUTF(((StringKey) key).getKey());
+			intKey = 0;
+			utf = out.toByteArray();
+		} else {
+			throw new KeyNotMatchException(null, "key does not match the key type of the index");
+		}
+	}
+
+	/**
+	 * Number of bytes the key takes on a page.
+	 */
+	int length() {
+		return utf != null ? utf.length : 4;
+	}
+
+	/**
+	 * Number of bytes the key takes on a page when it is stored against prefixLength bytes of page prefix.
+	 */
+	int length(int prefixLength) {
+		return length() - prefixLength;
+	}
+
+	/**
+	 * Length of the prefix of the page held in data when this key starts with it, otherwise 0, so that the
+	 * key is stored whole.
+	 */
+	int prefixOn(byte[] data) {
+		if (utf == null || BTPageLayout.trailerLength(data) == 0)
+			return 0;
+		int prefixLength = BTPageLayout.prefixLength(data);
+		if (utf.length - 2 < prefixLength)
+			return 0;
+		int prefixOff = BTPageLayout.prefixOffset(data);
+		for (int i = 0; i < prefixLength; i++)
+			if (utf[2 + i] != data[prefixOff + i])
+				return 0;
+		return prefixLength;
+	}
+
+	boolean hasRid() {
+		return rid != NO_RID;
+	}
+
+	/**
+	 * Number of bytes the RID takes behind the key on a page, 0 without one.
+	 */
+	int ridLength() {
+		return hasRid() ? 8 : 0;
+	}
+
+	/**
+	 * Writes the RID at off, nothing without one.
+	 */
+	void writeRidTo(byte[] data, int off) {
+		if (!hasRid())
+			return;
+		BTPageLayout.putInt(data, off, (int) rid);
+		BTPageLayout.putInt(data, off + 4, (int) (rid >>> 32));
+	}
+
+	static long ridValue(int pageNo, int slotNo) {
+		return ((long) pageNo << 32) | (slotNo & 0xffffffffL);
+	}
+
+	void writeTo(byte[] data, int off) {
+		writeTo(data, off, 0);
+	}
+
+	/**
+	 * Writes the key at off, stored against prefixLength bytes of page prefix when that is not 0.
+	 */
+	void writeTo(byte[] data, int off, int prefixLength) {
+		if (utf == null) {
+			BTPageLayout.putInt(data, off, intKey);
+		} else if (prefixLength == 0) {
+			System.arraycopy(utf, 0, data, off, utf.length);
+		} else {
+			BTPageLayout.putShort(data, off, BTPageLayout.PREFIXED | (utf.length - 2 - prefixLength));
+			System.arraycopy(utf, 2 + prefixLength, data, off + 2, utf.length - 2 - prefixLength);
+		}
+	}
+
+	/**
+	 * The key as it is stored on a page.
+	 */
+	byte[] bytes() {
+		if (utf != null)
+			return utf.clone();
+		byte[] bytes = new byte[4];
+		BTPageLayout.putInt(bytes, 0, intKey);
+		return bytes;
+	}
+
+	/**
+	 * 64 bit hash of the key, the same one hashAt gives for the key as it is stored on a page.
+	 */
+	long hash() {
+		if (keyType == AttrType.attrInteger)
+			return mix(intKey);
+		return mix(fnv(utf, 2, utf.length));
+	}
+
+	static long hashAt(byte[] data, int off, int keyType) {
+		if (keyType == AttrType.attrInteger)
+			return mix(BTPageLayout.getInt(data, off));
+		long hash = FNV_BASIS;
+		if (BTPageLayout.isPrefixed(data, off)) {
+			int prefixOff = BTPageLayout.prefixOffset(data);
+			hash = fnv(hash, data, prefixOff, prefixOff + BTPageLayout.prefixLength(data));
+		}
+		return mix(fnv(hash, data, off + 2, off + BTPageLayout.keyLength(data, off, keyType)));
+	}
+
+	private static long fnv(byte[] bytes, int from, int to) {
+		return fnv(FNV_BASIS, bytes, from, to);
+	}
+
+	// FNV-1a over bytes [from, to), going on from hash
+	private static long fnv(long hash, byte[] bytes, int from, int to) {
+		for (int i = from; i < to; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	// final mixing step of MurmurHash3, so that every input bit reaches every output bit
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Compares this key with the key stored at off, with the sign convention of compareTo. When the keys are
+	 * equal and this key has a RID, the RIDs decide.
+	 */
+	int compareTo(byte[] data, int off) {
+		int cmp = compareKeyTo(data, off);
+		if (cmp != 0 || !hasRid())
+			return cmp;
+		int ridOff = off + BTPageLayout.keyLength(data, off, keyType);
+		return compareRid(ridValue(BTPageLayout.getInt(data, ridOff + 4), BTPageLayout.getInt(data, ridOff)));
+	}
+
+	/**
+	 * Compares the RID of this key with stored, a ridValue.
+	 */
+	int compareRid(long stored) {
+		return rid < stored ? -1 : (rid == stored ? 0 : 1);
+	}
+
+	/**
+	 * Compares this key with the key stored at off, leaving out the RID.
+	 */
+	int compareKeyTo(byte[] data, int off) {
+		if (keyType == AttrType.attrInteger) {
+			int stored = BTPageLayout.getInt(data, off);
+			return intKey < stored ? -1 : (intKey == stored ? 0 : 1);
+		}
+		int length = utf.length - 2;
+		int storedLength = BTPageLayout.getShort(data, off) & 0xffff;
+		// bytes of this key already compared with the page prefix
+		int done = 0;
+		if ((storedLength & BTPageLayout.PREFIXED) != 0) {
+			done = BTPageLayout.prefixLength(data);
+			storedLength &= ~BTPageLayout.PREFIXED;
+			int prefixOff = BTPageLayout.prefixOffset(data);
+			int common = Math.min(length, done);
+			for (int i = 0; i < common; i++) {
+				int diff = (utf[2 + i] & 0xff) - (data[prefixOff + i] & 0xff);
+				if (diff != 0)
+					return diff;
+			}
+			if (length <= done)
+				return length - done - storedLength;
+		}
+		int common = Math.min(length - done, storedLength);
+		for (int i = 0; i < common; i++) {
+			int diff = (utf[2 + done + i] & 0xff) - (data[off + 2 + i] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return length - done - storedLength;
+	}
+
+	/**
+	 * Compares two keys in the order of their page form, the one every page of the file is sorted in. For
+	 * string keys that is the order of their writeUTF bytes, where \u0000 takes two bytes and so sorts between
+	 * \u007f and \u0080 instead of before everything as in BT.keyCompare. Other keys compare as in
+	 * BT.keyCompare.
+	 */
+	static int keyCompare(KeyClass a, KeyClass b) throws KeyNotMatchException {
+		if (!(a instanceof StringKey) || !(b instanceof StringKey))
+			return BT.keyCompare(a, b);
+		String x = ((StringKey) a).getKey();
+		String y = ((StringKey) b).getKey();
+		int common = Math.min(x.length(), y.length());
+		for (int i = 0; i < common; i++) {
+			char c = x.charAt(i);
+			char d = y.charAt(i);
+			if (c != d)
+				return utfOrder(c) - utfOrder(d);
+		}
+		return x.length() - y.length();
+	}
+
+	// position of c in the order of modified UTF-8, which encodes every char on its own
+	private static int utfOrder(char c) {
+		return c == 0 ? 0x80 : c < 0x80 ? c : c + 1;
+	}
+
+	/**
+	 * Compares this integer key with stored.
+	 */
+	int compareTo(int stored) {
+		return intKey < stored ? -1 : (intKey == stored ? 0 : 1);
+	}
+}
@@ -0,0 +1,329 @@
+package btree;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTreeBench times the main paths of BTreeFile and prints, for every workload, the operations per second, the
+ * pages pinned, unpinned, unpinned dirty, read from and written to the database file per operation, the bytes
+ * and forces of the write buffer log per operation and the write amplification. Every trial runs on a fresh
+ * Minibase database. The first -warmup trials of a workload, 1 by default, only warm up the JIT and are not
+ * reported, the -trials trials after them, 3 by default, are averaged, and sd% is the sample standard
+ * deviation of their ops/s in percent of the average, so that a difference can be told from noise.
+ *
+ * java btree.BTreeBench [-keys n] [-type int|string] [-pool frames] [-store bufmgr|channel] [-policy clock|2q]
+ * [-split half|fill|append|adaptive] [-buffer changes] [-warmup w] [-trials t] [-workloads name,...]
+ *
+ * The workloads are seqInsert, randomInsert and zipfInsert (inserts in key order, in random order and with
+ * Zipf distributed duplicates), bufferedInsert (randomInsert through a write buffer of -buffer changes, 10000
+ * by default, merged before the clock stops), groupInsert (bufferedInsert under WRITE_BUFFER_GROUP_COMMIT),
+ * splitHeavy (inserts in descending order, which split the leftmost leaf over and over), naiveDelete (deleting
+ * every entry in random order under NAIVE_DELETE), probe (new_scan(k, k) on random keys), lookup, shortScan
+ * (100 entries from a random key) and longScan (the whole index). -pool sets the frames of the buffer pool, or
+ * of the page store with -store channel, and -policy the replacement policy of the channel store, the buffer
+ * pool always replacing by clock. The page size is MINIBASE_PAGESIZE, which btreelib.jar is compiled
+ * with. -split sets the split policy of the index, fill splitting 90/10. The pages the store still holds dirty
+ * when a workload is done are written before the clock stops. Disk reads and writes are the pages read from
+ * and written to the database file, both by the buffer manager, which a trial counts through a DB of its own
+ * since BufMgr keeps no count, and by the channel store. The write amplification wamp is the bytes written to the
+ * database file and the log for every byte of the entries inserted, key and RID, which bufferedInsert and
+ * groupInsert compare against randomInsert.
+ */
+public class BTreeBench {
+
+	private static final String[] WORKLOADS = { "seqInsert", "randomInsert", "zipfInsert", "bufferedInsert",
+			"groupInsert", "splitHeavy", "naiveDelete", "probe", "lookup", "shortScan", "longScan" };
+
+	private int keys = 100000;
+	private boolean stringKeys;
+	private int pool = 1000;
+	private String store = "bufmgr";
+	private String policy = "clock";
+	private String split = "half";
+	private int buffer = 10000;
+	private int warmup = 1;
+	private int trials = 3;
+	private String[] workloads = WORKLOADS;
+	private final Random random = new Random(4331);
+
+	public static void main(String[] args) throws Exception {
+		BTreeBench bench = new BTreeBench();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-keys"))
+				bench.keys = Integer.parseInt(value);
+			else if (args[i].equals("-type"))
+				bench.stringKeys = value.equals("string");
+			else if (args[i].equals("-pool"))
+				bench.pool = Integer.parseInt(value);
+			else if (args[i].equals("-store"))
+				bench.store = value;
+			else if (args[i].equals("-policy"))
+				bench.policy = value;
+			else if (args[i].equals("-split"))
+				bench.split = value;
+			else if (args[i].equals("-buffer"))
+				bench.buffer = Integer.parseInt(value);
+			else if (args[i].equals("-warmup"))
+				bench.warmup = Math.max(0, Integer.parseInt(value));
+			else if (args[i].equals("-trials"))
+				bench.trials = Math.max(1, Integer.parseInt(value));
+			else if (args[i].equals("-workloads"))
+				bench.workloads = value.split(",");
+			else
+				throw new IllegalArgumentException("unknown option " + args[i]);
+		}
+		bench.run();
+	}
+
+	private void run() throws Exception {
+		System.out.println("keys=" + keys + " type=" + (stringKeys ? "string" : "int") + " pool=" + pool + " store="
+				+ store + " policy=" + policy + " split=" + split + " pagesize=" + GlobalConst.MINIBASE_PAGESIZE
+				+ " warmup=" + warmup + " trials=" + trials);
+		System.out.printf("%-14s %10s %6s %9s %9s %9s %9s %9s %9s %9s %9s%n", "workload", "ops/s", "sd%",
+				"pins/op", "unpins/op", "dirty/op", "reads/op", "writes/op", "logB/op", "syncs/op", "wamp");
+		for (String workload : workloads) {
+			for (int trial = 0; trial < warmup; trial++)
+				trial(workload, trial);
+			double[][] results = new double[trials][];
+			for (int trial = 0; trial < trials; trial++)
+				results[trial] = trial(workload, warmup + trial);
+			double[] totals = new double[results[0].length];
+			for (double[] result : results)
+				for (int i = 0; i < totals.length; i++)
+					totals[i] += result[i] / trials;
+			double squares = 0;
+			for (double[] result : results)
+				squares += (result[0] - totals[0]) * (result[0] - totals[0]);
+			double deviation = trials > 1 ? Math.sqrt(squares / (trials - 1)) : 0;
+			System.out.printf("%-14s %10.0f %6.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.1f %9.3f %9.2f%n", workload,
+					totals[0], 100 * deviation / totals[0], totals[1], totals[2], totals[3], totals[4], totals[5],
+					totals[6], totals[7], totals[8]);
+		}
+	}
+
+	/**
+	 * The database file of a trial. It counts the pages the buffer manager reads from it and writes to it,
+	 * which BufMgr does not keep track of.
+	 */
+	private static final class CountingDB extends DB {
+		long reads;
+		long writes;
+
+		public void read_page(PageId pageno, Page apage)
+				throws InvalidPageNumberException, FileIOException, IOException {
+			reads++;
+			super.read_page(pageno, apage);
+		}
+
+		public void write_page(PageId pageno, Page apage)
+				throws InvalidPageNumberException, FileIOException, IOException {
+			writes++;
+			super.write_page(pageno, apage);
+		}
+	}
+
+	/**
+	 * Runs workload once on a new database and returns ops/s, then pins, unpins, dirty unpins, disk reads, disk
+	 * writes, log bytes and log forces per operation, then the write amplification.
+	 */
+	private double[] trial(String workload, int trial) throws Exception {
+		String dbpath = System.getProperty("java.io.tmpdir") + File.separator + "btbench." + workload + "." + trial
+				+ ".minibase-db";
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, keys / 4 + 5000, store.equals("channel") ? 50 : pool, "Clock");
+		// the buffer manager goes on through a DB that counts its reads and writes
+		DB created = SystemDefs.JavabaseDB;
+		CountingDB disk = new CountingDB();
+		disk.openDB(dbpath);
+		SystemDefs.JavabaseDB = disk;
+		created.closeDB();
+		int deleteFashion = workload.equals("naiveDelete") ? DeleteFashion.NAIVE_DELETE : DeleteFashion.FULL_DELETE;
+		BTreeFile file = new BTreeFile("bench", stringKeys ? AttrType.attrString : AttrType.attrInteger,
+				stringKeys ? 20 : 4, deleteFashion, 0, store, pool, policy);
+		try {
+			file.setSplitPolicy(splitPolicy(), 0.9);
+			int[] order = permutation(keys);
+			boolean prebuilt = !workload.endsWith("Insert") && !workload.equals("splitHeavy");
+			if (prebuilt) {
+				for (int i = 0; i < keys; i++)
+					file.insert(key(order[i]), rid(order[i]));
+				order = permutation(keys);
+			}
+			file.flushPages();
+			long pins = file.getPinCount();
+			long unpins = file.getUnpinCount();
+			long dirty = file.getDirtyUnpinCount();
+			long reads = diskReads(file, disk);
+			long writes = diskWrites(file, disk);
+			long logBytes = file.getLogBytes();
+			long logSyncs = file.getLogSyncs();
+			long start = System.nanoTime();
+			int ops = run(file, workload, order);
+			// pages the store writes back later are part of the work
+			file.flushPages();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			reads = diskReads(file, disk) - reads;
+			writes = diskWrites(file, disk) - writes;
+			logBytes = file.getLogBytes() - logBytes;
+			// bytes written to the database file and the log for every byte of the entries, key and RID
+			double amplification = (writes * GlobalConst.MINIBASE_PAGESIZE + logBytes)
+					/ ((double) ops * entryBytes());
+			return new double[] { ops / seconds, (double) (file.getPinCount() - pins) / ops,
+					(double) (file.getUnpinCount() - unpins) / ops, (double) (file.getDirtyUnpinCount() - dirty) / ops,
+					(double) reads / ops, (double) writes / ops, (double) logBytes / ops,
+					(double) (file.getLogSyncs() - logSyncs) / ops, amplification };
+		} finally {
+			// closing the last file of the database closes the channel store as well
+			file.close();
+			new File(dbpath).delete();
+		}
+	}
+
+	/**
+	 * Pages read from the database file so far, by the buffer manager and by the channel store if there is one.
+	 */
+	private static long diskReads(BTreeFile file, CountingDB disk) {
+		return disk.reads + Math.max(0, file.getDiskReads());
+	}
+
+	private static long diskWrites(BTreeFile file, CountingDB disk) {
+		return disk.writes + Math.max(0, file.getDiskWrites());
+	}
+
+	private int run(BTreeFile file, String workload, int[] order) throws Exception {
+		if (workload.equals("seqInsert")) {
+			for (int i = 0; i < keys; i++)
+				file.insert(key(i), rid(i));
+			return keys;
+		}
+		if (workload.equals("randomInsert")) {
+			for (int i = 0; i < keys; i++)
+				file.insert(key(order[i]), rid(order[i]));
+			return keys;
+		}
+		if (workload.equals("bufferedInsert") || workload.equals("groupInsert")) {
+			int durability = workload.equals("groupInsert") ? BTreeFile.WRITE_BUFFER_GROUP_COMMIT
+					: BTreeFile.WRITE_BUFFER_SYNC;
+			file.enableWriteBuffer(System.getProperty("java.io.tmpdir") + File.separator + "btbench.log", buffer,
+					durability);
+			for (int i = 0; i < keys; i++)
+				file.insert(key(order[i]), rid(order[i]));
+			file.disableWriteBuffer();
+			return keys;
+		}
+		if (workload.equals("zipfInsert")) {
+			double[] cdf = zipf(keys, 0.99);
+			for (int i = 0; i < keys; i++) {
+				int k = Arrays.binarySearch(cdf, random.nextDouble());
+				file.insert(key(k < 0 ? Math.min(-k - 1, keys - 1) : k), rid(i));
+			}
+			return keys;
+		}
+		if (workload.equals("splitHeavy")) {
+			for (int i = keys - 1; i >= 0; i--)
+				file.insert(key(i), rid(i));
+			return keys;
+		}
+		if (workload.equals("naiveDelete")) {
+			for (int i = 0; i < keys; i++)
+				file.Delete(key(order[i]), rid(order[i]));
+			return keys;
+		}
+		if (workload.equals("probe")) {
+			for (int i = 0; i < keys; i++) {
+				KeyClass k = key(order[i]);
+				BTFileScan scan = file.new_scan(k, k);
+				scan.get_next();
+				scan.DestroyBTreeFileScan();
+			}
+			return keys;
+		}
+		if (workload.equals("lookup")) {
+			for (int i = 0; i < keys; i++)
+				file.lookup(key(order[i]));
+			return keys;
+		}
+		if (workload.equals("shortScan")) {
+			int scans = Math.max(1, keys / 100);
+			int entries = 0;
+			for (int i = 0; i < scans; i++) {
+				BTreeCursor cursor = file.openCursor(key(order[i]), null);
+				for (int n = 0; n < 100 && cursor.next(); n++)
+					entries++;
+				cursor.close();
+			}
+			return Math.max(1, entries);
+		}
+		if (workload.equals("longScan")) {
+			int entries = 0;
+			BTreeCursor cursor = file.openCursor(null, null);
+			while (cursor.next())
+				entries++;
+			cursor.close();
+			return Math.max(1, entries);
+		}
+		throw new IllegalArgumentException("unknown workload " + workload + ", one of "
+				+ new ArrayList<String>(Arrays.asList(WORKLOADS)));
+	}
+
+	private int splitPolicy() {
+		if (split.equals("fill"))
+			return BTreeFile.SPLIT_FILL;
+		if (split.equals("append"))
+			return BTreeFile.SPLIT_APPEND;
+		if (split.equals("adaptive"))
+			return BTreeFile.SPLIT_ADAPTIVE;
+		return BTreeFile.SPLIT_HALF;
+	}
+
+	private KeyClass key(int i) {
+		if (stringKeys)
+			return new StringKey(String.format("k%08d", i));
+		return new IntegerKey(i);
+	}
+
+	/**
+	 * Length of an entry as it is inserted: the key as stored on a leaf and the RID.
+	 */
+	private int entryBytes() {
+		return (stringKeys ? 2 + String.format("k%08d", 0).length() : 4) + 8;
+	}
+
+	private static RID rid(int i) {
+		return new RID(new PageId(i / 100), i % 100);
+	}
+
+	private int[] permutation(int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		return order;
+	}
+
+	/**
+	 * Cumulative distribution of key ranks 0 .. n - 1 under Zipf's law with exponent s.
+	 */
+	private static double[] zipf(int n, double s) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += 1 / Math.pow(i + 1, s);
+			cdf[i] = sum;
+		}
+		for (int i = 0; i < n; i++)
+			cdf[i] /= sum;
+		return cdf;
+	}
+}
@@ -0,0 +1,103 @@
+package btree;
+
+import java.util.Arrays;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTreeBloomFilter answers "is key possibly in the index" from a run of pages that the BTreeHeaderPage points
+ * to. The filter is blocked: a key hashes to one page and sets all of its bits inside that page, so adding or
+ * probing a key pins exactly one filter page and never an index or leaf page. The pages hold raw bits, they
+ * are not slotted pages.
+ */
+final class BTreeBloomFilter implements GlobalConst {
+
+	private final static int BITS_PER_PAGE = MINIBASE_PAGESIZE * 8;
+
+	private final BTreeFile bfile;
+	final int firstPage;
+	final int pages;
+	final int hashes;
+
+	BTreeBloomFilter(BTreeFile bfile, int firstPage, int pages, int hashes) {
+		this.bfile = bfile;
+		this.firstPage = firstPage;
+		this.pages = pages;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Allocates and clears a filter sized for expectedKeys keys at bitsPerKey bits each.
+	 */
+	static BTreeBloomFilter create(BTreeFile bfile, long expectedKeys, int bitsPerKey)
+			throws ConstructPageException, PinPageException, UnpinPageException {
+		int pages = (int) Math.max(1, (expectedKeys * bitsPerKey + BITS_PER_PAGE - 1) / BITS_PER_PAGE);
+		// k = ln 2 * m / n minimises the false positive rate
+		int hashes = Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * Math.log(2))));
+		Page page = new Page();
+		PageId first = bfile.newPage(page, pages);
+		BTreeBloomFilter filter = new BTreeBloomFilter(bfile, first.pid, pages, hashes);
+		// newPage leaves only the first page of the run pinned
+		bfile.unpinPage(first, false);
+		filter.clear();
+		return filter;
+	}
+
+	void clear() throws PinPageException, UnpinPageException {
+		for (int i = 0; i < pages; i++) {
+			PageId pageId = new PageId(firstPage + i);
+			Arrays.fill(bfile.pinPage(pageId).getpage(), (byte) 0);
+			bfile.unpinPage(pageId, true);
+		}
+	}
+
+	/**
+	 * Adds the key with the given BTSearchKey hash.
+	 */
+	void add(long hash) throws PinPageException, UnpinPageException {
+		PageId pageId = pageFor(hash);
+		byte[] bits = bfile.pinPage(pageId).getpage();
+		int h1 = (int) hash;
+		int h2 = (int) ((hash >>> 32) & 0xffff) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int bit = ((h1 + i * h2) & 0x7fffffff) % BITS_PER_PAGE;
+			bits[bit >>> 3] |= (byte) (1 << (bit & 7));
+		}
+		bfile.unpinPage(pageId, true);
+	}
+
+	/**
+	 * false means that the key with the given hash is certainly not in the index.
+	 */
+	boolean mightContain(long hash) throws PinPageException, UnpinPageException {
+		PageId pageId = pageFor(hash);
+		byte[] bits = bfile.pinPage(pageId).getpage();
+		int h1 = (int) hash;
+		int h2 = (int) ((hash >>> 32) & 0xffff) | 1;
+		boolean found = true;
+		for (int i = 0; i < hashes && found; i++) {
+			int bit = ((h1 + i * h2) & 0x7fffffff) % BITS_PER_PAGE;
+			found = (bits[bit >>> 3] & (1 << (bit & 7))) != 0;
+		}
+		bfile.unpinPage(pageId, false);
+		return found;
+	}
+
+	void free() throws FreePageException {
+		for (int i = 0; i < pages; i++)
+			bfile.freePage(new PageId(firstPage + i));
+	}
+
+	/**
+	 * Number of keys the filter was sized for.
+	 */
+	long capacity(int bitsPerKey) {
+		return (long) pages * BITS_PER_PAGE / bitsPerKey;
+	}
+
+	private PageId pageFor(long hash) {
+		// the top 16 bits pick the page, the lower 48 bits feed the two in-page hashes
+		return new PageId(firstPage + (int) ((hash >>> 48) % pages));
+	}
+}
@@ -0,0 +1,337 @@
+package btree;
+
+import java.io.IOException;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTreeCursor iterates over the entries of a BTreeFile between two keys without creating objects per entry.
+ * next moves the cursor to the next entry, and the accessors read the key and RID of that entry straight
+ * from the bytes of the leaf page, which stays pinned until the cursor moves past it or is closed. A cursor
+ * from openCursor runs in ascending key order along the next links of the leaves, one from new_scan_reverse
+ * in descending order along their prev links. A forward cursor of a file with a write buffer merges the
+ * buffered changes of its range into the entries of the leaves: buffered deletes hide the leaf entries they
+ * match, and buffered inserts come after the leaf entries with an equal key. The entries of a covering index
+ * carry their payload, which copyPayloadInto reads, so a scan that needs no other column stays off the heap
+ * file. In concurrent mode the cursor reads validated copies of its leaves instead and keeps none of them
+ * pinned, see BTreeFile.readCopy. In a file with posting lists the cursor returns every RID of a leaf record
+ * as an entry of its own, in ascending RID order, reading the overflow chain of the record when it has one.
+ */
+public final class BTreeCursor {
+
+	private final BTreeFile bfile;
+	private final int keyType;
+	// bounds of the scan, null when unbounded
+	private final BTSearchKey loKey;
+	private final BTSearchKey hiKey;
+	private final boolean reverse;
+	// whether leaf records hold posting lists, see BTreeFile.enablePostingLists
+	private final boolean postings;
+	// loads the leaves ahead of a forward cursor, null when read-ahead is off
+	private BTreeReadAhead readAhead;
+	// the pinned leaf, null once the cursor is exhausted or closed
+	private PageId pageId;
+	private byte[] data;
+	// whether data is a copy of the leaf rather than the pinned page, in concurrent mode
+	private boolean copied;
+	private int slot;
+	private int offset;
+	// buffered changes of the range, null without a write buffer, and the next one to merge
+	private BTreeWriteBuffer.Change[] changes;
+	private int change;
+	// copies of the current change returned so far, and deletes of each change still to apply
+	private int inserted;
+	private int[] deletes;
+	// whether slot holds a leaf entry that next has looked at but not returned yet
+	private boolean ahead;
+	// the current entry, on the leaf or in a change
+	private byte[] entry;
+	private int entryOffset;
+	private int entryEnd;
+	// RIDs of the current posting list when it has more than one, and the one of the current entry
+	private long[] rids = new long[2];
+	private int ridCount;
+	private int ridIndex;
+	// entries returned so far, and when the scan started for BTreeMetrics, 0 once it is recorded
+	private long entries;
+	private long scanStart;
+
+	/**
+	 * Starts a cursor at slot of the pinned leaf held in data, so that the first next moves to the entry after
+	 * slot in scan direction, or an exhausted one when pageId is null. slot may be one off either end of the
+	 * page.
+	 */
+	BTreeCursor(BTreeFile bfile, int keyType, BTSearchKey loKey, BTSearchKey hiKey, boolean reverse, PageId pageId,
+			byte[] data, int slot) {
+		this.bfile = bfile;
+		this.keyType = keyType;
+		this.loKey = loKey;
+		this.hiKey = hiKey;
+		this.reverse = reverse;
+		postings = bfile.hasPostingLists();
+		this.pageId = pageId;
+		this.data = data;
+		this.slot = slot;
+	}
+
+	void setReadAhead(BTreeReadAhead readAhead) {
+		this.readAhead = readAhead;
+	}
+
+	void setCopied() {
+		copied = true;
+	}
+
+	void setScanStart(long scanStart) {
+		this.scanStart = scanStart;
+	}
+
+	void setChanges(BTreeWriteBuffer.Change[] changes) {
+		this.changes = changes;
+		deletes = new int[changes.length];
+		for (int i = 0; i < changes.length; i++)
+			deletes[i] = changes[i].deletes;
+	}
+
+	/**
+	 * Moves to the next entry and returns whether there is one. The leaf is unpinned when the cursor runs
+	 * off the end of the range.
+	 */
+	public boolean next() throws PinPageException, UnpinPageException {
+		if (changes != null)
+			return merge();
+		if (pageId == null)
+			return false;
+		if (reverse)
+			return previous();
+		if (!step()) {
+			close();
+			return false;
+		}
+		entries++;
+		return true;
+	}
+
+	/**
+	 * next for a cursor with buffered changes. A leaf entry is returned unless a buffered delete of the same
+	 * entry is left to hide it, and the inserts of a change are returned once the leaves have moved past its
+	 * key.
+	 */
+	private boolean merge() throws PinPageException, UnpinPageException {
+		while (true) {
+			if (!ahead && pageId != null)
+				ahead = step();
+			if (change < changes.length) {
+				BTreeWriteBuffer.Change next = changes[change];
+				int cmp = ahead ? next.search.compareKeyTo(data, offset) : -1;
+				if (cmp < 0) {
+					if (inserted < next.inserts) {
+						inserted++;
+						entry = next.record;
+						entryOffset = 0;
+						entryEnd = next.record.length;
+						entries++;
+						return true;
+					}
+					change++;
+					inserted = 0;
+					continue;
+				}
+				if (cmp == 0 && deleted()) {
+					ahead = false;
+					continue;
+				}
+			}
+			if (!ahead) {
+				close();
+				return false;
+			}
+			ahead = false;
+			atLeaf();
+			entries++;
+			return true;
+		}
+	}
+
+	/**
+	 * Whether a buffered delete is left for the leaf entry at slot, which has the key of the current change,
+	 * and uses it up if so.
+	 */
+	private boolean deleted() {
+		for (int i = change; i < changes.length && changes[i].search.compareKeyTo(data, offset) == 0; i++) {
+			if (deletes[i] > 0 && changes[i].search.compareRid(BTPageLayout.ridValueAt(data, slot)) == 0) {
+				deletes[i]--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves to the next leaf entry of the range and makes it the current entry, or unpins the leaf and
+	 * returns false when there is none.
+	 */
+	private boolean step() throws PinPageException, UnpinPageException {
+		if (ridIndex + 1 < ridCount) {
+			ridIndex++;
+			return true;
+		}
+		slot++;
+		while (slot >= BTPageLayout.slotCount(data)) {
+			int next = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+			if (next == GlobalConst.INVALID_PAGE) {
+				release();
+				return false;
+			}
+			boolean resident = readAhead != null && readAhead.resident(next);
+			if (copied) {
+				pageId.pid = next;
+				bfile.readCopy(pageId, null, data, BTreePageStore.SCAN);
+			} else {
+				bfile.unpinPage(pageId);
+				pageId.pid = next;
+				data = bfile.pinPage(pageId, BTreePageStore.SCAN).getpage();
+			}
+			slot = 0;
+			if (readAhead != null)
+				readAhead.entered(next, BTPageLayout.getInt(data, HFPage.NEXT_PAGE), resident);
+		}
+		offset = BTPageLayout.slotOffset(data, slot);
+		if (hiKey != null && hiKey.compareTo(data, offset) < 0) {
+			release();
+			return false;
+		}
+		atLeaf();
+		return true;
+	}
+
+	/**
+	 * Makes the leaf entry at slot the current entry, with its first RID in scan direction when it holds a
+	 * posting list.
+	 */
+	private void atLeaf() throws PinPageException, UnpinPageException {
+		entry = data;
+		entryOffset = offset;
+		entryEnd = BTPageLayout.recordEnd(data, slot);
+		if (!postings)
+			return;
+		ridCount = BTPostingList.size(data, slot, keyType);
+		if (ridCount > 1)
+			rids = bfile.readPostings(data, slot, keyType, rids);
+		ridIndex = reverse ? ridCount - 1 : 0;
+	}
+
+	/**
+	 * next for a reverse cursor: steps back one slot, following prev links to the last slot of the leaf before.
+	 */
+	private boolean previous() throws PinPageException, UnpinPageException {
+		if (ridIndex > 0) {
+			ridIndex--;
+			entries++;
+			return true;
+		}
+		slot--;
+		while (slot < 0) {
+			int prev = BTPageLayout.getInt(data, HFPage.PREV_PAGE);
+			if (prev == GlobalConst.INVALID_PAGE) {
+				close();
+				return false;
+			}
+			bfile.unpinPage(pageId);
+			pageId.pid = prev;
+			data = bfile.pinPage(pageId, BTreePageStore.SCAN).getpage();
+			slot = BTPageLayout.slotCount(data) - 1;
+		}
+		offset = BTPageLayout.slotOffset(data, slot);
+		if (loKey != null && loKey.compareTo(data, offset) > 0) {
+			close();
+			return false;
+		}
+		atLeaf();
+		entries++;
+		return true;
+	}
+
+	/**
+	 * Key of the current entry of an integer index.
+	 */
+	public int intKey() {
+		return BTPageLayout.getInt(entry, entryOffset);
+	}
+
+	/**
+	 * Copies the key of the current entry into buf and returns its length: the four big-endian bytes of an
+	 * integer key, or the modified UTF-8 bytes of a string key without their length. buf must be large
+	 * enough for the longest key of the index.
+	 */
+	public int copyKeyInto(byte[] buf) {
+		if (keyType == AttrType.attrInteger) {
+			System.arraycopy(entry, entryOffset, buf, 0, 4);
+			return 4;
+		}
+		int length = BTPageLayout.contentLength(entry, entryOffset);
+		BTPageLayout.copyContent(entry, entryOffset, 0, length, buf, 0);
+		return length;
+	}
+
+	/**
+	 * Copies the payload of the current entry of a covering index into buf and returns its length, 0 for an
+	 * index without payload.
+	 */
+	public int copyPayloadInto(byte[] buf) {
+		int length = bfile.getPayloadSize();
+		System.arraycopy(entry, entryEnd - 8 - length, buf, 0, length);
+		return length;
+	}
+
+	/**
+	 * The current entry as a KeyDataEntry, for BTreeCursorScan.
+	 */
+	KeyDataEntry current() throws IOException {
+		return new KeyDataEntry(BTPageLayout.keyAt(entry, entryOffset, keyType),
+				new RID(new PageId(ridPageNo()), ridSlotNo()));
+	}
+
+	public int ridPageNo() {
+		if (ridCount > 1)
+			return (int) (rids[ridIndex] >>> 32);
+		return BTPageLayout.getInt(entry, entryEnd - 4);
+	}
+
+	public int ridSlotNo() {
+		if (ridCount > 1)
+			return (int) rids[ridIndex];
+		return BTPageLayout.getInt(entry, entryEnd - 8);
+	}
+
+	/**
+	 * Unpins the current leaf and records the scan in the metrics of the file. Closing an exhausted cursor
+	 * does nothing.
+	 */
+	public void close() throws UnpinPageException {
+		if (readAhead != null) {
+			readAhead.close();
+			readAhead = null;
+		}
+		if (scanStart != 0) {
+			bfile.metrics().scanned(entries);
+			bfile.metrics().finish(BTreeMetrics.SCAN, scanStart);
+			scanStart = 0;
+		}
+		release();
+		changes = null;
+	}
+
+	/**
+	 * Unpins the current leaf, if there is one.
+	 */
+	private void release() throws UnpinPageException {
+		if (pageId == null)
+			return;
+		if (!copied)
+			bfile.unpinPage(pageId);
+		pageId = null;
+		data = null;
+	}
+}
@@ -0,0 +1,72 @@
+package btree;
+
+import java.io.IOException;
+
+/**
+ * BTreeCursorScan is the BTFileScan that new_scan returns where BTFileScan itself cannot read the leaves, in
+ * concurrent mode and with a page store other than the buffer manager. It runs a BTreeCursor over the range
+ * and hands out its entries as KeyDataEntry objects. delete_current deletes the entry last returned through
+ * BTreeFile.Delete and starts a new cursor at its key, skipping the entries of that key the scan has returned
+ * already, so the scan goes on with the entry after the deleted one.
+ */
+final class BTreeCursorScan extends BTFileScan {
+
+	private BTreeCursor cursor;
+	private final KeyClass hiKey;
+	// the entry last returned, null before the first, and whether delete_current deleted it
+	private KeyDataEntry current;
+	private boolean deleted;
+	// entries with the key of current returned before it
+	private int before;
+
+	BTreeCursorScan(BTreeFile bfile, BTreeCursor cursor, KeyClass hiKey, int keyType, int maxKeysize) {
+		this.bfile = bfile;
+		this.cursor = cursor;
+		this.hiKey = hiKey;
+		this.keyType = keyType;
+		this.maxKeysize = maxKeysize;
+		this.endkey = hiKey;
+	}
+
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (!cursor.next())
+				return null;
+			KeyDataEntry entry = cursor.current();
+			if (current == null || BT.keyCompare(current.key, entry.key) != 0)
+				before = 0;
+			else if (!deleted)
+				before++;
+			current = entry;
+			deleted = false;
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	public void delete_current() throws ScanDeleteException {
+		if (current == null || deleted)
+			return;
+		try {
+			cursor.close();
+			bfile.Delete(current.key, ((LeafData) current.data).getData());
+			cursor = bfile.scanCursor(current.key, hiKey);
+			for (int i = 0; i < before && cursor.next(); i++)
+				;
+			deleted = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+	}
+
+	public void DestroyBTreeFileScan() throws IOException {
+		try {
+			cursor.close();
+		} catch (UnpinPageException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -14,6 +14,21 @@
 package btree;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -27,30 +42,170 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static int MAGIC0 = 1989;
 
-	private final static String lineSep = System.getProperty("line.separator");
+	// how a full page is split, see setSplitPolicy
+	public final static int SPLIT_HALF = 0;
+	public final static int SPLIT_FILL = 1;
+	public final static int SPLIT_APPEND = 2;
+	public final static int SPLIT_ADAPTIVE = 3;
+
+	// when the log of a write buffer is forced to the disk, see enableWriteBuffer
+	public final static int WRITE_BUFFER_SYNC = 0;
+	public final static int WRITE_BUFFER_GROUP_COMMIT = 1;
+
+	// where the pages of a file are kept and how the channel store replaces them, named as the replacement
+	// policy of SystemDefs, see the constructors that take them and BTreePageStore
+	public final static String PAGE_STORE_BUFFER_POOL = "bufmgr";
+	public final static String PAGE_STORE_CHANNEL = "channel";
+	public final static String POLICY_CLOCK = "clock";
+	public final static String POLICY_2Q = "2q";
+
+	// inserts in a row at the end, or at the start, of their leaf that make SPLIT_ADAPTIVE split for a run
+	private final static int RUN_LENGTH = 4;
+
+	// outcome of deleting from a subtree under FULL_DELETE
+	private final static int NOT_FOUND = 0;
+	private final static int DELETED = 1;
+	private final static int UNDERFULL = 2;
+	// results of deleteRange for a page: emptied and left for the caller to free, or freed with its subtree
+	private final static int EMPTIED = 3;
+	private final static int FREED = 4;
+
+	// where a concurrent descent goes from a page, see readStep
+	private final static int STEP_LEAF = 0;
+	private final static int STEP_RIGHT = 1;
+	private final static int STEP_CHILD = 2;
+
+	// BTreeHeaderPage keeps its own settings in the first header slots. The slots from HDR_EXT_MAGIC on hold
+	// one int each for settings added since, and read as 0 in files that were written before them.
+	private final static int HDR_EXT_MAGIC = 4;
+	private final static int HDR_BLOOM_PAGE = 5;
+	private final static int HDR_BLOOM_PAGES = 6;
+	private final static int HDR_BLOOM_HASHES = 7;
+	private final static int HDR_BLOOM_BITS_PER_KEY = 8;
+	private final static int HDR_BLOOM_KEYS = 9;
+	private final static int HDR_BLOOM_DELETES = 10;
+	private final static int HDR_FORMAT_VERSION = 11;
+	private final static int HDR_COUNTS = 12;
+	private final static int HDR_COUNT_TOTAL = 13;
+	private final static int HDR_RID_ORDER = 14;
+	private final static int HDR_SPLIT_POLICY = 15;
+	private final static int HDR_SPLIT_FILL = 16;
+	private final static int HDR_PAYLOAD = 17;
+	private final static int HDR_EXT_END = 32;
+	private final static int EXT_MAGIC = 0x42547831;
+
+	// HDR_FORMAT_VERSION holds one flag per format change, all clear in files written before the header
+	// extension: string separators may be shorter than the keys they were taken from, the pages of an
+	// integer index are array pages, the pages of a string index store keys against a page prefix, see
+	// BTPageLayout, and every key has one leaf record with all of its RIDs, see BTPostingList
+	private final static int FORMAT_TRUNCATED_SEPARATORS = 1;
+	private final static int FORMAT_INT_ARRAYS = 2;
+	private final static int FORMAT_PREFIX_KEYS = 4;
+	private final static int FORMAT_POSTING_LISTS = 8;
 
-	private static FileOutputStream fos;
-	private static DataOutputStream trace;
+	// HDR_COUNTS of a file with order statistics: counts are exact, or went stale in concurrent mode
+	private final static int COUNTS_EXACT = 1;
+	private final static int COUNTS_STALE = 2;
 
+	private final static String lineSep = System.getProperty("line.separator");
+
+	/**
+	 * Starts writing trace events to filename. They are buffered in memory and written out by a thread of
+	 * their own, see BTreeTrace.
+	 */
 	public static void traceFilename(String filename) throws IOException {
 
-		fos = new FileOutputStream(filename);
-		trace = new DataOutputStream(fos);
+		BTreeTrace.start(new DataOutputStream(new FileOutputStream(filename)));
 	}
 
 	public static void destroyTrace() throws IOException {
-		if (trace != null)
-			trace.close();
-		if (fos != null)
-			fos.close();
-		fos = null;
-		trace = null;
+		BTreeTrace.stop();
 	}
 
 	private BTreeHeaderPage headerPage;
 	private PageId headerPageId;
 	private String dbname;
 
+	// one page worth of room used to compact a page in place after records were moved off it, one per
+	// thread so that concurrent writers can split pages at the same time
+	private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[MINIBASE_PAGESIZE];
+		}
+	};
+
+	// null unless the index has a Bloom filter
+	private BTreeBloomFilter bloom;
+
+	// whether index records carry the entry count of their child, see enableOrderStatistics
+	private boolean counted;
+	// entry count of the page the last splitLeaf or splitIndex created, in a file with order statistics
+	private int splitCount;
+
+	// whether duplicates are kept in RID order and separators carry a RID, see enableRidOrder
+	private boolean ridOrdered;
+	// whether new pages are array pages, FORMAT_INT_ARRAYS
+	private boolean intArrays;
+	// whether pages keep the prefix their keys share, FORMAT_PREFIX_KEYS
+	private boolean prefixKeys;
+	// whether leaf records hold the posting list of their key, FORMAT_POSTING_LISTS
+	private boolean postingLists;
+	// RID of the separator the last splitLeaf or splitIndex returned, in a file with RID-ordered duplicates
+	private RID splitRid;
+
+	// bytes of payload every leaf record of a covering index carries between its key and its RID, and as many
+	// zeros for an insert without payload
+	private int payloadSize;
+	private byte[] noPayload = new byte[0];
+
+	// split policy and the part of a page SPLIT_FILL leaves on the side that does not take the new entry
+	private int splitPolicy;
+	private double splitFill;
+	// inserts in a row that went to the end of their leaf when positive, to its start when negative, and the last
+	// leaf of the chain as an insert last saw it, INVALID_PAGE when unknown, see appendToRightmost; like
+	// splitCount and splitRid they belong to a single writer and are not kept in concurrent mode
+	private int insertRun;
+	private int rightmostLeaf = INVALID_PAGE;
+
+	// where the pages other than the header page are pinned, see BTreePageStore
+	private BTreePageStore store = BufferPoolPageStore.INSTANCE;
+
+	// decoded index pages of the levels next to the root
+	private final BTreeNodeCache nodeCache = new BTreeNodeCache(2);
+
+	// page latches and high keys, not null while the file is in concurrent mode
+	private volatile BTreeLatches latches;
+	// the root page number as updateHeader last wrote it, read by concurrent operations instead of the header
+	private volatile int rootPid = INVALID_PAGE;
+	// taken to create or replace the root in concurrent mode
+	private final Object rootLatch = new Object();
+
+	// inserts and deletes held back for a merge into the tree, null unless enableWriteBuffer was called
+	private BTreeWriteBuffer writeBuffer;
+	// log bytes written and log forces of the write buffers that were removed
+	private long logBytes;
+	private long logSyncs;
+	// the merge of a full write buffer running on a merger thread, null when none is
+	private Future<Void> merge;
+	private final static ExecutorService MERGER = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "btree-merge");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// most leaves a cursor reads ahead, 0 turns read-ahead off
+	private int readAheadLeaves;
+	private final AtomicLong prefetchHits = new AtomicLong();
+	private final AtomicLong prefetchWasted = new AtomicLong();
+
+	// pages pinned and unpinned through this file, the header page included, and the unpins that were dirty
+	private final LongAdder pins = new LongAdder();
+	private final LongAdder unpins = new LongAdder();
+	private final LongAdder dirtyUnpins = new LongAdder();
+	private final BTreeMetrics metrics = new BTreeMetrics();
+
 	public BTreeHeaderPage getHeaderPage() {
 		return headerPage;
 	}
@@ -64,11 +219,70 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private Page pinPage(PageId pageno) throws PinPageException {
+	/**
+	 * The store for pageStore: the buffer manager, or a ChannelPageStore with frames frames over the database
+	 * file, replacing pages by policy. The buffer manager keeps the replacement policy SystemDefs was started
+	 * with, policy and frames only apply to the channel store.
+	 */
+	private static BTreePageStore openPageStore(String pageStore, int frames, String policy)
+			throws ConstructPageException {
+		boolean channel = PAGE_STORE_CHANNEL.equalsIgnoreCase(pageStore);
+		boolean scanResistant = POLICY_2Q.equalsIgnoreCase(policy);
+		if ((!channel && !PAGE_STORE_BUFFER_POOL.equalsIgnoreCase(pageStore))
+				|| (!scanResistant && !POLICY_CLOCK.equalsIgnoreCase(policy))) {
+			logger.error("Construct error!");
+			throw new ConstructPageException(null, "unknown page store " + pageStore + " or policy " + policy);
+		}
+		if (!channel)
+			return BufferPoolPageStore.INSTANCE;
 		try {
-			Page page = new Page();
-			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
-			return page;
+			return ChannelPageStore.forDatabase(SystemDefs.JavabaseDBName, frames, scanResistant);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	/**
+	 * The page store the system property btree.pagestore asks for, "channel" for the channel store and the
+	 * buffer manager otherwise, for the constructors that take none.
+	 */
+	private static String defaultPageStore() {
+		return PAGE_STORE_CHANNEL.equals(System.getProperty("btree.pagestore")) ? PAGE_STORE_CHANNEL
+				: PAGE_STORE_BUFFER_POOL;
+	}
+
+	// frames of the channel store from btree.pagestore.frames, 1024 by default
+	private static int defaultFrames() {
+		return Integer.getInteger("btree.pagestore.frames", 1024);
+	}
+
+	// POLICY_2Q when btree.pagestore.policy is "2q", POLICY_CLOCK otherwise
+	private static String defaultPolicy() {
+		return POLICY_2Q.equals(System.getProperty("btree.pagestore.policy")) ? POLICY_2Q : POLICY_CLOCK;
+	}
+
+	/**
+	 * The header page stays with the buffer manager, which BTreeHeaderPage uses, whatever store the other
+	 * pages are in.
+	 */
+	private BTreePageStore storeFor(PageId pageno) {
+		return headerPageId != null && pageno.pid == headerPageId.pid ? BufferPoolPageStore.INSTANCE : store;
+	}
+
+	Page pinPage(PageId pageno) throws PinPageException {
+		return pinPage(pageno, BTreePageStore.PROBE);
+	}
+
+	/**
+	 * Pins pageno with an access hint for the page store, BTreePageStore.SCAN for a leaf that a walk along the
+	 * leaf chain steps onto.
+	 */
+	Page pinPage(PageId pageno, int hint) throws PinPageException {
+		pins.increment();
+		metrics.pinned();
+		try {
+			return storeFor(pageno).pinPage(pageno, hint);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new PinPageException(e, "");
@@ -84,18 +298,21 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private void unpinPage(PageId pageno) throws UnpinPageException {
+	void unpinPage(PageId pageno) throws UnpinPageException {
+		unpins.increment();
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			storeFor(pageno).unpinPage(pageno, false /* = not DIRTY */);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
 		}
 	}
 
-	private void freePage(PageId pageno) throws FreePageException {
+	void freePage(PageId pageno) throws FreePageException {
+		if (pageno.pid == rightmostLeaf)
+			rightmostLeaf = INVALID_PAGE;
 		try {
-			SystemDefs.JavabaseBM.freePage(pageno);
+			storeFor(pageno).freePage(pageno);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new FreePageException(e, "");
@@ -103,6 +320,50 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	PageId newPage(Page page, int count) throws ConstructPageException {
+		pins.increment();
+		metrics.pinned();
+		try {
+			return store.newPage(page, count);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	/**
+	 * Allocates a leaf page through newPage and returns it pinned, like BTLeafPage(int) does through the buffer
+	 * manager.
+	 */
+	private BTLeafPage newLeafPage() throws ConstructPageException, IOException {
+		Page page = new Page();
+		PageId pageId = newPage(page, 1);
+		return formatLeafPage(pageId, page);
+	}
+
+	/**
+	 * Formats the pinned page pageId as an empty leaf.
+	 */
+	private BTLeafPage formatLeafPage(PageId pageId, Page page) throws ConstructPageException, IOException {
+		BTLeafPage leaf = new BTLeafPage(page, headerPage.get_keyType());
+		leaf.init(pageId, page);
+		leaf.setType(NodeType.LEAF);
+		if (intArrays)
+			BTPageLayout.formatArrayPage(page.getpage(), payloadSize + 8);
+		return leaf;
+	}
+
+	private BTIndexPage newIndexPage() throws ConstructPageException, IOException {
+		Page page = new Page();
+		PageId pageId = newPage(page, 1);
+		BTIndexPage index = new BTIndexPage(page, headerPage.get_keyType());
+		index.init(pageId, page);
+		index.setType(NodeType.INDEX);
+		if (intArrays)
+			BTPageLayout.formatArrayPage(page.getpage(), counted ? 8 : 4);
+		return index;
+	}
+
 	private void delete_file_entry(String filename) throws DeleteFileEntryException {
 		try {
 			SystemDefs.JavabaseDB.delete_file_entry(filename);
@@ -112,27 +373,104 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private void unpinPage(PageId pageno, boolean dirty) throws UnpinPageException {
+	void unpinPage(PageId pageno, boolean dirty) throws UnpinPageException {
+		unpins.increment();
+		if (dirty)
+			dirtyUnpins.increment();
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			storeFor(pageno).unpinPage(pageno, dirty);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
 		}
 	}
 
+	private static int headerFieldPos(int field) {
+		return HFPage.DPFIXED + field * HFPage.SIZE_OF_SLOT;
+	}
+
+	private int getHeaderField(int field) {
+		byte[] data = headerPage.getpage();
+		if (BTPageLayout.getInt(data, headerFieldPos(HDR_EXT_MAGIC)) != EXT_MAGIC)
+			return 0;
+		return BTPageLayout.getInt(data, headerFieldPos(field));
+	}
+
+	private void setHeaderField(int field, int value) {
+		byte[] data = headerPage.getpage();
+		if (BTPageLayout.getInt(data, headerFieldPos(HDR_EXT_MAGIC)) != EXT_MAGIC) {
+			// first extended setting in this file, clear whatever the slots held before
+			Arrays.fill(data, headerFieldPos(HDR_EXT_MAGIC), headerFieldPos(HDR_EXT_END), (byte) 0);
+			BTPageLayout.putInt(data, headerFieldPos(HDR_EXT_MAGIC), EXT_MAGIC);
+		}
+		BTPageLayout.putInt(data, headerFieldPos(field), value);
+	}
+
 	public BTreeFile(String filename) throws GetFileEntryException, PinPageException, ConstructPageException {
+		this(filename, defaultPageStore(), defaultFrames(), defaultPolicy());
+	}
 
+	/**
+	 * Opens the index filename with its pages in pageStore, PAGE_STORE_BUFFER_POOL or PAGE_STORE_CHANNEL. frames
+	 * and policy, POLICY_CLOCK or POLICY_2Q, only apply to the channel store, and only for the first file that
+	 * opens the channel store of the database, see ChannelPageStore; pages in the buffer pool are replaced
+	 * the way SystemDefs was started with. The constructors without a page store take it from the system
+	 * properties btree.pagestore, btree.pagestore.frames and btree.pagestore.policy.
+	 */
+	public BTreeFile(String filename, String pageStore, int frames, String policy)
+			throws GetFileEntryException, PinPageException, ConstructPageException {
+
+		store = openPageStore(pageStore, frames, policy);
 		headerPageId = get_file_entry(filename);
 
 		headerPage = new BTreeHeaderPage(headerPageId);
 		dbname = new String(filename);
+		openBloomFilter();
+		counted = getHeaderField(HDR_COUNTS) != 0;
+		ridOrdered = getHeaderField(HDR_RID_ORDER) != 0;
+		splitPolicy = getHeaderField(HDR_SPLIT_POLICY);
+		splitFill = getHeaderField(HDR_SPLIT_FILL) / 100.0;
+		payloadSize = getHeaderField(HDR_PAYLOAD);
+		noPayload = new byte[payloadSize];
+		intArrays = (getHeaderField(HDR_FORMAT_VERSION) & FORMAT_INT_ARRAYS) != 0;
+		prefixKeys = (getHeaderField(HDR_FORMAT_VERSION) & FORMAT_PREFIX_KEYS) != 0;
+		postingLists = (getHeaderField(HDR_FORMAT_VERSION) & FORMAT_POSTING_LISTS) != 0;
 
 	}
 
 	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion)
 			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, 0);
+	}
+
+	/**
+	 * Opens the index filename, or creates it as a covering index whose leaf records carry payloadSize bytes
+	 * next to their RID, see insert(KeyClass, RID, byte[]) and BTreeCursor.copyPayloadInto. A scan that only
+	 * needs the key and the columns in the payload then never reads the heap file. An index that exists keeps
+	 * the payload size it was created with. A covering index keeps neither a write buffer nor duplicates in
+	 * RID order. A new integer index is built from array pages, see BTPageLayout, which hold a third more
+	 * leaf entries than slotted pages, and the pages of a new string index keep the prefix their keys share
+	 * once; files created before keep their pages as they are.
+	 */
+	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion, int payloadSize)
+			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, payloadSize, defaultPageStore(), defaultFrames(),
+				defaultPolicy());
+	}
+
+	/**
+	 * Opens or creates the index filename as the constructor above, with its pages in pageStore, frames and
+	 * policy as for BTreeFile(String, String, int, String).
+	 */
+	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion, int payloadSize,
+			String pageStore, int frames, String policy)
+			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
+		if (payloadSize < 0 || (payloadSize > 0 && keysize + payloadSize + 8 > MINIBASE_PAGESIZE / 4)) {
+			logger.error("Construct error!");
+			throw new ConstructPageException(null, "a leaf page has to hold at least four records");
+		}
 
+		store = openPageStore(pageStore, frames, policy);
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
 		{
@@ -145,56 +483,114 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
 			headerPage.setType(NodeType.BTHEAD);
+			setHeaderField(HDR_FORMAT_VERSION, FORMAT_TRUNCATED_SEPARATORS
+					| (keytype == AttrType.attrInteger ? FORMAT_INT_ARRAYS : FORMAT_PREFIX_KEYS));
+			setHeaderField(HDR_PAYLOAD, payloadSize);
 		} else {
 			headerPage = new BTreeHeaderPage(headerPageId);
 		}
 
 		dbname = new String(filename);
+		openBloomFilter();
+		counted = getHeaderField(HDR_COUNTS) != 0;
+		ridOrdered = getHeaderField(HDR_RID_ORDER) != 0;
+		splitPolicy = getHeaderField(HDR_SPLIT_POLICY);
+		splitFill = getHeaderField(HDR_SPLIT_FILL) / 100.0;
+		this.payloadSize = getHeaderField(HDR_PAYLOAD);
+		noPayload = new byte[this.payloadSize];
+		intArrays = (getHeaderField(HDR_FORMAT_VERSION) & FORMAT_INT_ARRAYS) != 0;
+		prefixKeys = (getHeaderField(HDR_FORMAT_VERSION) & FORMAT_PREFIX_KEYS) != 0;
+		postingLists = (getHeaderField(HDR_FORMAT_VERSION) & FORMAT_POSTING_LISTS) != 0;
 
 	}
 
 	public void close()
 			throws PageUnpinnedException, InvalidFrameNumberException, HashEntryNotFoundException, ReplacerException {
+		if (writeBuffer != null && headerPage != null) {
+			try {
+				flushWriteBuffer();
+			} catch (IOException e) {
+				// the log keeps what could not be merged for the next enableWriteBuffer
+				e.printStackTrace();
+			}
+			try {
+				writeBuffer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			forgetWriteBuffer();
+		}
 		if (headerPage != null) {
 			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
 			headerPage = null;
 		}
+		releasePageStore();
+	}
+
+	/**
+	 * Gives up the page store once the file is closed or destroyed, see ChannelPageStore.release.
+	 */
+	private void releasePageStore() {
+		if (store instanceof ChannelPageStore) {
+			try {
+				ChannelPageStore.release((ChannelPageStore) store);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			store = BufferPoolPageStore.INSTANCE;
+		}
 	}
 
 	public void destroyFile() throws IOException, IteratorException, UnpinPageException, FreePageException,
 			DeleteFileEntryException, ConstructPageException, PinPageException {
+		if (writeBuffer != null) {
+			try {
+				awaitMerge();
+			} catch (IOException e) {
+				// the file goes, and what could not be merged with it
+			}
+			writeBuffer.discard();
+			forgetWriteBuffer();
+		}
 		if (headerPage != null) {
 			PageId pgId = headerPage.get_rootId();
 			if (pgId.pid != INVALID_PAGE)
-				_destroyFile(pgId);
+				_destroyFile(pgId, postingLists);
+			if (bloom != null)
+				bloom.free();
+			nodeCache.clear();
 			unpinPage(headerPageId);
 			freePage(headerPageId);
 			delete_file_entry(dbname);
 			headerPage = null;
 		}
+		releasePageStore();
 	}
 
-	private void _destroyFile(PageId pageno) throws IOException, IteratorException, PinPageException,
-			ConstructPageException, UnpinPageException, FreePageException {
-
-		BTSortedPage sortedPage;
-		Page page = pinPage(pageno);
-		sortedPage = new BTSortedPage(page, headerPage.get_keyType());
-
-		if (sortedPage.getType() == NodeType.INDEX) {
-			BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
-			RID rid = new RID();
-			PageId childId;
-			KeyDataEntry entry;
-			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid)) {
-				childId = ((IndexData) (entry.data)).getData();
-				_destroyFile(childId);
-			}
-		} else { // BTLeafPage
+	/**
+	 * Frees pageno and every page below it, and with chains set the overflow chains of the leaves as well,
+	 * which compact leaves to the records it has copied. An index page is unpinned before its children are
+	 * visited, so only one page is pinned per level.
+	 */
+	private void _destroyFile(PageId pageno, boolean chains) throws IOException, IteratorException,
+			PinPageException, ConstructPageException, UnpinPageException, FreePageException {
 
-			unpinPage(pageno);
-			freePage(pageno);
+		byte[] data = pinPage(pageno).getpage();
+		int[] children = null;
+		if (BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.INDEX) {
+			// the left link first, then the child of every index record
+			children = new int[BTPageLayout.slotCount(data) + 1];
+			children[0] = BTPageLayout.getInt(data, HFPage.PREV_PAGE);
+			for (int slot = 1; slot < children.length; slot++)
+				children[slot] = BTPageLayout.childAt(data, slot - 1);
+		} else if (chains) {
+			freeChains(data, 0, BTPageLayout.slotCount(data));
 		}
+		unpinPage(pageno);
+		if (children != null)
+			for (int child : children)
+				_destroyFile(new PageId(child), chains);
+		freePage(pageno);
 
 	}
 
@@ -208,6 +604,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		old_data = headerPage.get_rootId();
 		header.set_rootId(newRoot);
 		unpinPage(headerPageId, true);
+		rootPid = newRoot.pid;
+		// every cached node is now one level further away from the root, or gone
+		nodeCache.clear();
 
 	}
 
@@ -223,35 +622,91 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			LeafDeleteException, InsertException, IOException
 
 	{
+		insert(key, rid, null);
+	}
+
+	/**
+	 * insert for a covering index: payload is stored between the key and the RID of the leaf record, and has
+	 * to be getPayloadSize bytes long. null stores as many zeros.
+	 */
+	public void insert(KeyClass key, RID rid, byte[] payload) throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException, ConstructPageException, UnpinPageException,
+			PinPageException, NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException, IOException {
+		if (payload != null && payload.length != payloadSize) {
+			logger.error("Insertion error!");
+			throw new InsertException(null, "the payload of this index is " + payloadSize + " bytes long");
+		}
+		long start = metrics.start(BTreeMetrics.INSERT);
+		try {
+			if (writeBuffer != null) {
+				settleWriteBuffer();
+				writeBuffer.insert(key, rid);
+				if (writeBuffer.isFull())
+					startMerge();
+			} else {
+				insertEntry(key, rid, payload == null ? noPayload : payload);
+			}
+		} finally {
+			metrics.finish(BTreeMetrics.INSERT, start);
+		}
+	}
+
+	/**
+	 * insert past the write buffer, timed like insert.
+	 */
+	private void insertIntoTree(KeyClass key, RID rid) throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException, ConstructPageException, UnpinPageException,
+			PinPageException, NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException, IOException {
+		long start = metrics.start(BTreeMetrics.INSERT);
+		try {
+			insertEntry(key, rid, noPayload);
+		} finally {
+			metrics.finish(BTreeMetrics.INSERT, start);
+		}
+	}
+
+	private void insertEntry(KeyClass key, RID rid, byte[] payload) throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException, ConstructPageException, UnpinPageException,
+			PinPageException, NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException, IOException {
+		BTSearchKey searchKey = entryKey(key, rid);
+		if (latches != null) {
+			concurrentInsert(key, searchKey, rid, payload);
+			if (bloom != null)
+				bloomInsert(searchKey.hash());
+			return;
+		}
 		// initially, no header page , create root node and point to invalid page =-1
 		if (headerPage.get_rootId().pid == -1) {
 			BTLeafPage root4mpagenew;
 			// tree is empty, create first new page
-			root4mpagenew = new BTLeafPage(headerPage.get_keyType());
+			root4mpagenew = newLeafPage();
 
 			PageId pageId_newrootid, null_id = null;
 
 			// page number of the current page is obtained through getCurPage()
 			pageId_newrootid = root4mpagenew.getCurPage();
 
-			pinPage(pageId_newrootid);
 			// setting null value to next pointer
 			root4mpagenew.setNextPage(new PageId(INVALID_PAGE));
 			root4mpagenew.setPrevPage(new PageId(INVALID_PAGE));
 			// Inserting record on the page that is created
-			root4mpagenew.insertRecord(key, rid);
+			BTPageLayout.insertLeafRecord(root4mpagenew.getpage(), searchKey, payload, rid);
 			// logger.info(key);
 
+			rightmostLeaf = pageId_newrootid.pid;
 			// header page now points to the root page
 			updateHeader(pageId_newrootid);
 			// un-pinning the newRootPage as its marked as used when lower index page gets
 			// split
 			unpinPage(pageId_newrootid, true);
-		} else {
+		} else if (!appendToRightmost(searchKey, rid, payload)) {
 			// Creating an instance of KeyDataEntry newRootEntry that will catch the return
 			// statement from _insert(KeyClass, RID, pageId) method
 			KeyDataEntry newRootEntry = null;
-			newRootEntry = insertKey(key, rid, headerPage.get_rootId());
+			newRootEntry = insertKey(key, searchKey, rid, payload, headerPage.get_rootId());
 
 			/* Split occurs */
 			// If the newRootEntry is not null means a spilt should occurs with new index
@@ -259,11 +714,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			if (newRootEntry != null) {
 				IndexData data_coming = (IndexData) newRootEntry.data;
 				// Creating a new index page as the leaf page spilt occur
-				BTIndexPage IdxPg = new BTIndexPage(NodeType.INDEX);
+				BTIndexPage IdxPg = newIndexPage();
+				IdxPg.setNextPage(new PageId(INVALID_PAGE));
 				// Inserting record on this index page in the form of <key, pageId>;
 				// newRootPage.insertKey( newRootEntry.key,
 				// ((IndexData)newRootEntry.data).getData())
-				IdxPg.insertKey(newRootEntry.key, data_coming.getData());
+				insertIndexEntry(IdxPg.getpage(), entryKey(newRootEntry.key, splitRid), data_coming.getData().pid,
+						splitCount);
 				// the old root is split and it will now become the left child of new root;
 				// setting the prevPage pointer to the old root using headerPage.get_rootId()
 				IdxPg.setPrevPage(headerPage.get_rootId());
@@ -273,6 +730,370 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				updateHeader(IdxPg.getCurPage());
 			}
 		}
+		if (counted)
+			setHeaderField(HDR_COUNT_TOTAL, getHeaderField(HDR_COUNT_TOTAL) + 1);
+		if (bloom != null)
+			bloomInsert(searchKey.hash());
+	}
+
+	/**
+	 * bulkLoad builds the tree bottom-up from entries that arrive in ascending key order. Leaf pages are filled
+	 * left to right up to fillFactor of their space and chained through their next and prev links, then every
+	 * index level is built over the first keys of the level below it, and the header is pointed at the root
+	 * once at the end. The tree must still be empty, and input that is not sorted is refused. A covering index
+	 * cannot be bulk loaded, as the entries carry no payload. In a file with posting lists the entries of a key
+	 * go into one record, their RIDs in any order.
+	 */
+	public void bulkLoad(Iterator<KeyDataEntry> entries, double fillFactor) throws InsertException,
+			KeyNotMatchException, NodeNotMatchException, LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException, IteratorException,
+			IOException {
+		flushWriteBuffer();
+		if (headerPage.get_rootId().pid != INVALID_PAGE || fillFactor <= 0.0 || fillFactor > 1.0) {
+			logger.error("Bulk load error!");
+			throw new InsertException(null, "bulkLoad needs an empty tree and 0 < fillFactor <= 1");
+		}
+		if (payloadSize > 0) {
+			// KeyDataEntry has no room for a payload, the entries would all be loaded with zeros
+			logger.error("Bulk load error!");
+			throw new InsertException(null, "bulkLoad does not go with payload");
+		}
+		if (!entries.hasNext())
+			return;
+
+		// one <first key, page> entry for every page of the level that was built last, the number of entries
+		// below each of those pages, and with RID-ordered duplicates the RID of their first entry
+		ArrayList<KeyDataEntry> level = new ArrayList<KeyDataEntry>();
+		ArrayList<Integer> counts = new ArrayList<Integer>();
+		ArrayList<RID> rids = ridOrdered ? new ArrayList<RID>() : null;
+		int total = 0;
+		BTLeafPage leaf = newLeafPage();
+		leaf.setNextPage(new PageId(INVALID_PAGE));
+		leaf.setPrevPage(new PageId(INVALID_PAGE));
+		int room = leaf.available_space();
+		KeyClass prevKey = null;
+		RID prevRid = null;
+		KeyDataEntry entry = entries.next();
+		while (entry != null) {
+			RID rid = ((LeafData) entry.data).getData();
+			int cmp = prevKey == null ? 1 : BTSearchKey.keyCompare(entry.key, prevKey);
+			if (cmp == 0 && ridOrdered)
+				cmp = Long.signum(BTSearchKey.ridValue(rid.pageNo.pid, rid.slotNo)
+						- BTSearchKey.ridValue(prevRid.pageNo.pid, prevRid.slotNo));
+			if (cmp < 0) {
+				// undo the pages written so far, the header still points to an empty tree
+				unpinPage(leaf.getCurPage(), true);
+				for (KeyDataEntry built : level) {
+					if (postingLists)
+						freeChains(((IndexData) built.data).getData());
+					freePage(((IndexData) built.data).getData());
+				}
+				logger.error("Bulk load error!");
+				throw new InsertException(null, "bulkLoad input is not sorted");
+			}
+			BTSearchKey searchKey = entryKey(entry.key, rid);
+			KeyDataEntry following = entries.hasNext() ? entries.next() : null;
+			byte[] list = noPayload;
+			if (postingLists) {
+				// the entries of the key follow each other in sorted input
+				long[] values = { BTSearchKey.ridValue(rid.pageNo.pid, rid.slotNo) };
+				int count = 1;
+				while (following != null && BTSearchKey.keyCompare(following.key, entry.key) == 0) {
+					RID next = ((LeafData) following.data).getData();
+					if (count == values.length)
+						values = Arrays.copyOf(values, 2 * count);
+					values[count++] = BTSearchKey.ridValue(next.pageNo.pid, next.slotNo);
+					following = entries.hasNext() ? entries.next() : null;
+				}
+				Arrays.sort(values, 0, count);
+				rid = BTPostingList.rid(values[0]);
+				list = postingList(searchKey, values, count);
+			}
+			int length = leafRecordLength(searchKey, list);
+			if (leaf.getSlotCnt() > 0 && !withinFill(leaf, room, length, fillFactor)
+					&& !(compressPage(leaf.getpage()) && withinFill(leaf, room, length, fillFactor))) {
+				// current leaf reached its fill budget, chain a fresh one behind it
+				BTLeafPage next = newLeafPage();
+				next.setNextPage(new PageId(INVALID_PAGE));
+				next.setPrevPage(leaf.getCurPage());
+				leaf.setNextPage(next.getCurPage());
+				unpinPage(leaf.getCurPage(), true);
+				leaf = next;
+			}
+			if (leaf.getSlotCnt() == 0) {
+				level.add(new KeyDataEntry(prevKey == null ? entry.key : separator(prevKey, entry.key),
+						leaf.getCurPage()));
+				counts.add(0);
+				if (ridOrdered)
+					rids.add(rid);
+			}
+			// appended behind everything on the leaf, the input being sorted
+			BTPageLayout.insertLeafRecord(leaf.getpage(), searchKey, list, rid);
+			counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+			total++;
+			prevKey = entry.key;
+			prevRid = rid;
+			entry = following;
+		}
+		unpinPage(leaf.getCurPage(), true);
+
+		updateHeader(buildIndexLevels(level, rids, counts, fillFactor));
+		if (counted)
+			setHeaderField(HDR_COUNT_TOTAL, total);
+		// a filter created on the empty tree is refilled from the loaded leaves in one pass
+		if (bloom != null)
+			createBloomFilter(getHeaderField(HDR_BLOOM_BITS_PER_KEY));
+	}
+
+	/**
+	 * Builds the index levels over level, one <first key, page> entry for every page of the level below with
+	 * the number of entries under it in counts and, in a file with RID-ordered duplicates, the RID of its
+	 * separator in rids. Index pages are filled up to fillFactor of their space like bulkLoad fills leaves.
+	 * Returns the root, which is the only page of level when it has just one.
+	 */
+	private PageId buildIndexLevels(ArrayList<KeyDataEntry> level, ArrayList<RID> rids, ArrayList<Integer> counts,
+			double fillFactor) throws IOException, KeyNotMatchException, ConstructPageException, UnpinPageException {
+		int room = 0;
+		while (level.size() > 1) {
+			ArrayList<KeyDataEntry> upper = new ArrayList<KeyDataEntry>();
+			ArrayList<Integer> upperCounts = new ArrayList<Integer>();
+			ArrayList<RID> upperRids = rids == null ? null : new ArrayList<RID>();
+			BTIndexPage indexPage = null;
+			for (int i = 0; i < level.size(); i++) {
+				KeyDataEntry child = level.get(i);
+				PageId childId = ((IndexData) child.data).getData();
+				BTSearchKey childKey = entryKey(child.key, rids == null ? null : rids.get(i));
+				int length = indexEntryLength(childKey);
+				// a page takes at least one record behind its left link, so every level has fewer pages than
+				// the one below it however low fillFactor is
+				if (indexPage == null || indexPage.getSlotCnt() > 0
+						&& !withinFill(indexPage, room, length, fillFactor)
+						&& !(compressPage(indexPage.getpage())
+								&& withinFill(indexPage, room, length, fillFactor))) {
+					BTIndexPage previous = indexPage;
+					// the first child becomes the left link and its key moves up a level
+					indexPage = newIndexPage();
+					indexPage.setNextPage(new PageId(INVALID_PAGE));
+					if (previous != null) {
+						previous.setNextPage(indexPage.getCurPage());
+						unpinPage(previous.getCurPage(), true);
+					}
+					room = indexPage.available_space();
+					indexPage.setPrevPage(childId);
+					upper.add(new KeyDataEntry(child.key, indexPage.getCurPage()));
+					upperCounts.add(counts.get(i));
+					if (rids != null)
+						upperRids.add(rids.get(i));
+				} else {
+					insertIndexEntry(indexPage.getpage(), childKey, childId.pid, counts.get(i));
+					upperCounts.set(upperCounts.size() - 1, upperCounts.get(upperCounts.size() - 1) + counts.get(i));
+				}
+			}
+			unpinPage(indexPage.getCurPage(), true);
+			level = upper;
+			counts = upperCounts;
+			rids = upperRids;
+		}
+		return ((IndexData) level.get(0).data).getData();
+	}
+
+	/**
+	 * Whether a record of length bytes fits on page, which had room bytes available when it was empty, and
+	 * keeps it within fillFactor of them.
+	 */
+	private static boolean withinFill(BTSortedPage page, int room, int length, double fillFactor)
+			throws IOException {
+		return room - page.available_space() + length <= room * fillFactor && page.available_space() >= length;
+	}
+
+	/**
+	 * analyze walks the whole tree and returns its height, the number of pages and their average and minimum
+	 * fill on every level, the number of empty leaves, and how many steps along the leaf chain go to a page
+	 * that does not follow the current one in the database file. The file must not be in concurrent mode,
+	 * where pages change under the walk.
+	 */
+	public BTreeStatistics analyze() throws IOException, IteratorException, PinPageException, UnpinPageException {
+		flushWriteBuffer();
+		if (latches != null) {
+			logger.error("Analyze error!");
+			throw new IteratorException(null, "analyze does not run in concurrent mode");
+		}
+		ArrayList<int[]> pages = new ArrayList<int[]>();
+		ArrayList<double[]> fill = new ArrayList<double[]>();
+		// entries, empty leaves, hops and non-adjacent hops
+		long[] leaves = new long[4];
+		PageId root = headerPage.get_rootId();
+		if (root.pid != INVALID_PAGE)
+			analyze(root, 0, pages, fill, leaves);
+		int height = pages.size();
+		int[] pageCounts = new int[height];
+		double[] averageFill = new double[height];
+		double[] minimumFill = new double[height];
+		for (int level = 0; level < height; level++) {
+			pageCounts[level] = pages.get(level)[0];
+			averageFill[level] = fill.get(level)[0] / pageCounts[level];
+			minimumFill[level] = fill.get(level)[1];
+		}
+		return new BTreeStatistics(height, leaves[0], (int) leaves[1], leaves[2], leaves[3], pageCounts,
+				averageFill, minimumFill);
+	}
+
+	/**
+	 * Adds pageId at depth, and the pages below it, to the page counts and fill sums and minimums of their
+	 * levels, and a leaf to the leaf totals of analyze.
+	 */
+	private void analyze(PageId pageId, int depth, ArrayList<int[]> pages, ArrayList<double[]> fill,
+			long[] leaves) throws PinPageException, UnpinPageException, IOException {
+		byte[] data = pinPage(pageId, BTreePageStore.SCAN).getpage();
+		if (pages.size() == depth) {
+			pages.add(new int[1]);
+			fill.add(new double[] { 0, 1 });
+		}
+		double used = (double) BTPageLayout.usedSpace(data) / (data.length - HFPage.DPFIXED);
+		pages.get(depth)[0]++;
+		fill.get(depth)[0] += used;
+		fill.get(depth)[1] = Math.min(fill.get(depth)[1], used);
+		int count = BTPageLayout.slotCount(data);
+		if (BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.LEAF) {
+			int next = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+			if (postingLists)
+				for (int slot = 0; slot < count; slot++)
+					leaves[0] += BTPostingList.size(data, slot, headerPage.get_keyType()) - 1;
+			unpinPage(pageId);
+			leaves[0] += count;
+			if (count == 0)
+				leaves[1]++;
+			if (next != INVALID_PAGE) {
+				leaves[2]++;
+				if (next != pageId.pid + 1)
+					leaves[3]++;
+			}
+			return;
+		}
+		int[] children = new int[count + 1];
+		children[0] = BTPageLayout.getInt(data, HFPage.PREV_PAGE);
+		for (int slot = 1; slot <= count; slot++)
+			children[slot] = BTPageLayout.childAt(data, slot - 1);
+		unpinPage(pageId);
+		for (int child : children)
+			analyze(new PageId(child), depth + 1, pages, fill, leaves);
+	}
+
+	public void compact() throws InsertException, KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException, IOException {
+		compact(1.0);
+	}
+
+	/**
+	 * compact rewrites the leaves into one run of consecutive pages, in key order and filled up to fillFactor
+	 * of their space, and builds new index levels over them as bulkLoad does, so that a scan reads the leaves
+	 * in the order they lie in the database file. The old tree answers every operation until the header is
+	 * switched to the new root in one update, then its pages are freed. Order statistics and the Bloom filter
+	 * stay valid, as the entries do not change. Index pages are filled to at least the share one index record
+	 * takes, however low fillFactor is. No scan or cursor may be open on the file, and it must not be
+	 * in concurrent mode.
+	 */
+	public void compact(double fillFactor) throws InsertException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException, IOException {
+		flushWriteBuffer();
+		if (latches != null || fillFactor <= 0.0 || fillFactor > 1.0) {
+			logger.error("Compact error!");
+			throw new InsertException(null, "compact needs 0 < fillFactor <= 1 and does not run in concurrent mode");
+		}
+		double indexFill = indexFillFactor(fillFactor);
+		PageId oldRoot = headerPage.get_rootId();
+		if (oldRoot.pid == INVALID_PAGE)
+			return;
+		int keyType = headerPage.get_keyType();
+
+		// first pass: the number of leaves the entries take, so that they can be allocated in one run. The
+		// records are copied to a page outside the file, which fills up as the leaves of the second pass do
+		int leafCount = 0;
+		Page counting = new Page();
+		for (BTLeafPage leaf = descendToLeaf(null, false, null, null); leaf != null; leaf = nextLeaf(leaf)) {
+			byte[] data = leaf.getpage();
+			for (int slot = 0; slot < BTPageLayout.slotCount(data); slot++) {
+				if (leafCount == 0 || !compactFits(data, slot, counting.getpage(), fillFactor)) {
+					formatLeafPage(new PageId(INVALID_PAGE), counting);
+					leafCount++;
+				}
+				BTPageLayout.appendRecord(data, slot, counting.getpage());
+			}
+		}
+		if (leafCount == 0) {
+			// only empty leaves are left
+			updateHeader(new PageId(INVALID_PAGE));
+			_destroyFile(oldRoot, false);
+			return;
+		}
+
+		// second pass: copy the records over, leaf i of the new chain is page first + i
+		ArrayList<KeyDataEntry> level = new ArrayList<KeyDataEntry>();
+		ArrayList<Integer> counts = new ArrayList<Integer>();
+		ArrayList<RID> rids = ridOrdered ? new ArrayList<RID>() : null;
+		Page page = new Page();
+		int first = newPage(page, leafCount).pid;
+		PageId newId = new PageId(first);
+		byte[] dst = null;
+		KeyClass prevKey = null;
+		for (BTLeafPage leaf = descendToLeaf(null, false, null, null); leaf != null; leaf = nextLeaf(leaf)) {
+			byte[] data = leaf.getpage();
+			for (int slot = 0; slot < BTPageLayout.slotCount(data); slot++) {
+				if (dst == null || !compactFits(data, slot, dst, fillFactor)) {
+					if (dst != null) {
+						prevKey = BTPageLayout.keyAt(dst,
+								BTPageLayout.slotOffset(dst, BTPageLayout.slotCount(dst) - 1), keyType);
+						unpinPage(newId, true);
+						newId = new PageId(newId.pid + 1);
+						page = pinPage(newId);
+					}
+					BTLeafPage newLeaf = formatLeafPage(newId, page);
+					newLeaf.setPrevPage(new PageId(newId.pid == first ? INVALID_PAGE : newId.pid - 1));
+					newLeaf.setNextPage(new PageId(newId.pid == first + leafCount - 1 ? INVALID_PAGE : newId.pid + 1));
+					dst = page.getpage();
+					KeyClass key = BTPageLayout.keyAt(data, BTPageLayout.slotOffset(data, slot), keyType);
+					level.add(new KeyDataEntry(prevKey == null ? key : separator(prevKey, key), newId));
+					counts.add(0);
+					if (ridOrdered)
+						rids.add(ridBehindKey(data, slot));
+				}
+				BTPageLayout.appendRecord(data, slot, dst);
+				counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+			}
+		}
+		unpinPage(newId, true);
+
+		updateHeader(buildIndexLevels(level, rids, counts, indexFill));
+		_destroyFile(oldRoot, false);
+	}
+
+	/**
+	 * The fill factor compact builds index pages with: fillFactor, raised where the largest index record of the
+	 * file would not fit under it, so that a page holds at least two children.
+	 */
+	private double indexFillFactor(double fillFactor) throws IOException {
+		int room = MINIBASE_PAGESIZE - HFPage.DPFIXED;
+		int largest = headerPage.get_maxKeySize() + (ridOrdered ? 8 : 0) + (counted ? 8 : 4) + HFPage.SIZE_OF_SLOT;
+		return Math.max(fillFactor, Math.min(1.0, (double) largest / room));
+	}
+
+	/**
+	 * Whether the record in slot of src can go behind the records of dst, a leaf that compact fills, without
+	 * taking it past fillFactor or out of room. dst is compressed first when that is what it takes.
+	 */
+	private boolean compactFits(byte[] src, int slot, byte[] dst, double fillFactor) throws IOException {
+		int need = BTPageLayout.wholeLength(src, slot, headerPage.get_keyType()) + HFPage.SIZE_OF_SLOT;
+		return !leafFull(BTPageLayout.usedSpace(dst), need, fillFactor)
+				|| compressPage(dst) && !leafFull(BTPageLayout.usedSpace(dst), need, fillFactor);
+	}
+
+	/**
+	 * Whether a leaf that has records taking used bytes is past fillFactor, or out of room, once a record and
+	 * slot taking need bytes are added.
+	 */
+	private static boolean leafFull(int used, int need, double fillFactor) {
+		int room = MINIBASE_PAGESIZE - HFPage.DPFIXED;
+		return used + need > room * fillFactor || used + need > room;
 	}
 
 	/**
@@ -281,18 +1102,24 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * a new page is created to hold the "overflow" records, and a key point to the new page is returned to be inserted 
 	 * into the parent page.
 	 */
-	private KeyDataEntry insertKey(KeyClass key, RID rid, PageId presentPageId)
+	private KeyDataEntry insertKey(KeyClass key, BTSearchKey searchKey, RID rid, byte[] payload,
+			PageId presentPageId)
 			throws PinPageException, IOException, ConstructPageException, LeafDeleteException, ConstructPageException,
 			DeleteRecException, IndexSearchException, UnpinPageException, LeafInsertRecException, ConvertException,
 			IteratorException, IndexInsertRecException, KeyNotMatchException, NodeNotMatchException, InsertException {
+		// a page in the node cache is an index page, no need to pin it
+		if (nodeCache.get(presentPageId) != null)
+			return insertInIndex(key, searchKey, rid, payload, presentPageId);
 		// creating a BTSortedPage presentPage of the page which will associate the
-		// sorted page instance with the page instance
-		BTSortedPage presentPage = new BTSortedPage(presentPageId, headerPage.get_keyType());
-		if (presentPage.getType() == NodeType.INDEX) {
+		// sorted page instance with the page instance, only long enough to read its type
+		BTSortedPage presentPage = new BTSortedPage(pinPage(presentPageId), headerPage.get_keyType());
+		short nodeType = presentPage.getType();
+		unpinPage(presentPageId);
+		if (nodeType == NodeType.INDEX) {
 			// When presentPage is of type Index
-			return insertInIndex(key, rid, presentPageId);
-		} else if (presentPage.getType() == NodeType.LEAF) {
-			return insertInLeaf(key, rid, presentPageId);
+			return insertInIndex(key, searchKey, rid, payload, presentPageId);
+		} else if (nodeType == NodeType.LEAF) {
+			return insertInLeaf(key, searchKey, rid, payload, presentPageId);
 		} else {
 			logger.error("Insertion error!");
 			throw new InsertException(null, "");
@@ -305,190 +1132,2208 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * and the new key and RID are inserted into the appropriate page. The method returns a key to be inserted into the 
 	 * parent index page if a split occurred.
 	 */
-	private KeyDataEntry insertInLeaf(KeyClass key, RID rid, PageId presentPageId)
+	private KeyDataEntry insertInLeaf(KeyClass key, BTSearchKey searchKey, RID rid, byte[] payload,
+			PageId presentPageId)
 			throws PinPageException, IOException, ConstructPageException, LeafDeleteException, ConstructPageException,
 			DeleteRecException, IndexSearchException, UnpinPageException, LeafInsertRecException, ConvertException,
 			IteratorException, IndexInsertRecException, KeyNotMatchException, NodeNotMatchException, InsertException {
 		// ------Creating present leaf page with page-id constructor
 		// parameter-----------//
-		BTLeafPage presentLeafPg = new BTLeafPage(presentPageId, headerPage.get_keyType());
-		// Check if the presentLeafPg has space for new entries with
-		// presentLeafPg.available_space() >= BT.getKeyDataLength( upEntry.key,
-		// NodeType.LEAF)
-		if (presentLeafPg.available_space() >= BT.getKeyDataLength(key, presentLeafPg.getType())) {
+		BTLeafPage presentLeafPg = new BTLeafPage(pinPage(presentPageId), headerPage.get_keyType());
+		byte[] data = presentLeafPg.getpage();
+		if (postingLists) {
+			int slot = BTPageLayout.lowerBound(data, searchKey);
+			if (slot < BTPageLayout.slotCount(data)
+					&& searchKey.compareKeyTo(data, BTPageLayout.slotOffset(data, slot)) == 0) {
+				// rid joins the list of the key, and the record is inserted again when that changes its length
+				RID first = new RID();
+				payload = addPosting(data, slot, searchKey, rid, first);
+				if (payload == null) {
+					unpinPage(presentPageId, true);
+					return null;
+				}
+				rid = first;
+				BTPageLayout.removeRecords(data, slot, slot + 1, scratch.get());
+			}
+		}
+		// Check if the presentLeafPg has space for the new entry, the record is written straight into the
+		// page bytes
+		if (BTPageLayout.hasRoom(data, leafRecordLength(searchKey, payload))
+				|| compressPage(data) && BTPageLayout.hasRoom(data, leafRecordLength(searchKey, payload))) {
 			// Space available so inserting record
-			presentLeafPg.insertRecord(key, rid);
+			trackRun(BTPageLayout.insertLeafRecord(data, searchKey, payload, rid), BTPageLayout.slotCount(data) - 1);
+			if (BTPageLayout.getInt(data, HFPage.NEXT_PAGE) == INVALID_PAGE)
+				rightmostLeaf = presentPageId.pid;
 			unpinPage(presentLeafPg.getCurPage(), true);
 			return null;
 		} else {
-			// Space not available so current page must be split into two pages.> leafpage
-			// with id and setting the pointers,previous and next-one on it.
-			BTLeafPage splitleaf = new BTLeafPage(headerPage.get_keyType());
-			PageId splitleaf_Id = splitleaf.getCurPage();
-			// Setting the next page pointer to the next page which was previously pointed
-			// by old page
-			splitleaf.setNextPage(presentLeafPg.getNextPage());
-			// Setting old leaf next pointer to new leaf
-			presentLeafPg.setNextPage(splitleaf_Id);
-			splitleaf.setPrevPage(presentLeafPg.getCurPage());
-			// creating temporary key data entry variables and RID to delete and from old
-			// page to new page
-			KeyDataEntry tempd, endoftmp = null;
-			RID drid = new RID();
-			System.out.println(presentLeafPg.getFirst(drid).data);
-
-			int pointer = 0;
-			for (tempd = presentLeafPg.getFirst(drid); tempd != null; tempd = presentLeafPg.getNext(drid)) {
-				pointer++;
-			}
-			// logger.info("Number of records existing in old leaf = " + pointer);
-			tempd = presentLeafPg.getFirst(drid);
-			// Transferring the second half of data to another page through for loop
-			for (int i = 1; i <= pointer; i++) {
-				if (i > pointer / 2) {
-					LeafData leaffulldata = (LeafData) tempd.data;
-					System.out.println(leaffulldata);
-					// Inserting it into the split page.
-					splitleaf.insertRecord(tempd.key, leaffulldata.getData());
-					// Copied page from old-leaf page is deleted
-					presentLeafPg.deleteSortedRecord(drid);
-					// fetch next record to be moved
-					tempd = presentLeafPg.getCurrent(drid);
-				} else {
-					// the first half goes into the old page
-					endoftmp = tempd;
-					tempd = presentLeafPg.getNext(drid);
-				}
-			}
-			// Comparision to send the record to respective page
-			if (BT.keyCompare(key, endoftmp.key) > 0) {
-				splitleaf.insertRecord(key, rid);
-			} else {
-				presentLeafPg.insertRecord(key, rid);
-			}
-			unpinPage(presentLeafPg.getCurPage(), true);
-			// filling up the tmpEntry
-			KeyDataEntry dataCopyUp;
-			tempd = splitleaf.getFirst(drid);
+			// Space not available so current page must be split into two pages
+			return splitLeaf(presentLeafPg, searchKey, rid, payload);
+		}
+	}
+
+	/**
+	 * splitLeaf splits a full, pinned leaf page: a new leaf is chained in right after it, the upper part of the
+	 * records, as splitPoint chooses it, is copied there straight from the page bytes, and the new key and RID
+	 * go to the part they belong to. Both pages are unpinned dirty and the first key of the new leaf is
+	 * returned with its page id, to be copied up into the parent.
+	 */
+	private KeyDataEntry splitLeaf(BTLeafPage presentLeafPg, BTSearchKey searchKey, RID rid, byte[] payload)
+			throws IOException, ConstructPageException, PinPageException, UnpinPageException, LeafInsertRecException,
+			IteratorException, KeyNotMatchException {
+		metrics.increment(metrics.leafSplits);
+		// leafpage with id and setting the pointers,previous and next-one on it.
+		BTLeafPage splitleaf = newLeafPage();
+		PageId splitleaf_Id = splitleaf.getCurPage();
+		// Setting the next page pointer to the next page which was previously pointed
+		// by old page
+		splitleaf.setNextPage(presentLeafPg.getNextPage());
+		// Setting old leaf next pointer to new leaf
+		presentLeafPg.setNextPage(splitleaf_Id);
+		splitleaf.setPrevPage(presentLeafPg.getCurPage());
+		PageId nextId = splitleaf.getNextPage();
+		if (nextId.pid != INVALID_PAGE && latches == null) {
+			// the old right neighbour now follows the new leaf, keep its prev link pointing back at it; writers in
+			// concurrent mode latch one page at a time and leave prev links to relinkPrevLinks
+			BTLeafPage nextLeaf = new BTLeafPage(pinPage(nextId), headerPage.get_keyType());
+			nextLeaf.setPrevPage(splitleaf_Id);
+			unpinPage(nextId, true);
+		}
+		// Transferring the upper part of the slots and records to the new page in one pass
+		byte[] leftData = presentLeafPg.getpage();
+		int count = BTPageLayout.slotCount(leftData);
+		int pos = BTPageLayout.upperBound(leftData, searchKey);
+		// the run and the last leaf are the state of a single writer, concurrent ones leave them alone
+		if (latches == null)
+			trackRun(pos, count);
+		int split = splitPoint(leftData, pos, leafRecordLength(searchKey, payload), true);
+		BTPageLayout.moveRecords(leftData, split, count, splitleaf.getpage(), 0, scratch.get());
+		// the new record goes right unless it sorts before everything that was moved, it starts the new leaf
+		// on its own when nothing was
+		byte[] rightData = splitleaf.getpage();
+		if (BTPageLayout.slotCount(rightData) == 0
+				|| searchKey.compareTo(rightData, BTPageLayout.slotOffset(rightData, 0)) >= 0) {
+			BTPageLayout.insertLeafRecord(rightData, searchKey, payload, rid);
+		} else {
+			BTPageLayout.insertLeafRecord(leftData, searchKey, payload, rid);
+		}
+		// each half can share a longer prefix than the full page did
+		compressPage(leftData);
+		compressPage(rightData);
+		// the separator only has to tell the last key on the left from the first one on the right
+		int keyType = headerPage.get_keyType();
+		KeyClass lastLeft = BTPageLayout.keyAt(leftData,
+				BTPageLayout.slotOffset(leftData, BTPageLayout.slotCount(leftData) - 1), keyType);
+		KeyClass firstRight = BTPageLayout.keyAt(splitleaf.getpage(), BTPageLayout.slotOffset(splitleaf.getpage(), 0),
+				keyType);
+		KeyClass separator = separator(lastLeft, firstRight);
+		if (latches != null)
+			latches.split(presentLeafPg.getCurPage(), splitleaf_Id, new BTSearchKey(separator, keyType).bytes());
+		if (latches == null) {
+			splitCount = BTPageLayout.slotCount(splitleaf.getpage());
+			if (ridOrdered)
+				splitRid = ridBehindKey(splitleaf.getpage(), 0);
+			if (nextId.pid == INVALID_PAGE)
+				rightmostLeaf = splitleaf_Id.pid;
+		}
+		unpinPage(presentLeafPg.getCurPage(), true);
+		unpinPage(splitleaf_Id, true);
+		return new KeyDataEntry(separator, splitleaf_Id);
+	}
+
+	/**
+	 * Inserts the entry straight into the last leaf of the chain, without descending, when the last insert
+	 * went to the end of its leaf, the entry sorts behind everything in that leaf, and the leaf has room. The
+	 * entry then belongs there whatever the index pages say, and a run of ascending keys, such as sequence
+	 * numbers or timestamps, pins one page per insert. Returns false, having changed nothing, when the entry
+	 * has to take the normal path. Files with order statistics always take it, for the counts on the way down,
+	 * and so does the key of the last entry in a file with posting lists, which goes into the list of that
+	 * entry.
+	 */
+	private boolean appendToRightmost(BTSearchKey searchKey, RID rid, byte[] payload)
+			throws PinPageException, UnpinPageException {
+		if (rightmostLeaf == INVALID_PAGE || insertRun <= 0 || counted)
+			return false;
+		PageId leafId = new PageId(rightmostLeaf);
+		byte[] data = pinPage(leafId).getpage();
+		int count = BTPageLayout.slotCount(data);
+		// freePage forgets the leaf, but a split may have put another one behind it
+		if (BTPageLayout.getInt(data, HFPage.NEXT_PAGE) != INVALID_PAGE || count == 0
+				|| searchKey.compareTo(data, BTPageLayout.slotOffset(data, count - 1)) < (postingLists ? 1 : 0)
+				|| !BTPageLayout.hasRoom(data, leafRecordLength(searchKey, payload))) {
+			unpinPage(leafId);
+			return false;
+		}
+		trackRun(BTPageLayout.insertLeafRecord(data, searchKey, payload, rid), count);
+		unpinPage(leafId, true);
+		return true;
+	}
+
+	/**
+	 * Notes that an entry went into slot pos of a leaf that held count entries before, for SPLIT_ADAPTIVE and
+	 * appendToRightmost.
+	 */
+	private void trackRun(int pos, int count) {
+		if (pos == count)
+			insertRun = insertRun > 0 ? Math.min(insertRun + 1, RUN_LENGTH) : 1;
+		else if (pos == 0)
+			insertRun = insertRun < 0 ? Math.max(insertRun - 1, -RUN_LENGTH) : -1;
+		else
+			insertRun = 0;
+	}
+
+	/**
+	 * First slot of the full page held in data that a split moves to the new page on its right, when the new
+	 * entry, which takes length bytes, goes into slot pos. SPLIT_HALF leaves both pages about equally full.
+	 * SPLIT_FILL leaves splitFill of the bytes on the side that does not take the new entry, or as close to it
+	 * as leaves room for the entry. SPLIT_APPEND leaves the page as it is when the entry goes behind all of it,
+	 * so that the entry starts the new page alone (with the last record of an index page, whose first record
+	 * is pushed up), and moves everything when the entry goes before all of it; in between it splits in half.
+	 * SPLIT_ADAPTIVE splits like SPLIT_APPEND at the end of an ascending run of inserts and at the start of a
+	 * descending one, and in half otherwise, which includes every split in concurrent mode.
+	 */
+	private int splitPoint(byte[] data, int pos, int length, boolean leaf) {
+		int count = BTPageLayout.slotCount(data);
+		int policy = splitPolicy;
+		if (policy == SPLIT_ADAPTIVE)
+			policy = latches == null && ((pos == count && insertRun >= RUN_LENGTH)
+					|| (pos == 0 && insertRun <= -RUN_LENGTH)) ? SPLIT_APPEND : SPLIT_HALF;
+		if (policy == SPLIT_FILL) {
+			// with long keys the side that takes the new entry can be too full for it, it then keeps fewer records
+			int slot = BTPageLayout.splitSlot(data, pos > count / 2 ? splitFill : 1 - splitFill);
+			int step = slot < pos ? 1 : -1;
+			for (int s = slot; s >= 1 && s < count; s += step)
+				if (BTPageLayout.splitFits(data, s, pos, length))
+					return s;
+		}
+		if (policy == SPLIT_APPEND && pos == count)
+			return leaf ? count : count - 1;
+		if (policy == SPLIT_APPEND && pos == 0)
+			return 0;
+		return BTPageLayout.splitSlot(data);
+	}
 
-			dataCopyUp = new KeyDataEntry(tempd.key, splitleaf_Id);
-			unpinPage(splitleaf_Id, true);
-			return dataCopyUp;
+	/**
+	 * setSplitPolicy chooses how full leaf and index pages are split, and keeps the choice in the header page.
+	 * SPLIT_HALF, the default, splits pages in half, which leaves every page that keys stop arriving at half
+	 * empty for good when they arrive in order. SPLIT_FILL leaves fillFactor of a page on the side the new
+	 * entry does not go to, 0.9 giving 90/10 splits. SPLIT_APPEND starts a new page for an entry that goes
+	 * behind, or before, everything on a full page. SPLIT_ADAPTIVE does so only within ascending or
+	 * descending runs of inserts, and splits in half otherwise, so that it suits mixed workloads. fillFactor
+	 * is only used by SPLIT_FILL and has to lie in [0.5, 1). Pages already split stay as they are.
+	 */
+	public void setSplitPolicy(int policy, double fillFactor) throws InsertException, IOException {
+		if (policy < SPLIT_HALF || policy > SPLIT_ADAPTIVE || fillFactor < 0.5 || fillFactor >= 1.0) {
+			logger.error("Split policy error!");
+			throw new InsertException(null, "unknown split policy or fillFactor outside [0.5, 1)");
 		}
+		setHeaderField(HDR_SPLIT_POLICY, policy);
+		setHeaderField(HDR_SPLIT_FILL, (int) Math.round(fillFactor * 100));
+		splitPolicy = policy;
+		splitFill = Math.round(fillFactor * 100) / 100.0;
+	}
+
+	public int getSplitPolicy() {
+		return splitPolicy;
+	}
+
+	/**
+	 * Bytes of payload in every leaf record, 0 unless the index is a covering index.
+	 */
+	public int getPayloadSize() {
+		return payloadSize;
 	}
 
 	/**
 	 * The insertInIndex method inserts the key and RID into an index page by recursively calling _insert with 
 	 * the appropriate child page ID.
 	 */
-	private KeyDataEntry insertInIndex(KeyClass key, RID rid, PageId presentPageId)
+	private KeyDataEntry insertInIndex(KeyClass key, BTSearchKey searchKey, RID rid, byte[] payload,
+			PageId presentPageId)
 			throws PinPageException, IOException, ConstructPageException, LeafDeleteException, ConstructPageException,
 			DeleteRecException, IndexSearchException, UnpinPageException, LeafInsertRecException, ConvertException,
 			IteratorException, IndexInsertRecException, KeyNotMatchException, NodeNotMatchException, InsertException {
-		// BTIndexPage presentidxPage associate the sorted page instance with the page
-		// instance
-		BTIndexPage presentidxPage = new BTIndexPage(presentPageId, headerPage.get_keyType());
-		PageId next_Id = presentidxPage.getPageNoByKey(key);
-		unpinPage(presentidxPage.getCurPage());
+		PageId next_Id = childFor(presentPageId, searchKey);
 		KeyDataEntry shiftdataup = null;
 		// Recursing the _insert() using shift data-up and passing correct parameters
 		// then pin it again
-		shiftdataup = insertKey(key, rid, next_Id);
+		shiftdataup = insertKey(key, searchKey, rid, payload, next_Id);
+		int childSplitCount = splitCount;
+		RID childSplitRid = splitRid;
+		if (counted) {
+			// the child gained the new entry and, when it was split, lost what went to its new sibling
+			byte[] data = pinPage(presentPageId).getpage();
+			int slot = BTPageLayout.upperBound(data, searchKey) - 1;
+			if (slot >= 0)
+				BTPageLayout.setCountAt(data, slot, BTPageLayout.countAt(data, slot) + 1
+						- (shiftdataup == null ? 0 : childSplitCount));
+			unpinPage(presentPageId, slot >= 0);
+		}
 		if (shiftdataup == null) {
 			// if shift data-up is null no split occurs and no split occur, so null is
 			// returned
 			return null;
-		} else {
-			// Check if the currentIndexPage has space for new entries
-			// currentIndexPage.available_space() >= BT.getKeyDataLength( upEntry.key,
-			// NodeType.INDEX)
-			if (presentidxPage.available_space() > BT.getKeyDataLength(shiftdataup.key, NodeType.INDEX)) {
-				// Inserting the data in page as it has space
-				IndexData data_coming = (IndexData) shiftdataup.data;
-				presentidxPage.insertKey(shiftdataup.key, data_coming.getData());
-				// un-pinning the page using pageId
-				unpinPage(presentidxPage.getCurPage(), true);
-			} else {
-				// if no space is available, split has to be done , new page has to be created
-				// after splitting,
-				// Creating a BTIndepage currentIndexPage, a variable to store its pageId
-				// CurrentIndexpageId a variable to store the pageId of the new key
-				// nextPageId=currentIndexPage.getPageNoByKey(key)
-				BTIndexPage newSplitIndex = new BTIndexPage(headerPage.get_keyType());
-				KeyDataEntry tempd, templ = null;
-				RID drid = new RID();
-				// transfering datafrom currentIndexPage to newIndexPage
-				for (tempd = presentidxPage.getFirst(drid); tempd != null; tempd = presentidxPage.getFirst(drid)) {
-					// inserting into the second index page
-					System.out.println(tempd.key);
-					IndexData data_coming = (IndexData) tempd.data;
-					// Inserting record in new index page
-					newSplitIndex.insertKey(tempd.key, data_coming.getData());
-					// Deleting record from current index page
-					presentidxPage.deleteSortedRecord(drid);
-				} // Make the split equal using other for loop to spilt the records equally
-				for (tempd = newSplitIndex.getFirst(drid); newSplitIndex.available_space() < presentidxPage
-						.available_space(); tempd = newSplitIndex.getFirst(drid)) {
-					// inserting half records into first leaf back
-					IndexData data_coming = (IndexData) (tempd.data);
-					presentidxPage.insertKey(tempd.key, data_coming.getData());
-					// removing from second index
-					newSplitIndex.deleteSortedRecord(drid);
-					templ = tempd;
-				}
-				tempd = newSplitIndex.getFirst(drid);
-				// Compare the key using BT.keyCompare( upEntry.key, tmpEntry.key)
-				if (BT.keyCompare(shiftdataup.key, tempd.key) > 0) {
-					// the new key upEntry,key goes to the newIndexPage
-					IndexData data_coming = (IndexData) (shiftdataup.data);
-					newSplitIndex.insertKey(shiftdataup.key, data_coming.getData());
-				} else {
-					// else it goes on the currentIndex page
-					IndexData data_coming = (IndexData) (shiftdataup.data);
-					presentidxPage.insertKey(shiftdataup.key, data_coming.getData());
-				}
-				// unpinning currentIndexPage as it is dirty page
-				unpinPage(presentidxPage.getCurPage(), true);
-				shiftdataup = newSplitIndex.getFirst(drid);
-				// Set the left link in the newIndexPage
-				newSplitIndex.setPrevPage(((IndexData) shiftdataup.data).getData());
-				// Delete the first record from newIndexPage
-				newSplitIndex.deleteSortedRecord(drid);
-				unpinPage(newSplitIndex.getCurPage(), true);
-				// set the higher Index page in the hierarchy to point to thenewIndexPage;
-				// ((IndexData)upEntry.data).setData(newIndexPageId)
-				((IndexData) shiftdataup.data).setData(newSplitIndex.getCurPage());
-				// Returning upEntry
-				return shiftdataup;
-			}
 		}
-		return null;
+		BTIndexPage presentidxPage = new BTIndexPage(pinPage(presentPageId), headerPage.get_keyType());
+		nodeCache.invalidate(presentPageId);
+		// Check if the currentIndexPage has space for new entries
+		BTSearchKey upKey = entryKey(shiftdataup.key, childSplitRid);
+		int slot = BTPageLayout.slotBehindChild(presentidxPage.getpage(), upKey, next_Id.pid);
+		if (BTPageLayout.hasRoom(presentidxPage.getpage(), indexEntryLength(upKey))
+				|| compressPage(presentidxPage.getpage())
+						&& BTPageLayout.hasRoom(presentidxPage.getpage(), indexEntryLength(upKey))) {
+			// Inserting the data in page as it has space
+			IndexData data_coming = (IndexData) shiftdataup.data;
+			insertIndexEntry(presentidxPage.getpage(), slot, upKey, data_coming.getData().pid, childSplitCount);
+			// un-pinning the page using pageId
+			unpinPage(presentidxPage.getCurPage(), true);
+			return null;
+		}
+		// if no space is available, split has to be done , new page has to be created
+		return splitIndex(presentidxPage, shiftdataup, slot, childSplitCount, childSplitRid);
 	}
 
-	public boolean Delete(KeyClass key, RID rid)
-			throws DeleteFashionException, LeafRedistributeException, RedistributeException, InsertRecException,
-			KeyNotMatchException, UnpinPageException, IndexInsertRecException, FreePageException,
-			RecordNotFoundException, PinPageException, IndexFullDeleteException, LeafDeleteException, IteratorException,
-			ConstructPageException, DeleteRecException, IndexSearchException, IOException {
+	/**
+	 * Length of the leaf record for key: the key, the payload of a covering index or the posting list and the
+	 * RID.
+	 */
+	private int leafRecordLength(BTSearchKey key, byte[] payload) {
+		// the key of an array page is in its slot
+		return (intArrays ? 0 : key.length()) + payload.length + 8;
+	}
+
+	/**
+	 * Length of the index record for key, which has room for the entry count of the child in a file with
+	 * order statistics and for the RID of key when it has one.
+	 */
+	private int indexEntryLength(BTSearchKey key) {
+		return (intArrays ? 0 : key.length()) + key.ridLength() + (counted ? 8 : 4);
+	}
+
+	/**
+	 * Inserts the index record <key, childPid> into the page held in data, with count as the entry count of the
+	 * child in a file with order statistics. The caller checks for room.
+	 */
+	private void insertIndexEntry(byte[] data, BTSearchKey key, int childPid, int count) {
+		insertIndexEntry(data, BTPageLayout.upperBound(data, key), key, childPid, count);
+	}
+
+	/**
+	 * insertIndexEntry into slot. Separators with an equal key are ordered like their children, which the key
+	 * alone does not tell, so rebalancing puts a separator back into the slot it belongs to rather than behind
+	 * its equals.
+	 */
+	private void insertIndexEntry(byte[] data, int slot, BTSearchKey key, int childPid, int count) {
+		if (counted)
+			BTPageLayout.insertCountedIndexRecord(data, slot, key, count, childPid);
+		else
+			BTPageLayout.insertIndexRecord(data, slot, key, childPid);
+	}
+
+	/**
+	 * Stores the keys of the leaf or index page held in data against the prefix they share, in a file with
+	 * FORMAT_PREFIX_KEYS and when that makes the page smaller, and returns whether it did.
+	 */
+	private boolean compressPage(byte[] data) {
+		return prefixKeys && BTPageLayout.compress(data, scratch.get());
+	}
+
+	/**
+	 * splitIndex splits a full, pinned index page around the entry shiftdataup that has to go into slot pos. The
+	 * upper half of the slots and records is copied straight from the page bytes to a new index page, whose first
+	 * key is then removed and returned, pointing at the new page, to be pushed up into the parent. Both pages are
+	 * unpinned dirty. rid is the RID of the separator shiftdataup in a file with RID-ordered duplicates.
+	 */
+	private KeyDataEntry splitIndex(BTIndexPage presentidxPage, KeyDataEntry shiftdataup, int pos, int count,
+			RID rid)
+			throws IOException, ConstructPageException, UnpinPageException, IndexInsertRecException,
+			IteratorException, KeyNotMatchException {
+		metrics.increment(metrics.indexSplits);
+		BTIndexPage newSplitIndex = newIndexPage();
+		// index pages are chained to the right like leaves, so that a descent can catch up with a split
+		newSplitIndex.setNextPage(presentidxPage.getNextPage());
+		presentidxPage.setNextPage(newSplitIndex.getCurPage());
+		byte[] leftData = presentidxPage.getpage();
+		byte[] rightData = newSplitIndex.getpage();
+		BTSearchKey upKey = entryKey(shiftdataup.key, rid);
+		int split = splitPoint(leftData, pos, indexEntryLength(upKey), false);
+		BTPageLayout.moveRecords(leftData, split, BTPageLayout.slotCount(leftData), rightData, 0, scratch.get());
+		// the new entry goes to the page its slot went to, the left one when it falls between them as in splitFits
+		int childPid = ((IndexData) (shiftdataup.data)).getData().pid;
+		if (pos > split) {
+			// the new key upEntry,key goes to the newIndexPage
+			insertIndexEntry(rightData, pos - split, upKey, childPid, count);
+		} else {
+			// else it goes on the currentIndex page
+			insertIndexEntry(leftData, pos, upKey, childPid, count);
+		}
+		if (counted && latches == null) {
+			// the child of the first record becomes the left link and stays below the new page
+			splitCount = BTPageLayout.sumCounts(rightData);
+		}
+		if (ridOrdered)
+			splitRid = ridBehindKey(rightData, 0);
+		if (latches != null)
+			latches.split(presentidxPage.getCurPage(), newSplitIndex.getCurPage(), keyBytes(rightData, 0));
+		compressPage(leftData);
+		// unpinning currentIndexPage as it is dirty page
+		unpinPage(presentidxPage.getCurPage(), true);
+		shiftdataup = entryAt(newSplitIndex, 0);
+		// Set the left link in the newIndexPage
+		newSplitIndex.setPrevPage(((IndexData) shiftdataup.data).getData());
+		// Delete the first record from newIndexPage
+		BTPageLayout.removeRecords(rightData, 0, 1, scratch.get());
+		compressPage(rightData);
+		unpinPage(newSplitIndex.getCurPage(), true);
+		// set the higher Index page in the hierarchy to point to thenewIndexPage;
+		// ((IndexData)upEntry.data).setData(newIndexPageId)
+		((IndexData) shiftdataup.data).setData(newSplitIndex.getCurPage());
+		// Returning upEntry
+		return shiftdataup;
+	}
+
+	/**
+	 * insertBatch inserts a batch of keys in key order. The batch is sorted first, then for every run of keys
+	 * that falls into the same leaf the tree is descended once and the leaf stays pinned while the run is
+	 * inserted. Leaf splits of a run are collected and handed to the parent index page together on the way
+	 * back up the remembered path, and whatever that produces goes to the next level in the same way.
+	 */
+	public void insertBatch(KeyClass[] keys, RID[] rids) throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException, ConstructPageException, UnpinPageException,
+			PinPageException, NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException, IOException {
+		flushWriteBuffer();
+		if (keys.length != rids.length) {
+			logger.error("Insertion error!");
+			throw new InsertException(null, "insertBatch needs exactly one rid per key");
+		}
+		insertIntoTree(keys, rids);
+	}
+
+	/**
+	 * insertBatch past the write buffer, which the merges of the buffer go through.
+	 */
+	private void insertIntoTree(KeyClass[] keys, RID[] rids) throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException, ConstructPageException, UnpinPageException,
+			PinPageException, NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException, IOException {
+		if (latches != null || counted || ridOrdered || postingLists) {
+			// other threads may change any leaf of a run, and the batch path neither keeps counts, nor carries
+			// RIDs in its separators, nor adds to posting lists, insert one key at a time
+			for (int i = 0; i < keys.length; i++)
+				insertIntoTree(keys[i], rids[i]);
+			return;
+		}
+		int[] order = sortBatch(keys);
+		int next = 0;
+		if (order.length > 0 && headerPage.get_rootId().pid == INVALID_PAGE) {
+			// the first key creates the root leaf
+			insertIntoTree(keys[order[0]], rids[order[0]]);
+			next = 1;
+		}
+		ArrayList<PageId> path = new ArrayList<PageId>();
+		KeyClass[] fence = new KeyClass[2];
+		while (next < order.length) {
+			path.clear();
+			BTLeafPage leaf = descendForInsert(keys[order[next]], path, fence);
+			PageId leafId = leaf.getCurPage();
+			KeyClass lo = fence[0], hi = fence[1];
+			ArrayList<KeyDataEntry> splits = new ArrayList<KeyDataEntry>();
+			// keep inserting into this leaf while the keys stay inside its separator range
+			while (next < order.length && inRange(keys[order[next]], lo, hi)) {
+				KeyClass key = keys[order[next]];
+				RID rid = rids[order[next]];
+				next++;
+				BTSearchKey searchKey = new BTSearchKey(key, headerPage.get_keyType());
+				if (BTPageLayout.hasRoom(leaf.getpage(), leafRecordLength(searchKey, noPayload))) {
+					BTPageLayout.insertLeafRecord(leaf.getpage(), searchKey, noPayload, rid);
+				} else {
+					KeyDataEntry upEntry = splitLeaf(leaf, searchKey, rid, noPayload);
+					splits.add(upEntry);
+					// continue in the half that the next key of the batch belongs to
+					if (next < order.length && BTSearchKey.keyCompare(keys[order[next]], upEntry.key) >= 0) {
+						lo = upEntry.key;
+						leafId = ((IndexData) upEntry.data).getData();
+					} else {
+						hi = upEntry.key;
+					}
+					leaf = new BTLeafPage(pinPage(leafId), headerPage.get_keyType());
+				}
+				if (bloom != null)
+					bloomInsert(searchKey.hash());
+			}
+			unpinPage(leafId, true);
+
+			// apply the separators of this run to the remembered path, one index page at a time
+			for (int level = path.size() - 1; level >= 0 && !splits.isEmpty(); level--) {
+				splits = insertEntries(path.get(level), splits);
+			}
+			while (!splits.isEmpty()) {
+				// the root itself was split, grow the tree by one level
+				BTIndexPage newRoot = newIndexPage();
+				PageId newRootId = newRoot.getCurPage();
+				newRoot.setPrevPage(headerPage.get_rootId());
+				newRoot.setNextPage(new PageId(INVALID_PAGE));
+				unpinPage(newRootId, true);
+				splits = insertEntries(newRootId, splits);
+				updateHeader(newRootId);
+			}
+		}
+	}
+
+	/**
+	 * descendForInsert walks from the root to the leaf that key has to be inserted into, following the same
+	 * child that getPageNoByKey would pick. The index pages passed are added to path, fence receives the
+	 * tightest separators below and above key (null when unbounded), and the leaf is returned pinned.
+	 */
+	private BTLeafPage descendForInsert(KeyClass key, ArrayList<PageId> path, KeyClass[] fence)
+			throws IOException, PinPageException, UnpinPageException, ConstructPageException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException {
+		fence[0] = null;
+		fence[1] = null;
+		return descendToLeaf(new BTSearchKey(key, headerPage.get_keyType()), false, path, fence);
+	}
+
+	/**
+	 * descendToLeaf walks from the root to the leaf that a search for searchKey ends in, continuing in each
+	 * index page with the child childFor picks (the left link when searchKey is null). Index pages of the
+	 * cached levels are read from the node cache without being pinned, the others are pinned just long enough
+	 * to choose the child and are added to the cache when they belong to those levels, so once the upper
+	 * levels are cached only the leaf is pinned. When path is not null it receives the index pages passed,
+	 * and fence is narrowed to the separators around searchKey. The leaf is returned pinned.
+	 */
+	private BTLeafPage descendToLeaf(BTSearchKey searchKey, boolean strict, ArrayList<PageId> path,
+			KeyClass[] fence) throws IOException, PinPageException, UnpinPageException, ConstructPageException {
+		int keyType = headerPage.get_keyType();
+		if (latches != null)
+			return new BTLeafPage(pinPage(latchFreeDescend(searchKey, strict, path)), keyType);
+		PageId pageId = headerPage.get_rootId();
+		BTreeNodeCache.Node parent = null;
+		for (int depth = 0;; depth++) {
+			BTreeTrace.event(BTreeTrace.VISIT, pageId.pid);
+			BTreeNodeCache.Node node = nodeCache.get(pageId);
+			if (node == null) {
+				Page page = pinPage(pageId);
+				byte[] data = page.getpage();
+				boolean leaf = BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.LEAF;
+				if (parent != null)
+					parent.leafChildren = leaf;
+				if (leaf) {
+					metrics.descended(depth);
+					return new BTLeafPage(page, keyType);
+				}
+				if (depth >= nodeCache.levels()) {
+					// below the cached levels, search the page in place
+					int slot = searchKey == null ? 0
+							: strict ? BTPageLayout.lowerBound(data, searchKey) : BTPageLayout.upperBound(data, searchKey);
+					if (fence != null) {
+						if (slot > 0)
+							fence[0] = BTPageLayout.keyAt(data, BTPageLayout.slotOffset(data, slot - 1), keyType);
+						if (slot < BTPageLayout.slotCount(data))
+							fence[1] = BTPageLayout.keyAt(data, BTPageLayout.slotOffset(data, slot), keyType);
+					}
+					PageId childId = slot == 0 ? new PageId(BTPageLayout.getInt(data, HFPage.PREV_PAGE))
+							: new PageId(BTPageLayout.childAt(data, slot - 1));
+					unpinPage(pageId);
+					if (path != null)
+						path.add(pageId);
+					pageId = childId;
+					parent = null;
+					continue;
+				}
+				node = nodeCache.put(pageId, data, keyType, ridOrdered);
+				unpinPage(pageId);
+			}
+			int child = node.childIndex(searchKey, strict);
+			if (fence != null) {
+				if (child > 0)
+					fence[0] = node.keyAt(child - 1);
+				if (child < node.keyCount())
+					fence[1] = node.keyAt(child);
+			}
+			if (path != null)
+				path.add(pageId);
+			pageId = new PageId(node.children[child]);
+			if (node.leafChildren) {
+				// the leaf is pinned right away, but counts as visited like one reached through the loop
+				BTreeTrace.event(BTreeTrace.VISIT, pageId.pid);
+				metrics.descended(depth + 1);
+				return new BTLeafPage(pinPage(pageId), keyType);
+			}
+			parent = node;
+		}
+	}
+
+	/**
+	 * insertEntries inserts a list of <key, child page> entries into the index page indexId, splitting it as
+	 * often as needed. The entries pushed up by those splits are returned for the parent, the list is empty
+	 * when the page absorbed everything.
+	 */
+	private ArrayList<KeyDataEntry> insertEntries(PageId indexId, ArrayList<KeyDataEntry> entries)
+			throws IOException, PinPageException, UnpinPageException, ConstructPageException, IndexInsertRecException,
+			DeleteRecException, IteratorException, KeyNotMatchException, NodeNotMatchException {
+		sortEntries(entries);
+		ArrayList<KeyDataEntry> pushed = new ArrayList<KeyDataEntry>();
+		nodeCache.invalidate(indexId);
+		BTIndexPage indexPage = new BTIndexPage(pinPage(indexId), headerPage.get_keyType());
+		for (int i = 0; i < entries.size(); i++) {
+			KeyDataEntry entry = entries.get(i);
+			BTSearchKey entryKey = new BTSearchKey(entry.key, headerPage.get_keyType());
+			if (BTPageLayout.hasRoom(indexPage.getpage(), indexEntryLength(entryKey))) {
+				insertIndexEntry(indexPage.getpage(), entryKey, ((IndexData) entry.data).getData().pid, 0);
+				continue;
+			}
+			KeyDataEntry upEntry = splitIndex(indexPage, entry, BTPageLayout.upperBound(indexPage.getpage(),
+					entryKey), 0, null);
+			pushed.add(upEntry);
+			// the remaining entries are sorted, move right once they pass the pushed up key
+			if (i + 1 < entries.size() && BTSearchKey.keyCompare(entries.get(i + 1).key, upEntry.key) >= 0) {
+				indexId = ((IndexData) upEntry.data).getData();
+			}
+			indexPage = new BTIndexPage(pinPage(indexId), headerPage.get_keyType());
+		}
+		unpinPage(indexId, true);
+		return pushed;
+	}
+
+	/**
+	 * separator returns the key to put between a page whose last key is left and its right sibling whose
+	 * first key is right. In a file that allows truncated separators, a string separator is the shortest
+	 * prefix of right that is still greater than left, otherwise it is right itself.
+	 */
+	private KeyClass separator(KeyClass left, KeyClass right) throws KeyNotMatchException {
+		if (!(right instanceof StringKey) || (getHeaderField(HDR_FORMAT_VERSION) & FORMAT_TRUNCATED_SEPARATORS) == 0
+				|| BTSearchKey.keyCompare(left, right) >= 0)
+			return right;
+		String a = ((StringKey) left).getKey();
+		String b = ((StringKey) right).getKey();
+		int common = 0;
+		while (common < a.length() && a.charAt(common) == b.charAt(common))
+			common++;
+		// b is longer than the common prefix, as a < b
+		return common + 1 == b.length() ? right : new StringKey(b.substring(0, common + 1));
+	}
+
+	private static boolean inRange(KeyClass key, KeyClass lo, KeyClass hi) throws KeyNotMatchException {
+		return (lo == null || BTSearchKey.keyCompare(key, lo) >= 0)
+				&& (hi == null || BTSearchKey.keyCompare(key, hi) < 0);
+	}
+
+	/**
+	 * sortBatch returns the positions of keys in ascending key order, equal keys keep their batch order.
+	 */
+	private static int[] sortBatch(KeyClass[] keys) throws KeyNotMatchException {
+		int[] order = new int[keys.length];
+		int[] merged = new int[keys.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		// bottom-up merge sort, BTSearchKey.keyCompare cannot be used from a Comparator
+		for (int width = 1; width < order.length; width *= 2) {
+			for (int lo = 0; lo < order.length; lo += 2 * width) {
+				int mid = Math.min(lo + width, order.length);
+				int hi = Math.min(lo + 2 * width, order.length);
+				int a = lo, b = mid, k = lo;
+				while (a < mid && b < hi)
+					merged[k++] = BTSearchKey.keyCompare(keys[order[b]], keys[order[a]]) < 0 ? order[b++]
+							: order[a++];
+				while (a < mid)
+					merged[k++] = order[a++];
+				while (b < hi)
+					merged[k++] = order[b++];
+			}
+			int[] swap = order;
+			order = merged;
+			merged = swap;
+		}
+		return order;
+	}
+
+	private static void sortEntries(ArrayList<KeyDataEntry> entries) throws KeyNotMatchException {
+		for (int i = 1; i < entries.size(); i++) {
+			KeyDataEntry entry = entries.get(i);
+			int j = i - 1;
+			while (j >= 0 && BTSearchKey.keyCompare(entries.get(j).key, entry.key) > 0) {
+				entries.set(j + 1, entries.get(j));
+				j--;
+			}
+			entries.set(j + 1, entry);
+		}
+	}
+
+	public boolean Delete(KeyClass key, RID rid)
+			throws DeleteFashionException, LeafRedistributeException, RedistributeException, InsertRecException,
+			KeyNotMatchException, UnpinPageException, IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException, IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException, IOException {
+		long start = metrics.start(BTreeMetrics.DELETE);
+		try {
+			boolean deleted = writeBuffer != null ? bufferDelete(key, rid) : deleteEntry(key, rid);
+			metrics.increment(deleted ? metrics.deleteHits : metrics.deleteMisses);
+			return deleted;
+		} finally {
+			metrics.finish(BTreeMetrics.DELETE, start);
+		}
+	}
+
+	private boolean deleteEntry(KeyClass key, RID rid) throws DeleteFashionException, LeafRedistributeException,
+			RedistributeException, InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException, RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException, ConstructPageException,
+			DeleteRecException, IndexSearchException, IOException {
+		boolean deleted;
+		if (latches != null)
+			deleted = concurrentDelete(new BTSearchKey(key, headerPage.get_keyType()), rid);
 		// If the database is set to use naive deletion, the method calls the NaiveDelete method to perform the deletion.
-		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
+		else if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
+			deleted = NaiveDelete(key, rid);
+		else if (headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE)
+			deleted = FullDelete(key, rid);
 		else
 			// If the database is not set to use naive deletion, the method throws a DeleteFashionException, 
 			// indicating that the desired deletion method is not supported.
 			throw new DeleteFashionException(null, "");
+		if (deleted && bloom != null)
+			bloomDelete(1);
+		return deleted;
+	}
+
+	/**
+	 * What deleteRange found at the edges of the range on every level, 0 being the leaves: the first and the
+	 * last page it read there, which it trims, their outer neighbours on that level, and whether they were
+	 * emptied. removed counts the entries that are known to be gone, freedLeaves the leaves that were freed
+	 * without being read.
+	 */
+	private static final class RangeCut {
+		// the range is unbounded on that side, and no page is left before or after it
+		boolean toStart;
+		boolean toEnd;
+		final int[] leftPage;
+		final int[] leftPrev;
+		final boolean[] leftEmptied;
+		final int[] rightPage;
+		final int[] rightNext;
+		final boolean[] rightEmptied;
+		// entries on the first leaf before it was trimmed, taken as the size of the leaves that are not read
+		int sample;
+		int removed;
+		int freedLeaves;
+
+		RangeCut(int levels) {
+			leftPage = new int[levels + 1];
+			Arrays.fill(leftPage, INVALID_PAGE);
+			leftPrev = new int[levels + 1];
+			leftEmptied = new boolean[levels + 1];
+			rightPage = new int[levels + 1];
+			rightNext = new int[levels + 1];
+			rightEmptied = new boolean[levels + 1];
+		}
+	}
+
+	/**
+	 * deleteRange deletes every entry with lo_key <= key <= hi_key, null meaning unbounded on that side. It
+	 * descends once along the two edges of the range, trims the leaf at either edge in place, and frees the
+	 * subtrees in between as whole pages: the index pages among them are read for their children, the leaves
+	 * are freed without being read. The index entries of the freed pages are removed on the way back up, the
+	 * pages left on both sides are linked to each other on every level, and a root left with a single child is
+	 * replaced by it, so the time taken grows with the pages of the range rather than its entries. Only in a
+	 * file with posting lists are the leaves in between read, for their overflow chains. Pages at the edges
+	 * may be left less than half full, also under FULL_DELETE, until later deletes rebalance them or compact
+	 * packs the tree. The file must not be in concurrent mode.
+	 */
+	public void deleteRange(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException, FreePageException {
+		flushWriteBuffer();
+		if (latches != null) {
+			logger.error("Delete range error!");
+			throw new IteratorException(null, "deleteRange does not run in concurrent mode");
+		}
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid == INVALID_PAGE
+				|| (lo_key != null && hi_key != null && BTSearchKey.keyCompare(lo_key, hi_key) > 0))
+			return;
+		int keyType = headerPage.get_keyType();
+		BTSearchKey loKey = lo_key == null ? null : new BTSearchKey(lo_key, keyType);
+		BTSearchKey hiKey = hi_key == null ? null : new BTSearchKey(hi_key, keyType);
+		// levels below the root, all leaves are equally deep
+		int levels = 0;
+		for (PageId pageId = rootId;; levels++) {
+			byte[] data = pinPage(pageId).getpage();
+			boolean leaf = BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.LEAF;
+			int left = BTPageLayout.getInt(data, HFPage.PREV_PAGE);
+			unpinPage(pageId);
+			if (leaf)
+				break;
+			pageId = new PageId(left);
+		}
+		RangeCut cut = new RangeCut(levels);
+		cut.toStart = loKey == null;
+		cut.toEnd = hiKey == null;
+		int total = counted ? getHeaderField(HDR_COUNT_TOTAL) : 0;
+		int result = deleteRange(rootId, levels, loKey, hiKey, total, cut, INVALID_PAGE);
+		if (result != DELETED) {
+			if (result == EMPTIED)
+				freePage(rootId);
+			updateHeader(new PageId(INVALID_PAGE));
+		} else {
+			relinkPages(cut, levels);
+			collapseRoot();
+		}
+		if (counted)
+			setHeaderField(HDR_COUNT_TOTAL, total - cut.removed);
+		if (bloom != null) {
+			if (headerPage.get_rootId().pid == INVALID_PAGE)
+				createBloomFilter(getHeaderField(HDR_BLOOM_BITS_PER_KEY));
+			else
+				bloomDelete(cut.removed + (counted ? 0 : cut.freedLeaves * Math.max(cut.sample, 1)));
+		}
+	}
+
+	/**
+	 * deleteRange below pageId, which has levels levels of pages below it and total entries in a file with
+	 * order statistics. loKey or hiKey are null when the subtree lies entirely on that side of them, with both
+	 * null it is freed without reading its leaves. Index entries of children that are emptied are removed and
+	 * the children freed. prev is the page left of pageId on its level, which an index page has no link to.
+	 * Returns EMPTIED when pageId has no entries or children left, for the caller to free, FREED when it was
+	 * freed with its whole subtree, or DELETED otherwise.
+	 */
+	private int deleteRange(PageId pageId, int levels, BTSearchKey loKey, BTSearchKey hiKey, int total,
+			RangeCut cut, int prev) throws IOException, PinPageException, UnpinPageException, FreePageException {
+		if (loKey == null && hiKey == null) {
+			freeSubtree(pageId, levels, cut);
+			cut.removed += total;
+			return FREED;
+		}
+		byte[] data = pinPage(pageId).getpage();
+		int count = BTPageLayout.slotCount(data);
+		boolean leftEdge = cut.leftPage[levels] == INVALID_PAGE;
+		if (leftEdge) {
+			cut.leftPage[levels] = pageId.pid;
+			cut.leftPrev[levels] = levels == 0 ? BTPageLayout.getInt(data, HFPage.PREV_PAGE) : prev;
+		}
+		cut.rightPage[levels] = pageId.pid;
+		cut.rightNext[levels] = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+		cut.rightEmptied[levels] = false;
+		if (levels == 0) {
+			int from = loKey == null ? 0 : BTPageLayout.lowerBound(data, loKey);
+			int to = hiKey == null ? count : BTPageLayout.upperBound(data, hiKey);
+			if (leftEdge)
+				cut.sample = count;
+			if (from < to) {
+				if (postingLists)
+					freeChains(data, from, to);
+				BTPageLayout.removeRecords(data, from, to, scratch.get());
+				cut.removed += to - from;
+			}
+			boolean emptied = BTPageLayout.slotCount(data) == 0;
+			cut.leftEmptied[0] |= leftEdge && emptied;
+			cut.rightEmptied[0] = emptied;
+			unpinPage(pageId, from < to);
+			return emptied ? EMPTIED : DELETED;
+		}
+
+		nodeCache.invalidate(pageId);
+		// children a and b hold the edges of the range, -1 standing for the left link, the ones in between
+		// lie entirely inside it
+		int a = loKey == null ? -1 : BTPageLayout.lowerBound(data, loKey) - 1;
+		int b = hiKey == null ? count - 1 : BTPageLayout.upperBound(data, hiKey) - 1;
+		int[] children = new int[b - a + 1];
+		int[] totals = new int[b - a + 1];
+		for (int child = a; child <= b; child++) {
+			children[child - a] = child < 0 ? BTPageLayout.getInt(data, HFPage.PREV_PAGE)
+					: BTPageLayout.childAt(data, child);
+			totals[child - a] = childTotal(data, child, total);
+		}
+		int removedBefore = cut.removed;
+		int[] results = new int[b - a + 1];
+		for (int child = a; child <= b; child++) {
+			int removed = cut.removed;
+			// a subtree right of a lies above loKey, one left of b below hiKey
+			int childPrev = child > a ? children[child - a - 1] : child == 0 ? BTPageLayout.getInt(data,
+					HFPage.PREV_PAGE) : child > 0 ? BTPageLayout.childAt(data, child - 1) : lastChild(prev);
+			results[child - a] = deleteRange(new PageId(children[child - a]), levels - 1,
+					child > a ? null : loKey, child < b ? null : hiKey, totals[child - a], cut, childPrev);
+			if (results[child - a] == EMPTIED)
+				freePage(new PageId(children[child - a]));
+			else if (counted && results[child - a] == DELETED && child >= 0)
+				BTPageLayout.setCountAt(data, child, totals[child - a] - (cut.removed - removed));
+		}
+		// the children that are gone are a contiguous run among a .. b
+		int first = results[0] == DELETED ? a + 1 : a;
+		int last = b > a && results[b - a] == DELETED ? b - 1 : b;
+		if (b == a && results[0] == DELETED)
+			last = a - 1;
+		boolean dirty = first <= last || (counted && cut.removed > removedBefore);
+		if (first <= last) {
+			if (first < 0 && last == count - 1) {
+				cut.leftEmptied[levels] |= cut.leftPage[levels] == pageId.pid;
+				cut.rightEmptied[levels] = true;
+				unpinPage(pageId, true);
+				return EMPTIED;
+			}
+			if (first < 0) {
+				// the first child that is left becomes the left link, its index entry goes
+				BTPageLayout.putInt(data, HFPage.PREV_PAGE, BTPageLayout.childAt(data, last + 1));
+				BTPageLayout.removeRecords(data, 0, last + 2, scratch.get());
+			} else {
+				BTPageLayout.removeRecords(data, first, last + 1, scratch.get());
+			}
+		}
+		unpinPage(pageId, dirty);
+		return DELETED;
+	}
+
+	/**
+	 * Frees pageId and everything below it, where levels levels of pages lie. Only index pages are read, and
+	 * the leaves of a file with posting lists for their overflow chains.
+	 */
+	private void freeSubtree(PageId pageId, int levels, RangeCut cut)
+			throws PinPageException, UnpinPageException, FreePageException, IOException {
+		if (levels > 0) {
+			byte[] data = pinPage(pageId).getpage();
+			int[] children = new int[BTPageLayout.slotCount(data) + 1];
+			children[0] = BTPageLayout.getInt(data, HFPage.PREV_PAGE);
+			for (int slot = 1; slot < children.length; slot++)
+				children[slot] = BTPageLayout.childAt(data, slot - 1);
+			unpinPage(pageId);
+			nodeCache.invalidate(pageId);
+			for (int child : children)
+				freeSubtree(new PageId(child), levels - 1, cut);
+		} else {
+			if (postingLists)
+				freeChains(pageId);
+			cut.freedLeaves++;
+		}
+		freePage(pageId);
+	}
+
+	/**
+	 * Links the pages left on both sides of a deleted range to each other, past the pages that were freed, on
+	 * every level below the root, which has levels levels below it. Leaves are linked both ways, index pages
+	 * only have right links.
+	 */
+	private void relinkPages(RangeCut cut, int levels) throws PinPageException, UnpinPageException {
+		for (int level = 0; level < levels; level++) {
+			if (cut.leftPage[level] == INVALID_PAGE || (!cut.toStart && !cut.toEnd
+					&& cut.leftPage[level] == cut.rightPage[level] && !cut.leftEmptied[level]))
+				continue;
+			// with the range open on one side only the page at its other edge was read
+			int left = cut.toStart ? INVALID_PAGE : cut.leftEmptied[level] ? cut.leftPrev[level]
+					: cut.leftPage[level];
+			int right = cut.toEnd ? INVALID_PAGE : cut.rightEmptied[level] ? cut.rightNext[level]
+					: cut.rightPage[level];
+			if (left != INVALID_PAGE) {
+				PageId leftId = new PageId(left);
+				BTPageLayout.putInt(pinPage(leftId).getpage(), HFPage.NEXT_PAGE, right);
+				unpinPage(leftId, true);
+			}
+			if (level == 0 && right != INVALID_PAGE) {
+				PageId rightId = new PageId(right);
+				BTPageLayout.putInt(pinPage(rightId).getpage(), HFPage.PREV_PAGE, left);
+				unpinPage(rightId, true);
+			}
+		}
+	}
+
+	/**
+	 * Last child of the index page pid, INVALID_PAGE for no page.
+	 */
+	private int lastChild(int pid) throws PinPageException, UnpinPageException {
+		if (pid == INVALID_PAGE)
+			return INVALID_PAGE;
+		PageId pageId = new PageId(pid);
+		byte[] data = pinPage(pageId).getpage();
+		int count = BTPageLayout.slotCount(data);
+		int child = count == 0 ? BTPageLayout.getInt(data, HFPage.PREV_PAGE)
+				: BTPageLayout.childAt(data, count - 1);
+		unpinPage(pageId);
+		return child;
+	}
+
+	/**
+	 * lookup returns the RID of an entry with key, or null when there is none. It descends once and unpins the
+	 * leaf before it returns. When the index has a Bloom filter, a key that the filter rules out is answered
+	 * without reading any index or leaf page.
+	 */
+	public RID lookup(KeyClass key) throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		long start = metrics.start(BTreeMetrics.LOOKUP);
+		try {
+			return lookupEntry(key);
+		} finally {
+			metrics.finish(BTreeMetrics.LOOKUP, start);
+		}
+	}
+
+	private RID lookupEntry(KeyClass key) throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (writeBuffer != null) {
+			BTreeCursor cursor = cursor(key, key, true, 0);
+			RID rid = cursor.next() ? new RID(new PageId(cursor.ridPageNo()), cursor.ridSlotNo()) : null;
+			cursor.close();
+			return rid;
+		}
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return null;
+		BTSearchKey searchKey = new BTSearchKey(key, headerPage.get_keyType());
+		if (bloom != null && !bloom.mightContain(searchKey.hash()))
+			return null;
+		if (latches != null)
+			return concurrentLookup(searchKey);
+		RID position = new RID();
+		BTLeafPage leaf = findRunStart(searchKey, position);
+		if (leaf == null)
+			return null;
+		byte[] data = leaf.getpage();
+		RID rid = null;
+		if (searchKey.compareTo(data, BTPageLayout.slotOffset(data, position.slotNo)) == 0) {
+			rid = new RID();
+			BTPageLayout.ridAt(data, position.slotNo, rid);
+		}
+		unpinPage(position.pageNo);
+		return rid;
+	}
+
+	public boolean contains(KeyClass key) throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		return lookup(key) != null;
+	}
+
+	/**
+	 * enableWriteBuffer with WRITE_BUFFER_SYNC.
+	 */
+	public void enableWriteBuffer(String logName, int capacity)
+			throws IOException, KeyNotMatchException, IteratorException {
+		enableWriteBuffer(logName, capacity, WRITE_BUFFER_SYNC);
+	}
+
+	/**
+	 * enableWriteBuffer puts a write buffer in front of the tree, see BTreeWriteBuffer. insert and Delete then
+	 * only go to the buffer and its log at logName, lookup, contains and openCursor merge the buffer with the
+	 * tree, and once the buffer holds capacity changes they are handed to a merger thread that merges them
+	 * into the tree together, see flushWriteBuffer. insert and Delete go on filling an empty buffer meanwhile
+	 * and only wait for the merge when that one is full too, every other operation waits for it and merges
+	 * the rest of the buffer first. Changes a log at logName still holds from a process that did not get to
+	 * merge them are taken back into the buffer. Delete returns true for every delete it buffers, since it
+	 * does not read the tree to find out. The buffer goes neither with concurrent mode nor with posting lists.
+	 *
+	 * With durability WRITE_BUFFER_SYNC insert and Delete return once their log record is forced to the disk.
+	 * WRITE_BUFFER_GROUP_COMMIT forces the log once for a group of records instead, so a crash of the machine
+	 * may lose the last changes that returned, up to a group of them; syncWriteBuffer forces what is left.
+	 */
+	public void enableWriteBuffer(String logName, int capacity, int durability)
+			throws IOException, KeyNotMatchException, IteratorException {
+		if (latches != null || payloadSize > 0 || postingLists) {
+			logger.error("Write buffer error!");
+			throw new IteratorException(null,
+					"the write buffer goes neither with concurrent mode nor with payload or posting lists");
+		}
+		if (durability != WRITE_BUFFER_SYNC && durability != WRITE_BUFFER_GROUP_COMMIT) {
+			logger.error("Write buffer error!");
+			throw new IteratorException(null, "unknown write buffer durability " + durability);
+		}
+		disableWriteBuffer();
+		writeBuffer = new BTreeWriteBuffer(logName, capacity, headerPage.get_keyType(),
+				durability == WRITE_BUFFER_GROUP_COMMIT);
+	}
+
+	/**
+	 * Drops the write buffer once it is closed or discarded, keeping the counts of its log.
+	 */
+	private void forgetWriteBuffer() {
+		logBytes += writeBuffer.logBytes();
+		logSyncs += writeBuffer.syncs();
+		writeBuffer = null;
+	}
+
+	/**
+	 * Writes the pages of the file that changed in memory to the database file, those of the page store and
+	 * the header page, which stays with the buffer manager. The write buffer is not merged for that, see
+	 * flushWriteBuffer.
+	 */
+	public void flushPages() throws IOException {
+		try {
+			store.flush();
+			if (store != BufferPoolPageStore.INSTANCE)
+				BufferPoolPageStore.INSTANCE.flush();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Forces the log of the write buffer to the disk, so that every insert and Delete that returned survives
+	 * a crash of the machine under WRITE_BUFFER_GROUP_COMMIT too. Does nothing without a write buffer.
+	 */
+	public void syncWriteBuffer() throws IOException {
+		if (writeBuffer != null)
+			writeBuffer.sync();
+	}
+
+	/**
+	 * Merges the write buffer into the tree and removes it along with its log.
+	 */
+	public void disableWriteBuffer() throws IOException {
+		if (writeBuffer == null)
+			return;
+		flushWriteBuffer();
+		writeBuffer.discard();
+		forgetWriteBuffer();
+	}
+
+	/**
+	 * flushWriteBuffer merges the write buffer into the tree: the buffered deletes one at a time, each of them
+	 * deleting the entry if the tree holds it, then the buffered inserts through insertBatch, which pins and
+	 * dirties each leaf once per run of keys that goes into it instead of once per key. The pages are written to
+	 * the database file before the changes leave the buffer and the log is emptied. Does nothing without a write
+	 * buffer. A merge running on the merger thread is waited for, and the rest of the buffer is merged on the
+	 * calling thread. A merge that fails halfway keeps the changes in the buffer and the log. The merge after it,
+	 * like the first merge of changes read back from a log, cannot know which of them reached the tree: it counts
+	 * an entry <key, rid> that is in the tree as inserted, so that applying the changes again adds nothing twice,
+	 * and deletes what is left.
+	 */
+	public void flushWriteBuffer() throws IOException {
+		BTreeWriteBuffer buffer = writeBuffer;
+		if (buffer == null)
+			return;
+		awaitMerge();
+		if (buffer.isEmpty())
+			return;
+		boolean mayBeMerged = buffer.mayBeMerged();
+		mergeIntoTree(buffer, buffer.handOff(), mayBeMerged);
+	}
+
+	/**
+	 * Hands the full write buffer to a merger thread, once the merge before has finished. The tree is left
+	 * to the merge until awaitMerge, insert and Delete only change the buffer meanwhile.
+	 */
+	private void startMerge() throws IOException {
+		awaitMerge();
+		final BTreeWriteBuffer buffer = writeBuffer;
+		final BTreeWriteBuffer.Change[] changes = buffer.handOff();
+		merge = MERGER.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				mergeIntoTree(buffer, changes, false);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Waits for the merge running on the merger thread, if there is one, and passes on its failure. The
+	 * changes of a failed merge are back in the buffer then.
+	 */
+	private void awaitMerge() throws IOException {
+		Future<Void> running = merge;
+		if (running == null)
+			return;
+		merge = null;
+		try {
+			running.get();
+		} catch (InterruptedException e) {
+			// the merge goes on, wait for it once more the next time
+			merge = running;
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for the write buffer merge");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Merges changes, which were handed off by buffer, into the tree. mayBeMerged tells that some of them may
+	 * be there already, see flushWriteBuffer.
+	 */
+	private void mergeIntoTree(BTreeWriteBuffer buffer, BTreeWriteBuffer.Change[] changes, boolean mayBeMerged)
+			throws IOException {
+		boolean merged = false;
+		try {
+			ArrayList<KeyClass> keys = new ArrayList<KeyClass>();
+			ArrayList<RID> rids = new ArrayList<RID>();
+			for (BTreeWriteBuffer.Change change : changes) {
+				int deletes = change.deletes;
+				int inserts = change.inserts;
+				if (mayBeMerged && inserts > 0) {
+					// the copies in the tree are what the last merge inserted
+					inserts = Math.max(inserts - copiesInTree(change.key, change.rid), 0);
+					deletes = 0;
+				}
+				// the deletes were taken blind, the first that finds nothing ends them
+				for (int i = 0; i < deletes && deleteEntry(change.key, change.rid); i++)
+					;
+				for (int i = 0; i < inserts; i++) {
+					keys.add(change.key);
+					rids.add(change.rid);
+				}
+			}
+			insertIntoTree(keys.toArray(new KeyClass[keys.size()]), rids.toArray(new RID[rids.size()]));
+			flushPages();
+			merged = true;
+			buffer.merged();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException(e);
+		} finally {
+			if (!merged)
+				buffer.mergeFailed();
+		}
+	}
+
+	/**
+	 * Merges a write buffer whose changes may already be partly in the tree before it is read or changed, so
+	 * that no entry is counted both in the tree and in the buffer.
+	 */
+	private void settleWriteBuffer() throws IOException {
+		if (writeBuffer != null && writeBuffer.mayBeMerged())
+			flushWriteBuffer();
+	}
+
+	/**
+	 * Delete with a write buffer. The delete is buffered blind, reading no page, and returns true: whether the
+	 * tree held the entry is only settled by the merge.
+	 */
+	private boolean bufferDelete(KeyClass key, RID rid) throws IOException, KeyNotMatchException {
+		settleWriteBuffer();
+		writeBuffer.delete(key, rid);
+		if (writeBuffer.isFull())
+			startMerge();
+		return true;
+	}
+
+	/**
+	 * Number of times the entry <key, rid> is in the tree, leaving the write buffer aside.
+	 */
+	private int copiesInTree(KeyClass key, RID rid) throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (bloom != null && !bloom.mightContain(new BTSearchKey(key, headerPage.get_keyType()).hash()))
+			return 0;
+		int copies = 0;
+		BTreeCursor cursor = cursor(key, key, false, 0);
+		while (cursor.next())
+			if (cursor.ridPageNo() == rid.pageNo.pid && cursor.ridSlotNo() == rid.slotNo)
+				copies++;
+		cursor.close();
+		return copies;
+	}
+
+	/**
+	 * enableOrderStatistics makes the file keep, next to every child pointer of its index pages, the number of
+	 * entries below that child, and the number of all entries in the header page. countRange, rank and select
+	 * then take one page per level instead of reading the leaves. The counts sit between the key and the child
+	 * page number of an index record, so the pages stay readable for BTIndexPage. Counts can only be turned
+	 * on for an empty file and stay on for good. They do not go with posting lists.
+	 */
+	public void enableOrderStatistics() throws InsertException, IOException {
+		if (counted)
+			return;
+		if (headerPage.get_rootId().pid != INVALID_PAGE || postingLists) {
+			logger.error("Order statistics error!");
+			throw new InsertException(null, "enableOrderStatistics needs an empty tree without posting lists");
+		}
+		setHeaderField(HDR_COUNTS, COUNTS_EXACT);
+		setHeaderField(HDR_COUNT_TOTAL, 0);
+		counted = true;
+	}
+
+	/**
+	 * enableRidOrder keeps the duplicates of every key sorted by RID, page number first, so that they form a
+	 * posting list that may run over many leaves. Every separator then carries the RID of the first entry to
+	 * its right behind its key, and insert and Delete search for the pair <key, rid> as a whole: both descend
+	 * straight to the place of the entry and binary search the leaf, instead of going to the end or the start
+	 * of the run and walking it. Leaf records keep their layout, so scans still return one entry per RID. Like
+	 * order statistics, RID order can only be turned on for an empty file, stays on for good, and does not go
+	 * with concurrent mode. An integer index with RID order is built from slotted pages instead of array pages.
+	 */
+	public void enableRidOrder() throws InsertException, IOException {
+		if (ridOrdered)
+			return;
+		if (headerPage.get_rootId().pid != INVALID_PAGE || latches != null || payloadSize > 0 || postingLists) {
+			logger.error("RID order error!");
+			throw new InsertException(null, "enableRidOrder needs an empty tree outside of concurrent mode and "
+					+ "without payload or posting lists");
+		}
+		setHeaderField(HDR_RID_ORDER, 1);
+		ridOrdered = true;
+		// an array page has no room for the RID behind the key of a separator
+		setHeaderField(HDR_FORMAT_VERSION, getHeaderField(HDR_FORMAT_VERSION) & ~FORMAT_INT_ARRAYS);
+		intArrays = false;
+	}
+
+	/**
+	 * enablePostingLists keeps every key once in the leaves, in a record that holds all of its RIDs sorted by
+	 * BTSearchKey.ridValue, see BTPostingList, instead of one leaf record per RID. The list is delta-encoded
+	 * behind the key, and moves to a chain of overflow pages once the record would take more than a quarter of
+	 * a page. insert and Delete descend to the one record of their key and binary search its list, or the
+	 * overflow page that holds their RID, and scans still return one entry per RID, in RID order within a key;
+	 * lookup returns the first one. Posting lists can only be turned on for an empty file and stay on for good.
+	 * They go neither with order statistics, RID order, payload, a write buffer nor concurrent mode, and the
+	 * keys have to leave room for a chained list in a quarter of a page. An integer index with posting lists is
+	 * built from slotted pages instead of array pages, and new_scan reads it through a cursor, as BTFileScan
+	 * would only see the first RID of every key.
+	 */
+	public void enablePostingLists() throws InsertException, IOException {
+		if (postingLists)
+			return;
+		if (headerPage.get_rootId().pid != INVALID_PAGE || latches != null || writeBuffer != null || counted
+				|| ridOrdered || payloadSize > 0
+				|| headerPage.get_maxKeySize() + BTPostingList.CHAINED_LENGTH + 8 > BTPostingList.MAX_RECORD) {
+			logger.error("Posting list error!");
+			throw new InsertException(null, "enablePostingLists needs an empty tree with short keys, outside of "
+					+ "concurrent mode and without order statistics, RID order, payload or write buffer");
+		}
+		// an array page has no room for a list behind the key
+		setHeaderField(HDR_FORMAT_VERSION,
+				(getHeaderField(HDR_FORMAT_VERSION) | FORMAT_POSTING_LISTS) & ~FORMAT_INT_ARRAYS);
+		postingLists = true;
+		intArrays = false;
+	}
+
+	boolean hasPostingLists() {
+		return postingLists;
+	}
+
+	/**
+	 * The posting list of a record of key that keeps values[0] as its RID and values [1, count), which ascend,
+	 * in the list: inline when the record takes no more than BTPostingList.MAX_RECORD bytes that way, on a new
+	 * overflow chain otherwise.
+	 */
+	private byte[] postingList(BTSearchKey key, long[] values, int count)
+			throws ConstructPageException, UnpinPageException {
+		byte[] list = BTPostingList.inlineList(values, 1, count);
+		if (key.length() + list.length + 8 <= BTPostingList.MAX_RECORD)
+			return list;
+		return BTPostingList.chainedList(newChain(values, 1, count), count - 1);
+	}
+
+	/**
+	 * Adds rid to the posting list of the leaf record in slot of the pinned leaf held in data, whose key is
+	 * key. A list on an overflow chain is changed in place, and null is returned. Otherwise the record has to be
+	 * written anew: the list it takes then is returned, and first is set to the RID it keeps.
+	 */
+	private byte[] addPosting(byte[] data, int slot, BTSearchKey key, RID rid, RID first)
+			throws ConstructPageException, PinPageException, UnpinPageException, IOException {
+		int keyType = headerPage.get_keyType();
+		long value = BTSearchKey.ridValue(rid.pageNo.pid, rid.slotNo);
+		long smallest = BTPageLayout.ridValueAt(data, slot);
+		if (BTPostingList.isChained(data, slot, keyType)) {
+			// the record keeps the smallest RID, which moves to the chain when rid is smaller still
+			chainInsert(data, BTPostingList.listOffset(data, slot, keyType), Math.max(value, smallest));
+			BTPostingList.setFirst(data, slot, Math.min(value, smallest));
+			return null;
+		}
+		int count = BTPostingList.size(data, slot, keyType);
+		long[] values = new long[count + 1];
+		BTPostingList.decodeInline(data, slot, keyType, values);
+		int pos = BTPostingList.upperBound(values, count, value);
+		System.arraycopy(values, pos, values, pos + 1, count - pos);
+		values[pos] = value;
+		first.pageNo = new PageId((int) (values[0] >>> 32));
+		first.slotNo = (int) values[0];
+		return postingList(key, values, count + 1);
+	}
+
+	/**
+	 * Takes rid out of the posting list of the leaf record in slot of the pinned leaf held in data, whose key is
+	 * key, every copy of it with all set and one otherwise, and returns how many copies it took. The record goes
+	 * with its last RID.
+	 */
+	private int removePosting(byte[] data, int slot, BTSearchKey key, RID rid, boolean all)
+			throws PinPageException, UnpinPageException, FreePageException, IOException {
+		int keyType = headerPage.get_keyType();
+		long value = BTSearchKey.ridValue(rid.pageNo.pid, rid.slotNo);
+		int removed = 0;
+		boolean found = true;
+		while (found && (removed == 0 || all) && BTPostingList.isChained(data, slot, keyType)) {
+			int off = BTPostingList.listOffset(data, slot, keyType);
+			if (value == BTPageLayout.ridValueAt(data, slot)) {
+				// the smallest RID of the chain takes the place of the one in the record
+				long next = chainFirst(data, off);
+				chainRemove(data, off, next);
+				BTPostingList.setFirst(data, slot, next);
+			} else {
+				found = chainRemove(data, off, value);
+			}
+			if (found) {
+				removed++;
+				foldChain(data, slot, key);
+			}
+		}
+		if (!found || (removed > 0 && !all) || BTPostingList.isChained(data, slot, keyType))
+			return removed;
+		int count = BTPostingList.size(data, slot, keyType);
+		long[] values = new long[count];
+		BTPostingList.decodeInline(data, slot, keyType, values);
+		int from = BTPostingList.lowerBound(values, count, value);
+		int to = BTPostingList.upperBound(values, count, value);
+		if (!all)
+			to = Math.min(to, from + 1);
+		if (from == to)
+			return removed;
+		System.arraycopy(values, to, values, from, count - to);
+		count -= to - from;
+		BTPageLayout.removeRecords(data, slot, slot + 1, scratch.get());
+		// a shorter list never takes more room than the one it replaces
+		if (count > 0)
+			BTPageLayout.insertLeafRecord(data, key, BTPostingList.inlineList(values, 1, count),
+					BTPostingList.rid(values[0]));
+		return removed + to - from;
+	}
+
+	/**
+	 * Moves the overflow chain of the leaf record in slot of the pinned leaf held in data, whose key is key, back
+	 * into the record once it is down to BTPostingList.FOLD_COUNT RIDs, the record then takes no more than half of
+	 * BTPostingList.MAX_RECORD, and the page has room for it. The margin keeps a list from going back and forth
+	 * between the two on every other insert and delete. A chain that was emptied always goes.
+	 */
+	private void foldChain(byte[] data, int slot, BTSearchKey key)
+			throws PinPageException, UnpinPageException, FreePageException, IOException {
+		int keyType = headerPage.get_keyType();
+		int off = BTPostingList.listOffset(data, slot, keyType);
+		int count = BTPostingList.chainCount(data, off);
+		if (count > BTPostingList.FOLD_COUNT)
+			return;
+		int head = BTPostingList.chainHead(data, off);
+		long[] values = new long[count + 1];
+		values[0] = BTPageLayout.ridValueAt(data, slot);
+		readChain(head, values, 1);
+		byte[] list = BTPostingList.inlineList(values, 1, count + 1);
+		if (count > 0 && (key.length() + list.length + 8 > BTPostingList.MAX_RECORD / 2
+				|| list.length - BTPostingList.CHAINED_LENGTH > BTPageLayout.freeSpace(data)))
+			return;
+		freeChain(head);
+		BTPageLayout.removeRecords(data, slot, slot + 1, scratch.get());
+		BTPageLayout.insertLeafRecord(data, key, list, BTPostingList.rid(values[0]));
+	}
+
+	/**
+	 * All RIDs of the leaf record in slot of the pinned leaf held in data, in values when it has room for
+	 * them and in a larger array otherwise. BTPostingList.size tells how many there are.
+	 */
+	long[] readPostings(byte[] data, int slot, int keyType, long[] values)
+			throws PinPageException, UnpinPageException {
+		int count = BTPostingList.size(data, slot, keyType);
+		if (values.length < count)
+			values = new long[Math.max(count, 2 * values.length)];
+		if (!BTPostingList.isChained(data, slot, keyType)) {
+			BTPostingList.decodeInline(data, slot, keyType, values);
+		} else {
+			values[0] = BTPageLayout.ridValueAt(data, slot);
+			readChain(BTPostingList.chainHead(data, BTPostingList.listOffset(data, slot, keyType)), values, 1);
+		}
+		return values;
+	}
+
+	/**
+	 * Writes values [from, to), which ascend, to a new overflow chain and returns its first page. The chain is
+	 * built from its end, every page but the first one full, so that each page is written once.
+	 */
+	private int newChain(long[] values, int from, int to) throws ConstructPageException, UnpinPageException {
+		int head = INVALID_PAGE;
+		for (int end = to; end > from; end -= BTPostingList.PAGE_CAPACITY) {
+			Page page = new Page();
+			PageId pageId = newPage(page, 1);
+			BTPostingList.formatOverflowPage(page.getpage(), head);
+			BTPostingList.appendValues(page.getpage(), values, Math.max(from, end - BTPostingList.PAGE_CAPACITY),
+					end);
+			unpinPage(pageId, true);
+			head = pageId.pid;
+		}
+		return head;
+	}
+
+	/**
+	 * Inserts value into the overflow chain of the CHAINED list at off of the pinned leaf held in data. It goes
+	 * to the first page whose last RID is not less than value, or the last page, which is split in half when it
+	 * is full, the new page following it on the chain.
+	 */
+	private void chainInsert(byte[] data, int off, long value)
+			throws ConstructPageException, PinPageException, UnpinPageException {
+		PageId pageId = new PageId(BTPostingList.chainHead(data, off));
+		byte[] page = pinPage(pageId).getpage();
+		int next;
+		while ((next = BTPageLayout.getInt(page, HFPage.NEXT_PAGE)) != INVALID_PAGE
+				&& BTPostingList.valueAt(page, BTPostingList.pageCount(page) - 1) < value) {
+			unpinPage(pageId);
+			pageId = new PageId(next);
+			page = pinPage(pageId).getpage();
+		}
+		int pos = BTPostingList.upperBound(page, value);
+		if (BTPostingList.pageCount(page) == BTPostingList.PAGE_CAPACITY) {
+			Page split = new Page();
+			PageId splitId = newPage(split, 1);
+			BTPostingList.formatOverflowPage(split.getpage(), next);
+			int half = BTPostingList.PAGE_CAPACITY / 2;
+			BTPostingList.moveValues(page, half, split.getpage());
+			BTPageLayout.putInt(page, HFPage.NEXT_PAGE, splitId.pid);
+			if (pos > half)
+				BTPostingList.insertValue(split.getpage(), pos - half, value);
+			else
+				BTPostingList.insertValue(page, pos, value);
+			unpinPage(splitId, true);
+		} else {
+			BTPostingList.insertValue(page, pos, value);
+		}
+		unpinPage(pageId, true);
+		BTPostingList.setChainCount(data, off, BTPostingList.chainCount(data, off) + 1);
+	}
+
+	/**
+	 * Takes one copy of value off the overflow chain of the CHAINED list at off of the pinned leaf held in data,
+	 * and returns whether there was one. A page that is left empty is unlinked from the chain and freed.
+	 */
+	private boolean chainRemove(byte[] data, int off, long value)
+			throws PinPageException, UnpinPageException, FreePageException {
+		int prev = INVALID_PAGE;
+		PageId pageId = new PageId(BTPostingList.chainHead(data, off));
+		byte[] page = pinPage(pageId).getpage();
+		while (BTPostingList.valueAt(page, BTPostingList.pageCount(page) - 1) < value) {
+			int next = BTPageLayout.getInt(page, HFPage.NEXT_PAGE);
+			unpinPage(pageId);
+			if (next == INVALID_PAGE)
+				return false;
+			prev = pageId.pid;
+			pageId = new PageId(next);
+			page = pinPage(pageId).getpage();
+		}
+		int pos = BTPostingList.lowerBound(page, value);
+		if (BTPostingList.valueAt(page, pos) != value) {
+			unpinPage(pageId);
+			return false;
+		}
+		BTPostingList.removeValue(page, pos);
+		if (BTPostingList.pageCount(page) > 0) {
+			unpinPage(pageId, true);
+		} else {
+			int next = BTPageLayout.getInt(page, HFPage.NEXT_PAGE);
+			unpinPage(pageId);
+			freePage(pageId);
+			if (prev == INVALID_PAGE) {
+				BTPostingList.setChainHead(data, off, next);
+			} else {
+				PageId prevId = new PageId(prev);
+				BTPageLayout.putInt(pinPage(prevId).getpage(), HFPage.NEXT_PAGE, next);
+				unpinPage(prevId, true);
+			}
+		}
+		BTPostingList.setChainCount(data, off, BTPostingList.chainCount(data, off) - 1);
+		return true;
+	}
+
+	/**
+	 * The smallest RID on the overflow chain of the CHAINED list at off of the pinned leaf held in data.
+	 */
+	private long chainFirst(byte[] data, int off) throws PinPageException, UnpinPageException {
+		PageId pageId = new PageId(BTPostingList.chainHead(data, off));
+		long value = BTPostingList.valueAt(pinPage(pageId).getpage(), 0);
+		unpinPage(pageId);
+		return value;
+	}
+
+	/**
+	 * Copies the RIDs of the overflow chain starting at head into values from position at on.
+	 */
+	private void readChain(int head, long[] values, int at) throws PinPageException, UnpinPageException {
+		for (int pid = head; pid != INVALID_PAGE;) {
+			PageId pageId = new PageId(pid);
+			byte[] page = pinPage(pageId, BTreePageStore.SCAN).getpage();
+			int count = BTPostingList.pageCount(page);
+			for (int i = 0; i < count; i++)
+				values[at++] = BTPostingList.valueAt(page, i);
+			pid = BTPageLayout.getInt(page, HFPage.NEXT_PAGE);
+			unpinPage(pageId);
+		}
+	}
+
+	private void freeChain(int head) throws PinPageException, UnpinPageException, FreePageException {
+		for (int pid = head; pid != INVALID_PAGE;) {
+			PageId pageId = new PageId(pid);
+			pid = BTPageLayout.getInt(pinPage(pageId).getpage(), HFPage.NEXT_PAGE);
+			unpinPage(pageId);
+			freePage(pageId);
+		}
+	}
+
+	/**
+	 * Frees the overflow chains of the leaf records in slots [from, to) of the leaf held in data.
+	 */
+	private void freeChains(byte[] data, int from, int to)
+			throws PinPageException, UnpinPageException, FreePageException, IOException {
+		int keyType = headerPage.get_keyType();
+		for (int slot = from; slot < to; slot++)
+			if (BTPostingList.isChained(data, slot, keyType))
+				freeChain(BTPostingList.chainHead(data, BTPostingList.listOffset(data, slot, keyType)));
+	}
+
+	/**
+	 * Frees the overflow chains of the records of the leaf leafId.
+	 */
+	private void freeChains(PageId leafId)
+			throws PinPageException, UnpinPageException, FreePageException, IOException {
+		byte[] data = pinPage(leafId).getpage();
+		freeChains(data, 0, BTPageLayout.slotCount(data));
+		unpinPage(leafId);
+	}
+
+	/**
+	 * Number of entries whose key is less than key.
+	 */
+	public int rank(KeyClass key) throws IOException, KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		flushWriteBuffer();
+		return countBelow(new BTSearchKey(key, headerPage.get_keyType()), false);
+	}
+
+	/**
+	 * Number of entries with lo_key <= key <= hi_key, the entries new_scan(lo_key, hi_key) returns. A null bound
+	 * leaves that end of the range open.
+	 */
+	public int countRange(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		flushWriteBuffer();
+		int keyType = headerPage.get_keyType();
+		int upTo = hi_key == null ? countBelow(null, true) : countBelow(new BTSearchKey(hi_key, keyType), true);
+		int below = lo_key == null ? 0 : countBelow(new BTSearchKey(lo_key, keyType), false);
+		return Math.max(0, upTo - below);
+	}
+
+	/**
+	 * select returns the entry at position k, counted from 0, in key order, or null when the file holds no
+	 * more than k entries.
+	 */
+	public KeyDataEntry select(int k) throws IOException, KeyNotMatchException, NodeNotMatchException,
+			ConvertException, ConstructPageException, PinPageException, UnpinPageException {
+		flushWriteBuffer();
+		if (k < 0 || headerPage.get_rootId().pid == INVALID_PAGE)
+			return null;
+		int keyType = headerPage.get_keyType();
+		if (!countsUsable()) {
+			// no counts to go by, skip whole leaves instead
+			RID rid = new RID();
+			for (BTLeafPage leaf = findRunStart((BTSearchKey) null, rid); leaf != null; leaf = nextLeaf(leaf)) {
+				int count = BTPageLayout.slotCount(leaf.getpage());
+				if (k < count) {
+					KeyDataEntry entry = entryAt(leaf, k);
+					unpinPage(leaf.getCurPage());
+					return entry;
+				}
+				k -= count;
+			}
+			return null;
+		}
+		int total = getHeaderField(HDR_COUNT_TOTAL);
+		if (k >= total)
+			return null;
+		PageId pageId = new PageId(headerPage.get_rootId().pid);
+		while (true) {
+			Page page = pinPage(pageId);
+			byte[] data = page.getpage();
+			if (BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.LEAF) {
+				KeyDataEntry entry = k < BTPageLayout.slotCount(data)
+						? entryAt(new BTSortedPage(page, keyType), k) : null;
+				unpinPage(pageId);
+				return entry;
+			}
+			int child = -1;
+			int childTotal = childTotal(data, -1, total);
+			while (k >= childTotal && child + 1 < BTPageLayout.slotCount(data)) {
+				k -= childTotal;
+				child++;
+				childTotal = BTPageLayout.countAt(data, child);
+			}
+			PageId childId = new PageId(child < 0 ? BTPageLayout.getInt(data, HFPage.PREV_PAGE)
+					: BTPageLayout.childAt(data, child));
+			unpinPage(pageId);
+			pageId = childId;
+			total = childTotal;
+		}
+	}
+
+	/**
+	 * Number of entries whose key is less than searchKey, or at most searchKey with inclusive set. A null
+	 * searchKey with inclusive set counts all entries. The walk goes down the path of a strict descent, or of
+	 * an insert when inclusive, and adds up the counts of the children left of the path.
+	 */
+	private int countBelow(BTSearchKey searchKey, boolean inclusive) throws IOException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return 0;
+		if (!countsUsable()) {
+			int below = 0;
+			RID rid = new RID();
+			for (BTLeafPage leaf = findRunStart((BTSearchKey) null, rid); leaf != null; leaf = nextLeaf(leaf)) {
+				byte[] data = leaf.getpage();
+				int count = BTPageLayout.slotCount(data);
+				int bound = boundOf(data, searchKey, inclusive);
+				below += bound;
+				if (bound < count) {
+					unpinPage(leaf.getCurPage());
+					break;
+				}
+			}
+			return below;
+		}
+		int total = getHeaderField(HDR_COUNT_TOTAL);
+		int below = 0;
+		PageId pageId = new PageId(headerPage.get_rootId().pid);
+		while (true) {
+			byte[] data = pinPage(pageId).getpage();
+			int bound = boundOf(data, searchKey, inclusive);
+			if (BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.LEAF) {
+				unpinPage(pageId);
+				return below + bound;
+			}
+			int child = bound - 1;
+			int childTotal = childTotal(data, child, total);
+			// everything right of the child is beyond searchKey, everything left of it below
+			int right = 0;
+			for (int slot = bound; slot < BTPageLayout.slotCount(data); slot++)
+				right += BTPageLayout.countAt(data, slot);
+			below += total - childTotal - right;
+			PageId childId = new PageId(child < 0 ? BTPageLayout.getInt(data, HFPage.PREV_PAGE)
+					: BTPageLayout.childAt(data, child));
+			unpinPage(pageId);
+			pageId = childId;
+			total = childTotal;
+		}
+	}
+
+	/**
+	 * First slot of the page held in data whose key is not less than searchKey, or greater than it with
+	 * inclusive set. A null searchKey is below every key, or above every key with inclusive set.
+	 */
+	private static int boundOf(byte[] data, BTSearchKey searchKey, boolean inclusive) {
+		if (searchKey == null)
+			return inclusive ? BTPageLayout.slotCount(data) : 0;
+		return inclusive ? BTPageLayout.upperBound(data, searchKey) : BTPageLayout.lowerBound(data, searchKey);
+	}
+
+	/**
+	 * Whether the counts of the index pages can be used. Counts that went stale in concurrent mode are rebuilt
+	 * here once the file is out of it again.
+	 */
+	private boolean countsUsable() throws IOException, PinPageException, UnpinPageException {
+		if (!counted || latches != null)
+			return false;
+		if (getHeaderField(HDR_COUNTS) != COUNTS_EXACT)
+			rebuildCounts();
+		return true;
+	}
+
+	/**
+	 * Points the prev link of every leaf back at the leaf before it in the chain, which splits in concurrent mode
+	 * leave stale.
+	 */
+	private void relinkPrevLinks() throws IOException, PinPageException, UnpinPageException,
+			ConstructPageException {
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return;
+		BTLeafPage first = descendToLeaf(null, false, null, null);
+		PageId pageId = first.getCurPage();
+		unpinPage(pageId);
+		int prev = INVALID_PAGE;
+		while (pageId.pid != INVALID_PAGE) {
+			byte[] data = pinPage(pageId, BTreePageStore.SCAN).getpage();
+			int next = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+			boolean stale = BTPageLayout.getInt(data, HFPage.PREV_PAGE) != prev;
+			if (stale)
+				BTPageLayout.putInt(data, HFPage.PREV_PAGE, prev);
+			unpinPage(pageId, stale);
+			prev = pageId.pid;
+			pageId = new PageId(next);
+		}
+	}
+
+	/**
+	 * Recounts the entries below every child of every index page and the total in the header page.
+	 */
+	private void rebuildCounts() throws IOException, PinPageException, UnpinPageException {
+		int total = 0;
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			total = rebuildCounts(new PageId(headerPage.get_rootId().pid));
+		setHeaderField(HDR_COUNT_TOTAL, total);
+		setHeaderField(HDR_COUNTS, COUNTS_EXACT);
+	}
+
+	private int rebuildCounts(PageId pageId) throws IOException, PinPageException, UnpinPageException {
+		byte[] data = pinPage(pageId).getpage();
+		int count = BTPageLayout.slotCount(data);
+		if (BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.LEAF) {
+			unpinPage(pageId);
+			return count;
+		}
+		int total = rebuildCounts(new PageId(BTPageLayout.getInt(data, HFPage.PREV_PAGE)));
+		for (int slot = 0; slot < count; slot++) {
+			int childTotal = rebuildCounts(new PageId(BTPageLayout.childAt(data, slot)));
+			BTPageLayout.setCountAt(data, slot, childTotal);
+			total += childTotal;
+		}
+		unpinPage(pageId, true);
+		return total;
+	}
+
+	/**
+	 * createBloomFilter gives the index a Bloom filter with bitsPerKey bits per key, sized for twice the keys
+	 * in the leaves and filled from them. The filter pages are recorded in the header page, insert and Delete
+	 * keep the filter up to date, and an existing filter is replaced.
+	 */
+	public void createBloomFilter(int bitsPerKey) throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException {
+		dropBloomFilter();
+		bitsPerKey = Math.max(1, bitsPerKey);
+		int keyType = headerPage.get_keyType();
+		long keys = 0;
+		RID rid = new RID();
+		for (BTLeafPage leaf = findRunStart((BTSearchKey) null, rid); leaf != null; leaf = nextLeaf(leaf))
+			keys += BTPageLayout.slotCount(leaf.getpage());
+		BTreeBloomFilter filter = BTreeBloomFilter.create(this, Math.max(2 * keys, 1024), bitsPerKey);
+		for (BTLeafPage leaf = findRunStart((BTSearchKey) null, rid); leaf != null; leaf = nextLeaf(leaf)) {
+			byte[] data = leaf.getpage();
+			for (int slot = 0; slot < BTPageLayout.slotCount(data); slot++)
+				filter.add(BTSearchKey.hashAt(data, BTPageLayout.slotOffset(data, slot), keyType));
+		}
+		setHeaderField(HDR_BLOOM_PAGE, filter.firstPage);
+		setHeaderField(HDR_BLOOM_PAGES, filter.pages);
+		setHeaderField(HDR_BLOOM_HASHES, filter.hashes);
+		setHeaderField(HDR_BLOOM_BITS_PER_KEY, bitsPerKey);
+		setHeaderField(HDR_BLOOM_KEYS, (int) keys);
+		setHeaderField(HDR_BLOOM_DELETES, 0);
+		bloom = filter;
+	}
+
+	public void dropBloomFilter() throws FreePageException {
+		if (bloom == null)
+			return;
+		bloom.free();
+		bloom = null;
+		setHeaderField(HDR_BLOOM_PAGES, 0);
+	}
+
+	private void openBloomFilter() {
+		int pages = getHeaderField(HDR_BLOOM_PAGES);
+		if (pages > 0)
+			bloom = new BTreeBloomFilter(this, getHeaderField(HDR_BLOOM_PAGE), pages,
+					getHeaderField(HDR_BLOOM_HASHES));
+	}
+
+	/**
+	 * Adds a newly inserted key to the Bloom filter, and rebuilds the filter larger once it holds more keys
+	 * than it was sized for.
+	 */
+	private void bloomInsert(long hash) throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException, InsertException {
+		if (latches != null) {
+			// a rebuild would miss concurrent inserts, it waits until setConcurrent(false)
+			synchronized (bloom) {
+				bloom.add(hash);
+				setHeaderField(HDR_BLOOM_KEYS, getHeaderField(HDR_BLOOM_KEYS) + 1);
+			}
+			return;
+		}
+		bloom.add(hash);
+		int keys = getHeaderField(HDR_BLOOM_KEYS) + 1;
+		setHeaderField(HDR_BLOOM_KEYS, keys);
+		int bitsPerKey = getHeaderField(HDR_BLOOM_BITS_PER_KEY);
+		if (keys > bloom.capacity(bitsPerKey)) {
+			try {
+				createBloomFilter(bitsPerKey);
+			} catch (FreePageException e) {
+				throw new InsertException(e, "");
+			}
+		}
+	}
+
+	/**
+	 * Bits cannot be taken out of a Bloom filter, so deletes are only counted, and the filter is rebuilt from
+	 * the leaves once more than half of the keys it holds were deleted.
+	 */
+	private void bloomDelete(int count) throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException {
+		if (latches != null) {
+			synchronized (bloom) {
+				setHeaderField(HDR_BLOOM_DELETES, getHeaderField(HDR_BLOOM_DELETES) + count);
+			}
+			return;
+		}
+		int deletes = getHeaderField(HDR_BLOOM_DELETES) + count;
+		setHeaderField(HDR_BLOOM_DELETES, deletes);
+		if (deletes > getHeaderField(HDR_BLOOM_KEYS) / 2)
+			createBloomFilter(getHeaderField(HDR_BLOOM_BITS_PER_KEY));
+	}
+
+	/**
+	 * Unpins leaf and returns the next leaf of the chain pinned, or null at the end of the chain.
+	 */
+	private BTLeafPage nextLeaf(BTLeafPage leaf) throws IOException, PinPageException, UnpinPageException,
+			ConstructPageException {
+		PageId nextId = leaf.getNextPage();
+		unpinPage(leaf.getCurPage());
+		if (nextId.pid == INVALID_PAGE)
+			return null;
+		return new BTLeafPage(pinPage(nextId, BTreePageStore.SCAN), headerPage.get_keyType());
+	}
+
+	/**
+	 * FullDelete removes one <key, rid> entry and keeps every page other than the root at least half full. An
+	 * underfull page borrows entries from a sibling under the same parent, or is merged with it when both fit on
+	 * one page, in which case the emptied page is freed. A root index page that is left with a single child is
+	 * replaced by that child, and an empty root leaf leaves an empty tree.
+	 */
+	private boolean FullDelete(KeyClass key, RID rid) throws IndexFullDeleteException, KeyNotMatchException,
+			IndexInsertRecException, PinPageException, UnpinPageException, FreePageException, ConstructPageException,
+			IOException {
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return false;
+		try {
+			BTSearchKey searchKey = entryKey(key, rid);
+			int total = counted ? getHeaderField(HDR_COUNT_TOTAL) : 0;
+			if (deleteFromSubtree(searchKey, rid, headerPage.get_rootId(), total, true) == NOT_FOUND)
+				return false;
+			if (counted)
+				setHeaderField(HDR_COUNT_TOTAL, total - 1);
+		} catch (NodeNotMatchException e) {
+			throw new IndexFullDeleteException(e, "");
+		} catch (ConvertException e) {
+			throw new IndexFullDeleteException(e, "");
+		}
+		collapseRoot();
+		return true;
+	}
+
+	/**
+	 * Replaces a root index page that has no entries left by its left link, as often as needed, and frees a
+	 * root leaf without entries, which leaves an empty tree.
+	 */
+	private void collapseRoot() throws IOException, PinPageException, UnpinPageException, FreePageException {
+		while (true) {
+			PageId rootId = headerPage.get_rootId();
+			BTSortedPage root = new BTSortedPage(pinPage(rootId), headerPage.get_keyType());
+			if (root.getSlotCnt() > 0) {
+				unpinPage(rootId);
+				return;
+			}
+			// an index root without entries only has its left link left, a leaf root without entries is empty
+			PageId newRootId = root.getType() == NodeType.INDEX ? root.getPrevPage() : new PageId(INVALID_PAGE);
+			unpinPage(rootId);
+			freePage(rootId);
+			updateHeader(newRootId);
+			if (newRootId.pid == INVALID_PAGE)
+				return;
+		}
+	}
+
+	/**
+	 * deleteFromSubtree deletes <key, rid> below pageId and, with rebalance set, rebalances the child it came
+	 * from when that child became underfull. Duplicates of key may continue from one child into the next, so the
+	 * children are tried from the leftmost one that can hold key. total is the number of entries below pageId
+	 * in a file with order statistics, whose counts are kept up to date on the way back up. Returns NOT_FOUND,
+	 * DELETED or UNDERFULL for pageId.
+	 */
+	private int deleteFromSubtree(BTSearchKey searchKey, RID rid, PageId pageId, int total, boolean rebalance)
+			throws IOException, PinPageException,
+			UnpinPageException, FreePageException, ConstructPageException, IndexInsertRecException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		Page page = pinPage(pageId);
+		byte[] data = page.getpage();
+		BTSortedPage sortedPage = new BTSortedPage(page, headerPage.get_keyType());
+		if (sortedPage.getType() == NodeType.LEAF) {
+			for (int slot = BTPageLayout.lowerBound(data, searchKey); slot < BTPageLayout.slotCount(data); slot++) {
+				if (searchKey.compareTo(data, BTPageLayout.slotOffset(data, slot)) != 0)
+					break;
+				if (postingLists) {
+					// the key has no other record
+					if (removePosting(data, slot, searchKey, rid, false) == 0)
+						break;
+					int result = BTPageLayout.isUnderfull(data) ? UNDERFULL : DELETED;
+					unpinPage(pageId, true);
+					return result;
+				}
+				if (BTPageLayout.ridMatches(data, slot, rid)) {
+					BTPageLayout.removeRecords(data, slot, slot + 1, scratch.get());
+					int result = BTPageLayout.isUnderfull(data) ? UNDERFULL : DELETED;
+					unpinPage(pageId, true);
+					return result;
+				}
+			}
+			unpinPage(pageId);
+			return NOT_FOUND;
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		int count = BTPageLayout.slotCount(data);
+		// -1 stands for the left link
+		int child = BTPageLayout.lowerBound(data, searchKey) - 1;
+		int result;
+		while (true) {
+			result = deleteFromSubtree(searchKey, rid, childAt(indexPage, child), childTotal(data, child, total),
+					rebalance);
+			if (result != NOT_FOUND || child + 1 >= count
+					|| searchKey.compareTo(data, BTPageLayout.slotOffset(data, child + 1)) < 0)
+				break;
+			child++;
+		}
+		// the count of the left link follows from total
+		boolean dirty = counted && result != NOT_FOUND && child >= 0;
+		if (dirty)
+			BTPageLayout.setCountAt(data, child, BTPageLayout.countAt(data, child) - 1);
+		if (result == UNDERFULL && rebalance) {
+			rebalance(indexPage, child, total - 1);
+			result = BTPageLayout.isUnderfull(data) ? UNDERFULL : DELETED;
+			dirty = true;
+		} else if (result == UNDERFULL) {
+			result = DELETED;
+		}
+		unpinPage(pageId, dirty);
+		return result;
+	}
+
+	/**
+	 * Number of entries below child of the index page held in data, child -1 being the left link, when the
+	 * page has total entries below it. Only meaningful in a file with order statistics.
+	 */
+	private int childTotal(byte[] data, int child, int total) {
+		if (!counted)
+			return 0;
+		return child >= 0 ? BTPageLayout.countAt(data, child) : total - BTPageLayout.sumCounts(data);
+	}
+
+	/**
+	 * rebalance fixes the underfull child of the pinned index page parent, which has total entries below it.
+	 * The child is paired with its left sibling, or with its right one when it is the left link, and the right
+	 * page of the pair is merged into the left one if both fit on one page. Otherwise entries are moved over
+	 * from the fuller page until both hold about the same, and the separator in parent is updated. In a file
+	 * with order statistics the counts of the pair are moved along with the entries.
+	 */
+	private void rebalance(BTIndexPage parent, int child, int total) throws IOException, PinPageException,
+			UnpinPageException, FreePageException, ConstructPageException, IndexInsertRecException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		byte[] parentData = parent.getpage();
+		if (BTPageLayout.slotCount(parentData) == 0)
+			return;
+		// slot of the key that separates the left page of the pair from the right one
+		int sepSlot = Math.max(child, 0);
+		PageId leftId = childAt(parent, sepSlot - 1);
+		PageId rightId = childAt(parent, sepSlot);
+		int leftTotal = childTotal(parentData, sepSlot - 1, total);
+		int rightTotal = childTotal(parentData, sepSlot, total);
+		nodeCache.invalidate(parent.getCurPage());
+		nodeCache.invalidate(leftId);
+		nodeCache.invalidate(rightId);
+		Page leftPage = pinPage(leftId);
+		Page rightPage = pinPage(rightId);
+		byte[] left = leftPage.getpage();
+		byte[] right = rightPage.getpage();
+		int room = left.length - HFPage.DPFIXED;
+		int keyType = headerPage.get_keyType();
+
+		if (new BTSortedPage(leftPage, keyType).getType() == NodeType.LEAF) {
+			BTLeafPage leftLeaf = new BTLeafPage(leftPage, keyType);
+			BTLeafPage rightLeaf = new BTLeafPage(rightPage, keyType);
+			int rightCount = BTPageLayout.slotCount(right);
+			if (BTPageLayout.usedSpace(left) + BTPageLayout.movedSpace(right, 0, rightCount, left) <= room) {
+				// merge right into left and take it out of the leaf chain
+				BTPageLayout.moveRecords(right, 0, rightCount, left, BTPageLayout.slotCount(left), scratch.get());
+				compressPage(left);
+				PageId nextId = rightLeaf.getNextPage();
+				leftLeaf.setNextPage(nextId);
+				if (nextId.pid != INVALID_PAGE) {
+					BTLeafPage nextLeaf = new BTLeafPage(pinPage(nextId), keyType);
+					nextLeaf.setPrevPage(leftId);
+					unpinPage(nextId, true);
+				}
+				BTPageLayout.removeRecords(parentData, sepSlot, sepSlot + 1, scratch.get());
+				if (counted && sepSlot > 0)
+					BTPageLayout.setCountAt(parentData, sepSlot - 1, leftTotal + rightTotal);
+				unpinPage(leftId, true);
+				unpinPage(rightId);
+				freePage(rightId);
+				return;
+			}
+			int leftCount = BTPageLayout.slotCount(left);
+			int leftUsed = BTPageLayout.usedSpace(left);
+			int rightUsed = BTPageLayout.usedSpace(right);
+			if (leftUsed > rightUsed) {
+				// the tail of left moves to the front of right
+				int from = leftCount;
+				int size;
+				while (from > 1 && leftUsed - rightUsed > (size = BTPageLayout.slotLength(left, from - 1)
+						+ HFPage.SIZE_OF_SLOT)) {
+					from--;
+					leftUsed -= size;
+					rightUsed += size;
+				}
+				if (from < leftCount && separatorFits(parentData, sepSlot, left, from)
+						&& BTPageLayout.movedSpace(left, from, leftCount, right) <= BTPageLayout.freeSpace(right)) {
+					BTPageLayout.moveRecords(left, from, leftCount, right, 0, scratch.get());
+					replaceSeparator(parent, sepSlot, separatorAt(right, 0), BTPageLayout.slotCount(right));
+				}
+			} else {
+				// the head of right moves to the end of left
+				int to = 0;
+				int size;
+				while (to < rightCount - 1 && rightUsed - leftUsed > (size = BTPageLayout.slotLength(right, to)
+						+ HFPage.SIZE_OF_SLOT)) {
+					to++;
+					rightUsed -= size;
+					leftUsed += size;
+				}
+				if (to > 0 && separatorFits(parentData, sepSlot, right, to)
+						&& BTPageLayout.movedSpace(right, 0, to, left) <= BTPageLayout.freeSpace(left)) {
+					BTPageLayout.moveRecords(right, 0, to, left, leftCount, scratch.get());
+					replaceSeparator(parent, sepSlot, separatorAt(right, 0), BTPageLayout.slotCount(right));
+				}
+			}
+			if (counted && sepSlot > 0)
+				BTPageLayout.setCountAt(parentData, sepSlot - 1, BTPageLayout.slotCount(left));
+			compressPage(left);
+			compressPage(right);
+			unpinPage(leftId, true);
+			unpinPage(rightId, true);
+			return;
+		}
+
+		BTIndexPage leftIndex = new BTIndexPage(leftPage, keyType);
+		BTIndexPage rightIndex = new BTIndexPage(rightPage, keyType);
+		// the separator is counted whole, it goes to a page with another prefix
+		BTSearchKey sepKey = separatorAt(parentData, sepSlot);
+		int sepSize = indexEntryLength(sepKey) + HFPage.SIZE_OF_SLOT;
+		int rightCount = BTPageLayout.slotCount(right);
+		if (BTPageLayout.usedSpace(left) + BTPageLayout.movedSpace(right, 0, rightCount, left) + sepSize <= room) {
+			// merge: the separator comes down pointing at the left link of right, then all of right follows
+			insertIndexEntry(left, BTPageLayout.slotCount(left), sepKey, rightIndex.getPrevPage().pid,
+					childTotal(right, -1, rightTotal));
+			BTPageLayout.moveRecords(right, 0, rightCount, left, BTPageLayout.slotCount(left), scratch.get());
+			compressPage(left);
+			leftIndex.setNextPage(rightIndex.getNextPage());
+			BTPageLayout.removeRecords(parentData, sepSlot, sepSlot + 1, scratch.get());
+			if (counted && sepSlot > 0)
+				BTPageLayout.setCountAt(parentData, sepSlot - 1, leftTotal + rightTotal);
+			unpinPage(leftId, true);
+			unpinPage(rightId);
+			freePage(rightId);
+			return;
+		}
+		// rotate entries through the parent, one at a time, from the fuller page to the other
+		boolean fromLeft = BTPageLayout.usedSpace(left) > BTPageLayout.usedSpace(right);
+		byte[] donor = fromLeft ? left : right;
+		byte[] taker = fromLeft ? right : left;
+		while (BTPageLayout.slotCount(donor) > 1) {
+			int donorSlot = fromLeft ? BTPageLayout.slotCount(donor) - 1 : 0;
+			if (BTPageLayout.usedSpace(donor) - BTPageLayout.usedSpace(taker) <= BTPageLayout.slotLength(donor,
+					donorSlot) + HFPage.SIZE_OF_SLOT)
+				break;
+			sepKey = separatorAt(parentData, sepSlot);
+			if (BTPageLayout.freeSpace(taker) < indexEntryLength(sepKey) + HFPage.SIZE_OF_SLOT
+					|| !separatorFits(parentData, sepSlot, donor, donorSlot))
+				break;
+			KeyDataEntry moving = entryAt(fromLeft ? leftIndex : rightIndex, donorSlot);
+			BTSearchKey movingKey = separatorAt(donor, donorSlot);
+			int movingCount = childTotal(donor, donorSlot, 0);
+			int sepCount = childTotal(right, -1, rightTotal);
+			// the separator comes down pointing at the old left link of right, which the moving child replaces
+			insertIndexEntry(fromLeft ? right : left, fromLeft ? 0 : BTPageLayout.slotCount(left), sepKey,
+					rightIndex.getPrevPage().pid, sepCount);
+			rightIndex.setPrevPage(((IndexData) moving.data).getData());
+			if (fromLeft) {
+				leftTotal -= movingCount;
+				rightTotal += movingCount;
+			} else {
+				leftTotal += sepCount;
+				rightTotal -= sepCount;
+			}
+			BTPageLayout.removeRecords(donor, donorSlot, donorSlot + 1, scratch.get());
+			replaceSeparator(parent, sepSlot, movingKey, rightTotal);
+		}
+		if (counted && sepSlot > 0)
+			BTPageLayout.setCountAt(parentData, sepSlot - 1, leftTotal);
+		compressPage(left);
+		compressPage(right);
+		unpinPage(leftId, true);
+		unpinPage(rightId, true);
+	}
+
+	/**
+	 * Whether the key of slot in page can replace the separator in parent slot sepSlot without overflowing it.
+	 * The new key is counted whole, it may not share the prefix of parent.
+	 */
+	private boolean separatorFits(byte[] parentData, int sepSlot, byte[] page, int slot) throws IOException {
+		int keyType = headerPage.get_keyType();
+		int newKey = BTPageLayout.wholeKeyLength(page, BTPageLayout.slotOffset(page, slot), keyType);
+		int oldKey = BTPageLayout.keyLength(parentData, BTPageLayout.slotOffset(parentData, sepSlot), keyType);
+		return BTPageLayout.freeSpace(parentData) >= newKey - oldKey;
+	}
+
+	/**
+	 * Replaces the key of the separator in parent slot sepSlot by key, and its count by count in a file with
+	 * order statistics.
+	 */
+	private void replaceSeparator(BTIndexPage parent, int sepSlot, BTSearchKey key, int count)
+			throws IOException, KeyNotMatchException {
+		PageId childId = childAt(parent, sepSlot);
+		BTPageLayout.removeRecords(parent.getpage(), sepSlot, sepSlot + 1, scratch.get());
+		insertIndexEntry(parent.getpage(), sepSlot, key, childId.pid, count);
+	}
+
+	/**
+	 * The key of slot in a leaf or index page as a search key, which takes along the RID stored behind the key
+	 * in a file with RID-ordered duplicates.
+	 */
+	private BTSearchKey separatorAt(byte[] data, int slot) throws IOException, KeyNotMatchException {
+		int keyType = headerPage.get_keyType();
+		KeyClass key = BTPageLayout.keyAt(data, BTPageLayout.slotOffset(data, slot), keyType);
+		return new BTSearchKey(key, keyType, ridOrdered ? ridBehindKey(data, slot) : null);
+	}
+
+	/**
+	 * The RID stored right behind the key of slot, which is the RID of a leaf entry and the RID half of a
+	 * separator in a file with RID-ordered duplicates.
+	 */
+	private RID ridBehindKey(byte[] data, int slot) throws IOException {
+		int off = BTPageLayout.slotOffset(data, slot);
+		off += BTPageLayout.keyLength(data, off, headerPage.get_keyType());
+		return new RID(new PageId(BTPageLayout.getInt(data, off + 4)), BTPageLayout.getInt(data, off));
+	}
+
+	/**
+	 * Search key for the entry <key, rid>. It takes rid along in a file with RID-ordered duplicates, so that a
+	 * search goes to the place of the entry among the duplicates of key.
+	 */
+	private BTSearchKey entryKey(KeyClass key, RID rid) throws IOException, KeyNotMatchException {
+		return new BTSearchKey(key, headerPage.get_keyType(), ridOrdered ? rid : null);
+	}
+
+	/**
+	 * Child page of slot in an index page, slot -1 being the left link.
+	 */
+	private PageId childAt(BTIndexPage indexPage, int slot) throws IOException {
+		if (slot < 0)
+			return indexPage.getPrevPage();
+		return new PageId(BTPageLayout.childAt(indexPage.getpage(), slot));
+	}
+
+	private KeyDataEntry entryAt(BTSortedPage page, int slot) throws IOException {
+		return BTPageLayout.entryAt(page.getpage(), slot, headerPage.get_keyType(), page.getType());
 	}
 
+	/**
+	 * findRunStart descends to the leaf holding the first entry that is not less than lo_key, or the very
+	 * first entry when lo_key is null, and leaves startrid on it. Every page on the way is binary searched in
+	 * place. The leaf is returned pinned, or null when no such entry exists.
+	 */
 	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException, IteratorException, KeyNotMatchException,
 			ConstructPageException, PinPageException, UnpinPageException {
+		return findRunStart(lo_key == null ? null : new BTSearchKey(lo_key, headerPage.get_keyType()), startrid);
+	}
+
+	private BTLeafPage findRunStart(BTSearchKey searchKey, RID startrid) throws IOException,
+			ConstructPageException, PinPageException, UnpinPageException {
 		BTLeafPage pageLeaf;
-		BTIndexPage pageIndex;
-		Page page;
-		BTSortedPage sortPage;
-		PageId pgnum, prepgnum, nextpgno;
-		PageId currpgnum = null; // Iterator
-		RID curRid;
-		KeyDataEntry currentry;
+		PageId pgnum, nextpgno;
 
 		pgnum = headerPage.get_rootId();
 
@@ -498,135 +3343,519 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			return pageLeaf;
 		}
 
-		page = pinPage(pgnum);
-		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		// leftmost leaf that can hold lo_key
+		pageLeaf = descendToLeaf(searchKey, true, null, null);
+		pgnum = pageLeaf.getCurPage();
+		int slot = searchKey == null ? 0 : BTPageLayout.lowerBound(pageLeaf.getpage(), searchKey);
+		// nothing large enough on this leaf, the run starts on the next non-empty one
+		while (slot >= BTPageLayout.slotCount(pageLeaf.getpage())) {
+			nextpgno = pageLeaf.getNextPage();
+			unpinPage(pgnum);
+			if (nextpgno.pid == INVALID_PAGE) {
+				return null;
+			}
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pgnum + lineSep);
-			trace.flush();
+			pgnum = nextpgno;
+			pageLeaf = new BTLeafPage(pinPage(pgnum, BTreePageStore.SCAN), headerPage.get_keyType());
+			slot = searchKey == null ? 0 : BTPageLayout.lowerBound(pageLeaf.getpage(), searchKey);
 		}
+		// note that pageno/pageLeaf is still pinned;
+		// scan will unpin it when done
+		startrid.pageNo = pageLeaf.getCurPage();
+		startrid.slotNo = slot;
+		return pageLeaf;
+	}
+
+	/**
+	 * Child of the index page indexId that an insert of key continues in, the one getPageNoByKey returns. The
+	 * page is read from the node cache when it is there and pinned for the search otherwise.
+	 */
+	private PageId childFor(PageId indexId, BTSearchKey key) throws IOException, PinPageException,
+			UnpinPageException {
+		BTreeNodeCache.Node node = nodeCache.get(indexId);
+		if (node != null)
+			return new PageId(node.children[node.childIndex(key, false)]);
+		byte[] data = pinPage(indexId).getpage();
+		int slot = BTPageLayout.upperBound(data, key);
+		PageId childId = slot == 0 ? new PageId(BTPageLayout.getInt(data, HFPage.PREV_PAGE))
+				: new PageId(BTPageLayout.childAt(data, slot - 1));
+		unpinPage(indexId);
+		return childId;
+	}
 
-		// ASSERTION - pageno and sortPage is the root of the btree
-		// pageno and sortPage valid and pinned
+	/**
+	 * Sets how many levels, counted from the root, the node cache keeps decoded. 0 turns the cache off.
+	 */
+	public void setNodeCacheLevels(int levels) {
+		nodeCache.setLevels(Math.max(0, levels));
+	}
+
+	/**
+	 * NaiveDelete positions on the first entry of key with findRunStart and removes every entry of the run
+	 * that points to rid, following the run onto the next leaves when it continues there. Pages are not
+	 * merged, and the entries are matched on the page bytes. In a file with order statistics the entries are
+	 * deleted one at a time from the root instead, so that the counts on the way can be kept. In a file with
+	 * posting lists the run is the one record of key, whose list is binary searched for rid.
+	 */
+	private boolean NaiveDelete(KeyClass key, RID rid)
+			throws LeafDeleteException, KeyNotMatchException, PinPageException, ConstructPageException, IOException,
+			UnpinPageException, PinPageException, IndexSearchException, IteratorException
 
-		while (sortPage.getType() == NodeType.INDEX) {
-			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prepgnum = pageIndex.getPrevPage();
-			currentry = pageIndex.getFirst(startrid);
-			while (currentry != null && lo_key != null && BT.keyCompare(currentry.key, lo_key) < 0) {
+	{
+		// with RID-ordered duplicates the search goes straight to the entry instead of the start of the run
+		BTSearchKey searchKey = entryKey(key, rid);
+		if (counted)
+			return countedNaiveDelete(searchKey, rid);
+		RID ridItr = new RID();
+		BTLeafPage leafPage = findRunStart(searchKey, ridItr);
+		//If the leafPage is null, return false because the key was not found.
+		if (leafPage == null)
+			return false;
+		int slot = ridItr.slotNo;
+		if (postingLists) {
+			byte[] data = leafPage.getpage();
+			boolean deleted;
+			try {
+				deleted = searchKey.compareTo(data, BTPageLayout.slotOffset(data, slot)) == 0
+						&& removePosting(data, slot, searchKey, rid, true) > 0;
+			} catch (FreePageException e) {
+				throw new LeafDeleteException(e, "freeing an overflow page failed");
+			}
+			unpinPage(leafPage.getCurPage(), deleted);
+			return deleted;
+		}
+		boolean deleted = false;
+		while (true) {
+			byte[] data = leafPage.getpage();
+			boolean dirty = false;
+			int count;
+			while (slot < (count = BTPageLayout.slotCount(data))
+					&& searchKey.compareTo(data, BTPageLayout.slotOffset(data, slot)) == 0) {
+				if (BTPageLayout.ridMatches(data, slot, rid)) {
+					BTPageLayout.removeRecords(data, slot, slot + 1, scratch.get());
+					dirty = true;
+				} else {
+					slot++;
+				}
+			}
+			deleted |= dirty;
+			PageId nextPage = leafPage.getNextPage();
+			unpinPage(leafPage.getCurPage(), dirty);
+			// the run ended on this page, or there are no more pages
+			if (slot < count || nextPage.pid == INVALID_PAGE)
+				return deleted;
+			leafPage = new BTLeafPage(pinPage(nextPage, BTreePageStore.SCAN), headerPage.get_keyType());
+			slot = 0;
+		}
+	}
 
-				prepgnum = ((IndexData) currentry.data).getData();
-				currentry = pageIndex.getNext(startrid);
+	private boolean countedNaiveDelete(BTSearchKey searchKey, RID rid) throws LeafDeleteException, KeyNotMatchException,
+			PinPageException, UnpinPageException, ConstructPageException, IOException {
+		boolean deleted = false;
+		try {
+			while (headerPage.get_rootId().pid != INVALID_PAGE) {
+				int total = getHeaderField(HDR_COUNT_TOTAL);
+				if (deleteFromSubtree(searchKey, rid, headerPage.get_rootId(), total, false) == NOT_FOUND)
+					break;
+				setHeaderField(HDR_COUNT_TOTAL, total - 1);
+				deleted = true;
 			}
+		} catch (FreePageException e) {
+			throw new LeafDeleteException(e, "");
+		} catch (IndexInsertRecException e) {
+			throw new LeafDeleteException(e, "");
+		} catch (NodeNotMatchException e) {
+			throw new LeafDeleteException(e, "");
+		} catch (ConvertException e) {
+			throw new LeafDeleteException(e, "");
+		}
+		return deleted;
+	}
 
-			unpinPage(pgnum);
+	/**
+	 * setConcurrent switches the file into or out of concurrent mode. In concurrent mode insert, insertBatch,
+	 * Delete, lookup and contains may be called from many threads at once. Index pages are chained through right
+	 * links like the leaves, and a split records the high key of the page in memory (see BTreeLatches for why not
+	 * on the page), so readers descend without latching anything and follow a right link when they arrive at a
+	 * page that was split after they read its parent (Lehman and Yao). Writers latch one page at a time: the page
+	 * they change, and after a split its parent. Delete only takes entries off the leaves and does not merge pages
+	 * in this mode. openCursor, new_scan, parallelScan and stream work on copies of the pages they read, each
+	 * taken under an optimistic stamp and validated, so a scan never sees a page halfway through a change, see
+	 * readCopy. The mode has to be switched while no other thread uses the file; switching it off repairs the prev
+	 * links of the leaves, which writers do not keep, and rebuilds a Bloom filter that has outgrown its size. A
+	 * file with RID-ordered duplicates or posting lists cannot be switched into it.
+	 */
+	public void setConcurrent(boolean on) throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException {
+		if (on == (latches != null))
+			return;
+		if (on && ridOrdered) {
+			logger.error("Concurrent mode error!");
+			throw new IteratorException(null, "concurrent mode does not keep duplicates in RID order");
+		}
+		if (on && writeBuffer != null) {
+			logger.error("Concurrent mode error!");
+			throw new IteratorException(null, "concurrent mode does not go with a write buffer");
+		}
+		if (on && postingLists) {
+			logger.error("Concurrent mode error!");
+			throw new IteratorException(null, "concurrent mode does not go with posting lists");
+		}
+		// the node cache, the insert run and the last leaf are only used single threaded
+		nodeCache.clear();
+		insertRun = 0;
+		rightmostLeaf = INVALID_PAGE;
+		if (on) {
+			rootPid = headerPage.get_rootId().pid;
+			latches = new BTreeLatches();
+			// writers do not keep the counts, they are rebuilt when the mode is switched off again
+			if (counted)
+				setHeaderField(HDR_COUNTS, COUNTS_STALE);
+			return;
+		}
+		latches = null;
+		relinkPrevLinks();
+		if (counted)
+			rebuildCounts();
+		if (bloom != null) {
+			int bitsPerKey = getHeaderField(HDR_BLOOM_BITS_PER_KEY);
+			if (getHeaderField(HDR_BLOOM_KEYS) > bloom.capacity(bitsPerKey)
+					|| getHeaderField(HDR_BLOOM_DELETES) > getHeaderField(HDR_BLOOM_KEYS) / 2)
+				createBloomFilter(bitsPerKey);
+		}
+	}
 
-			pgnum = prepgnum;
-			page = pinPage(pgnum);
-			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+	/**
+	 * Walks from the root to the leaf for searchKey in concurrent mode, without latching any page. path, when
+	 * not null, receives the index pages the walk descended from. Returns the leaf page id, not pinned.
+	 */
+	private PageId latchFreeDescend(BTSearchKey searchKey, boolean strict, ArrayList<PageId> path)
+			throws PinPageException, UnpinPageException {
+		PageId pageId = new PageId(rootPid);
+		int[] step = new int[2];
+		for (int depth = 0;; ) {
+			readStep(pageId, searchKey, strict, step);
+			if (step[0] == STEP_LEAF) {
+				metrics.descended(depth);
+				return pageId;
+			}
+			if (step[0] == STEP_CHILD) {
+				depth++;
+				if (path != null)
+					path.add(pageId);
+			}
+			pageId = new PageId(step[1]);
+		}
+	}
 
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pgnum + lineSep);
-				trace.flush();
+	/**
+	 * Reads pageId optimistically and sets step to where a descent for searchKey goes from there: STEP_RIGHT
+	 * and the right sibling when searchKey lies beyond the high key of the page, STEP_LEAF when the page is the
+	 * leaf, or STEP_CHILD and the child to descend to. The page is read again until no writer interfered.
+	 */
+	private void readStep(PageId pageId, BTSearchKey searchKey, boolean strict, int[] step)
+			throws PinPageException, UnpinPageException {
+		while (true) {
+			long stamp = latches.optimisticRead(pageId);
+			byte[] data = pinPage(pageId).getpage();
+			try {
+				if (beyondHighKey(pageId, searchKey, strict)) {
+					step[0] = STEP_RIGHT;
+					step[1] = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+				} else if (BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.LEAF) {
+					step[0] = STEP_LEAF;
+				} else {
+					int slot = searchKey == null ? 0
+							: strict ? BTPageLayout.lowerBound(data, searchKey) : BTPageLayout.upperBound(data, searchKey);
+					step[0] = STEP_CHILD;
+					step[1] = slot == 0 ? BTPageLayout.getInt(data, HFPage.PREV_PAGE)
+							: BTPageLayout.childAt(data, slot - 1);
+				}
+			} catch (RuntimeException e) {
+				// a page changed halfway through the read can hold anything, it is read again below
+				if (latches.validate(pageId, stamp)) {
+					unpinPage(pageId);
+					throw e;
+				}
 			}
+			unpinPage(pageId);
+			if (latches.validate(pageId, stamp))
+				return;
+		}
+	}
+
+	/**
+	 * Whether a search for searchKey has to continue right of pageId, because the page was split at a key
+	 * that searchKey is not below (strictly above for a strict search).
+	 */
+	private boolean beyondHighKey(PageId pageId, BTSearchKey searchKey, boolean strict) {
+		byte[] highKey = searchKey == null ? null : latches.highKey(pageId);
+		if (highKey == null)
+			return false;
+		int cmp = searchKey.compareTo(highKey, 0);
+		return strict ? cmp > 0 : cmp >= 0;
+	}
 
+	/**
+	 * Latches the page that searchKey belongs to on the level of pageId, following right links while
+	 * searchKey lies beyond the high key. pageId is updated to the latched page and the stamp is returned.
+	 */
+	private long latchForKey(PageId pageId, BTSearchKey searchKey, boolean strict)
+			throws PinPageException, UnpinPageException {
+		while (true) {
+			long stamp = latches.latch(pageId);
+			if (!beyondHighKey(pageId, searchKey, strict))
+				return stamp;
+			int next = BTPageLayout.getInt(pinPage(pageId).getpage(), HFPage.NEXT_PAGE);
+			unpinPage(pageId);
+			latches.unlatch(pageId, stamp);
+			pageId.pid = next;
 		}
+	}
 
-		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+	/**
+	 * Copies pageId into copy in concurrent mode and returns copy. The page is read optimistically until no
+	 * writer interfered, so the copy is consistent and can be read on after the page is unpinned. With a
+	 * searchKey, right links are followed while searchKey lies strictly beyond the high key, as a strict
+	 * descent does, and pageId is updated to the page that was copied.
+	 */
+	byte[] readCopy(PageId pageId, BTSearchKey searchKey, byte[] copy, int hint)
+			throws PinPageException, UnpinPageException {
+		while (true) {
+			long stamp = latches.optimisticRead(pageId);
+			byte[] data = pinPage(pageId, hint).getpage();
+			boolean beyond = beyondHighKey(pageId, searchKey, true);
+			int next = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+			if (!beyond)
+				System.arraycopy(data, 0, copy, 0, copy.length);
+			unpinPage(pageId);
+			if (!latches.validate(pageId, stamp))
+				continue;
+			if (!beyond)
+				return copy;
+			pageId.pid = next;
+		}
+	}
 
-		currentry = pageLeaf.getFirst(startrid);
-		while (currentry == null) {
-			nextpgno = pageLeaf.getNextPage();
-			unpinPage(pgnum);
-			if (nextpgno.pid == INVALID_PAGE) {
-				return null;
+	/**
+	 * Copies the leaf pageId into copy for BTreeReadAhead and returns copy. The page is pinned straight through
+	 * the page store, so the pins of the read-ahead thread are not counted by getPinCount and the metrics, which
+	 * are meant for the pins of the operations themselves. In concurrent mode the page is read until no writer
+	 * interfered, as readCopy does.
+	 */
+	byte[] prefetchCopy(PageId pageId, byte[] copy) throws PinPageException, UnpinPageException {
+		BTreePageStore pageStore = storeFor(pageId);
+		while (true) {
+			long stamp = latches == null ? 0 : latches.optimisticRead(pageId);
+			try {
+				System.arraycopy(pageStore.pinPage(pageId, BTreePageStore.SCAN).getpage(), 0, copy, 0, copy.length);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new PinPageException(e, "");
+			}
+			try {
+				pageStore.unpinPage(pageId, false /* = not DIRTY */);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new UnpinPageException(e, "");
 			}
+			if (latches == null || latches.validate(pageId, stamp))
+				return copy;
+		}
+	}
 
-			pgnum = nextpgno;
-			pageLeaf = new BTLeafPage(pinPage(pgnum), headerPage.get_keyType());
-			currentry = pageLeaf.getFirst(startrid);
+	boolean isConcurrent() {
+		return latches != null;
+	}
+
+	/**
+	 * Copy of the key stored in slot of data, as high key of a page.
+	 */
+	private byte[] keyBytes(byte[] data, int slot) throws IOException {
+		return BTPageLayout.keyBytes(data, BTPageLayout.slotOffset(data, slot), headerPage.get_keyType());
+	}
+
+	/**
+	 * concurrentInsert inserts <key, rid> in concurrent mode. The leaf is found without latches and latched
+	 * alone for the insert. A split is finished on the leaf before its latch is released, and the separator is
+	 * then inserted into the parent in the same way, the parent being the page the descent came from, or the
+	 * page on that level found by a new descent when the root was split by another thread meanwhile.
+	 */
+	private void concurrentInsert(KeyClass key, BTSearchKey searchKey, RID rid, byte[] payload) throws IOException,
+			ConstructPageException, PinPageException, UnpinPageException, LeafInsertRecException,
+			IndexInsertRecException, IteratorException, KeyNotMatchException, NodeNotMatchException {
+		int keyType = headerPage.get_keyType();
+		if (rootPid == INVALID_PAGE) {
+			synchronized (rootLatch) {
+				if (rootPid == INVALID_PAGE) {
+					BTLeafPage rootLeaf = newLeafPage();
+					rootLeaf.setNextPage(new PageId(INVALID_PAGE));
+					rootLeaf.setPrevPage(new PageId(INVALID_PAGE));
+					BTPageLayout.insertLeafRecord(rootLeaf.getpage(), searchKey, payload, rid);
+					unpinPage(rootLeaf.getCurPage(), true);
+					updateHeader(rootLeaf.getCurPage());
+					return;
+				}
+			}
 		}
-		// - curkey, curRid: contain the first record
-		if (lo_key == null) {
-			return pageLeaf;
-			// note that pageno/pageLeaf is still pinned;
-			// scan will unpin it when done
+		ArrayList<PageId> path = new ArrayList<PageId>();
+		PageId pageId = latchFreeDescend(searchKey, false, path);
+		KeyDataEntry upEntry = latchedInsert(pageId, searchKey, key, rid, payload, null, INVALID_PAGE);
+		// level of the parent of pageId, 1 being the level right above the leaves
+		for (int level = 1; upEntry != null; level++) {
+			PageId childId = ((IndexData) upEntry.data).getData();
+			if (path.isEmpty()) {
+				synchronized (rootLatch) {
+					if (rootPid == pageId.pid) {
+						// pageId is still the root, grow the tree by one level
+						BTIndexPage newRoot = newIndexPage();
+						newRoot.setPrevPage(new PageId(pageId.pid));
+						newRoot.setNextPage(new PageId(INVALID_PAGE));
+						insertIndexEntry(newRoot.getpage(), new BTSearchKey(upEntry.key, keyType), childId.pid, 0);
+						unpinPage(newRoot.getCurPage(), true);
+						updateHeader(newRoot.getCurPage());
+						return;
+					}
+				}
+				// the tree grew above pageId meanwhile, find the page on the parent level again
+				latchFreeDescend(new BTSearchKey(upEntry.key, keyType), false, path);
+				// drop the levels below the parent, the path ends with the parent level then
+				for (int below = 1; below < level; below++)
+					path.remove(path.size() - 1);
+			}
+			int leftPid = pageId.pid;
+			pageId = path.remove(path.size() - 1);
+			upEntry = latchedInsert(pageId, new BTSearchKey(upEntry.key, keyType), upEntry.key, null, null, childId,
+					leftPid);
 		}
-		while (BT.keyCompare(currentry.key, lo_key) < 0) {
-			currentry = pageLeaf.getNext(startrid);
-			while (currentry == null) {
-				nextpgno = pageLeaf.getNextPage();
-				unpinPage(pgnum);
+	}
 
-				if (nextpgno.pid == INVALID_PAGE) {
+	/**
+	 * Latches the page on the level of pageId that searchKey belongs to and inserts either <key, rid> with its
+	 * payload into the leaf or <key, childId> into the index page, behind the child leftPid that was split.
+	 * Returns the entry for the parent when the page was split.
+	 */
+	private KeyDataEntry latchedInsert(PageId pageId, BTSearchKey searchKey, KeyClass key, RID rid,
+			byte[] payload, PageId childId, int leftPid) throws IOException, ConstructPageException,
+			PinPageException, UnpinPageException, LeafInsertRecException, IndexInsertRecException,
+			IteratorException, KeyNotMatchException, NodeNotMatchException {
+		int keyType = headerPage.get_keyType();
+		long stamp = latchForKey(pageId, searchKey, false);
+		try {
+			Page page = pinPage(pageId);
+			if (rid != null) {
+				BTLeafPage leaf = new BTLeafPage(page, keyType);
+				if (BTPageLayout.hasRoom(page.getpage(), leafRecordLength(searchKey, payload))) {
+					BTPageLayout.insertLeafRecord(page.getpage(), searchKey, payload, rid);
+					unpinPage(pageId, true);
 					return null;
 				}
-				pgnum = nextpgno;
-				pageLeaf = new BTLeafPage(pinPage(pgnum), headerPage.get_keyType());
-				currentry = pageLeaf.getFirst(startrid);
+				return splitLeaf(leaf, searchKey, rid, payload);
+			}
+			BTIndexPage indexPage = new BTIndexPage(page, keyType);
+			int slot = BTPageLayout.slotBehindChild(page.getpage(), searchKey, leftPid);
+			if (BTPageLayout.hasRoom(page.getpage(), indexEntryLength(searchKey))) {
+				// counts go stale in concurrent mode, see setConcurrent
+				insertIndexEntry(page.getpage(), slot, searchKey, childId.pid, 0);
+				unpinPage(pageId, true);
+				return null;
 			}
+			return splitIndex(indexPage, new KeyDataEntry(key, childId), slot, 0, null);
+		} finally {
+			latches.unlatch(pageId, stamp);
 		}
-		return pageLeaf;
 	}
 
 	/**
-	 * This is the method signature that specifies the method's access modifier, name, parameter types, and any exceptions that it throws
-	 * Declare and initialize a BTLeafPage object called leafPage and a RID object called ridItr. Also declare a KeyDataEntry object called kDataEntry. 
-	 * Assign the result of calling the findRunStart method with the key and ridItr as arguments to the leafPage variable.
+	 * concurrentDelete removes the entries <key, rid> from the leaves in concurrent mode, latching one leaf at
+	 * a time and following the run of key onto the next leaves. Pages are not merged.
 	 */
-	private boolean NaiveDelete(KeyClass key, RID rid)
-			throws LeafDeleteException, KeyNotMatchException, PinPageException, ConstructPageException, IOException,
-			UnpinPageException, PinPageException, IndexSearchException, IteratorException
-
-	{
-		BTLeafPage leafPage;
-		RID ridItr = new RID();
-		KeyDataEntry kDataEntry;
-		leafPage = findRunStart(key, ridItr);
-		if (leafPage == null)
+	private boolean concurrentDelete(BTSearchKey searchKey, RID rid) throws PinPageException, UnpinPageException {
+		if (rootPid == INVALID_PAGE)
 			return false;
-		//If the leafPage is null, return false because the key was not found.
-		kDataEntry = leafPage.getCurrent(ridItr);
-		RID fRID = new RID();
-		int dlt = 0;
-		//Enter a do-while loop that loops until a break statement is encountered
-		do {
-			while (kDataEntry == null) {
-				//Inside the loop, enter a while loop that loops until kDataEntry is not null
-				PageId nextPage = leafPage.getNextPage();
-				unpinPage(leafPage.getCurPage());
-				if (nextPage.pid == INVALID_PAGE)
-					return false;
-				leafPage = new BTLeafPage(nextPage, headerPage.get_keyType());
-				//getFirst method of the leafPage object with fRID as an argument and assign the result to kDataEntry.
-				kDataEntry = leafPage.getFirst(fRID);
-			}
-			// If the key is greater than the key in the kDataEntry, break out of the loop
-			if (BT.keyCompare(key, kDataEntry.key) > 0)
-				break;
-			// Enter a while loop that continues until the delEntry method of the leafPage object with a new 
-			// KeyDataEntry object with key and rid as arguments returns false. Inside the loop, update kDataEntry 
-			// to the current entry at ridItr and update dlt
-			while (leafPage.delEntry(new KeyDataEntry(key, rid)) == true) {
-				kDataEntry = leafPage.getCurrent(ridItr);
-				dlt = 1;
-			}
-			if (kDataEntry == null)
+		PageId pageId = latchFreeDescend(searchKey, true, null);
+		boolean deleted = false;
+		while (true) {
+			long stamp = latchForKey(pageId, searchKey, true);
+			byte[] data = pinPage(pageId).getpage();
+			boolean dirty = false;
+			int slot = BTPageLayout.lowerBound(data, searchKey);
+			int count;
+			while (slot < (count = BTPageLayout.slotCount(data))
+					&& searchKey.compareTo(data, BTPageLayout.slotOffset(data, slot)) == 0) {
+				if (BTPageLayout.ridMatches(data, slot, rid)) {
+					BTPageLayout.removeRecords(data, slot, slot + 1, scratch.get());
+					dirty = true;
+				} else {
+					slot++;
+				}
+			}
+			int next = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+			unpinPage(pageId, dirty);
+			latches.unlatch(pageId, stamp);
+			deleted |= dirty;
+			if (slot < count || next == INVALID_PAGE)
+				return deleted;
+			pageId = new PageId(next);
+		}
+	}
+
+	/**
+	 * concurrentLookup is lookup in concurrent mode: the leaves are read optimistically like the index pages.
+	 */
+	private RID concurrentLookup(BTSearchKey searchKey) throws PinPageException, UnpinPageException {
+		if (rootPid == INVALID_PAGE)
+			return null;
+		PageId pageId = latchFreeDescend(searchKey, true, null);
+		RID rid = new RID();
+		while (true) {
+			long stamp = latches.optimisticRead(pageId);
+			byte[] data = pinPage(pageId).getpage();
+			int next = INVALID_PAGE;
+			boolean found = false;
+			try {
+				if (beyondHighKey(pageId, searchKey, true)) {
+					next = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+				} else {
+					int slot = BTPageLayout.lowerBound(data, searchKey);
+					if (slot >= BTPageLayout.slotCount(data)) {
+						// the entries of the key, if any, start on the next leaf
+						next = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+					} else if (searchKey.compareTo(data, BTPageLayout.slotOffset(data, slot)) == 0) {
+						BTPageLayout.ridAt(data, slot, rid);
+						found = true;
+					}
+				}
+			} catch (RuntimeException e) {
+				if (latches.validate(pageId, stamp)) {
+					unpinPage(pageId);
+					throw e;
+				}
+			}
+			unpinPage(pageId);
+			if (!latches.validate(pageId, stamp))
 				continue;
-			else
-				break;
-		} while (true);
-		unpinPage(leafPage.getCurPage());
-		if (dlt == 1)
-			return true;
-		else
-			return false;
+			if (found)
+				return rid;
+			if (next == INVALID_PAGE)
+				return null;
+			pageId = new PageId(next);
+		}
 	}
 
 	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
 			IteratorException, ConstructPageException, PinPageException, UnpinPageException
 
 	{
+		flushWriteBuffer();
+		if (latches != null || store != BufferPoolPageStore.INSTANCE || intArrays || prefixKeys || postingLists) {
+			// BTFileScan pins the leaves through the buffer manager and would read them as they change, and it
+			// reads records through BTLeafPage, which knows neither array pages nor page prefixes, and returns
+			// only the first RID of a posting list. The cursor reads them from the page store, as validated
+			// copies in concurrent mode
+			return new BTreeCursorScan(this, scanCursor(lo_key, hi_key), hi_key, headerPage.get_keyType(),
+					headerPage.get_maxKeySize());
+		}
 		BTFileScan scan = new BTFileScan();
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			scan.leafPage = null;
@@ -644,33 +3873,374 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return scan;
 	}
 
+	/**
+	 * Cursor of a BTreeCursorScan from lo_key to hi_key.
+	 */
+	BTreeCursor scanCursor(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		return cursor(lo_key, hi_key, writeBuffer != null, readAheadLeaves);
+	}
+
+	/**
+	 * openCursor returns a cursor over the entries from lo_key to hi_key in ascending key order, null meaning
+	 * unbounded on that side. Unlike the entries of a BTFileScan, the cursor reads keys and RIDs from the
+	 * pinned leaf and allocates nothing per entry.
+	 */
+	public BTreeCursor openCursor(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		long scanStart = metrics.start(BTreeMetrics.SCAN);
+		BTreeCursor cursor = cursor(lo_key, hi_key, writeBuffer != null, readAheadLeaves);
+		cursor.setScanStart(scanStart);
+		return cursor;
+	}
+
+	/**
+	 * A cursor from lo_key to hi_key in ascending key order that merges in the changes of the write buffer when
+	 * merged is set and reads up to readAhead leaves ahead of itself.
+	 */
+	private BTreeCursor cursor(KeyClass lo_key, KeyClass hi_key, boolean merged, int readAhead)
+			throws IOException, KeyNotMatchException, IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		if (merged) {
+			awaitMerge();
+			settleWriteBuffer();
+		}
+		int keyType = headerPage.get_keyType();
+		BTSearchKey hiKey = hi_key == null ? null : new BTSearchKey(hi_key, keyType);
+		if (latches != null)
+			return concurrentCursor(keyType, lo_key == null ? null : new BTSearchKey(lo_key, keyType), hiKey,
+					readAhead);
+		RID start = new RID();
+		BTLeafPage leaf = findRunStart(lo_key, start);
+		BTreeCursor cursor;
+		if (leaf == null) {
+			cursor = new BTreeCursor(this, keyType, null, hiKey, false, null, null, 0);
+		} else {
+			cursor = new BTreeCursor(this, keyType, null, hiKey, false, start.pageNo, leaf.getpage(),
+					start.slotNo - 1);
+			int next = leaf.getNextPage().pid;
+			// the buffer manager is not thread safe and the rest of Minibase calls it without a lock
+			if (readAhead > 0 && next != INVALID_PAGE && store instanceof ChannelPageStore)
+				cursor.setReadAhead(new BTreeReadAhead(this, (ChannelPageStore) store, hiKey, readAhead, prefetchHits,
+						prefetchWasted, next));
+		}
+		if (merged)
+			cursor.setChanges(writeBuffer.range(lo_key, hi_key));
+		return cursor;
+	}
+
+	/**
+	 * cursor in concurrent mode. The cursor works on consistent copies of its leaves, see readCopy, and pins
+	 * none of them between calls. Splits only move entries to a new page linked in right of the old one, so a
+	 * cursor following the next link of its copy neither skips nor repeats an entry that was there the whole
+	 * time; an entry inserted or deleted meanwhile may or may not be seen.
+	 */
+	private BTreeCursor concurrentCursor(int keyType, BTSearchKey loKey, BTSearchKey hiKey, int readAhead)
+			throws PinPageException, UnpinPageException {
+		if (rootPid == INVALID_PAGE)
+			return new BTreeCursor(this, keyType, null, hiKey, false, null, null, 0);
+		PageId pageId = latchFreeDescend(loKey, true, null);
+		byte[] copy = readCopy(pageId, loKey, new byte[MINIBASE_PAGESIZE], BTreePageStore.SCAN);
+		int slot = loKey == null ? 0 : BTPageLayout.lowerBound(copy, loKey);
+		BTreeCursor cursor = new BTreeCursor(this, keyType, null, hiKey, false, pageId, copy, slot - 1);
+		cursor.setCopied();
+		int next = BTPageLayout.getInt(copy, HFPage.NEXT_PAGE);
+		if (readAhead > 0 && next != INVALID_PAGE && store instanceof ChannelPageStore)
+			cursor.setReadAhead(new BTreeReadAhead(this, (ChannelPageStore) store, hiKey, readAhead, prefetchHits,
+					prefetchWasted, next));
+		return cursor;
+	}
+
+	/**
+	 * Lets cursors from openCursor read up to leaves leaves ahead of themselves in the background, see
+	 * BTreeReadAhead. 0, the default, turns read-ahead off. Read-ahead pins pages from a background thread, so it
+	 * only runs with the channel page store, which is thread safe. The buffer manager is not, and BTFileScan,
+	 * BTreeHeaderPage and heap files call it without a lock, so with the default store a positive leaves is
+	 * refused rather than kept without effect.
+	 */
+	public void setReadAhead(int leaves) throws IteratorException {
+		if (leaves > 0 && !(store instanceof ChannelPageStore)) {
+			logger.error("Read-ahead error!");
+			throw new IteratorException(null, "read-ahead needs the channel page store");
+		}
+		readAheadLeaves = Math.max(0, leaves);
+	}
+
+	/**
+	 * parallelScan passes every entry with lo_key <= key <= hi_key to consumer, reading the range with
+	 * parallelism threads. The range is cut into subranges at separator keys of the upper index levels, see
+	 * rangeSpliterator, and each subrange is read as a walk along its own stretch of the leaf chain by a task
+	 * of a ForkJoinPool. consumer is called from all of these threads, and the entries of different subranges
+	 * reach it in no particular order. No page stays pinned after parallelScan returns or throws.
+	 */
+	public void parallelScan(KeyClass lo_key, KeyClass hi_key, int parallelism, Consumer<? super KeyDataEntry> consumer)
+			throws IOException, KeyNotMatchException, IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		flushWriteBuffer();
+		parallelism = Math.max(1, parallelism);
+		BTreeRangeSpliterator spliterator = rangeSpliterator(lo_key, hi_key, 4 * parallelism);
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new BTreeRangeSpliterator.ScanTask(spliterator, consumer));
+		} catch (BTreeRangeSpliterator.PageReadException e) {
+			throw new IteratorException((Exception) e.getCause(), "");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Stream of the entries with lo_key <= key <= hi_key in key order. The stream can be made parallel, in
+	 * which case it splits along the same subranges as parallelScan. A page that cannot be read ends the stream
+	 * with a BTreeRangeSpliterator.PageReadException.
+	 */
+	public Stream<KeyDataEntry> stream(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		flushWriteBuffer();
+		return StreamSupport.stream(rangeSpliterator(lo_key, hi_key, 4 * ForkJoinPool.getCommonPoolParallelism()),
+				false);
+	}
+
+	/**
+	 * Cuts [lo_key, hi_key] into at most ranges subranges at separator keys. Starting from the root, the index
+	 * pages of one level that overlap the range are read at a time, collecting the separators between their
+	 * children, until there are enough separators or the children are leaves. Pages of one level hold about
+	 * the same number of leaves below them, so picking every so many separators gives subranges of about the
+	 * same number of leaves. The leaf each subrange starts on is found here, on the calling thread.
+	 */
+	private BTreeRangeSpliterator rangeSpliterator(KeyClass lo_key, KeyClass hi_key, int ranges)
+			throws IOException, KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException {
+		int keyType = headerPage.get_keyType();
+		BTSearchKey loKey = lo_key == null ? null : new BTSearchKey(lo_key, keyType);
+		BTSearchKey hiKey = hi_key == null ? null : new BTSearchKey(hi_key, keyType);
+		// in concurrent mode the index pages are read as validated copies, see readCopy
+		boolean concurrent = latches != null;
+		int rootId = concurrent ? rootPid : headerPage.get_rootId().pid;
+		if (rootId == INVALID_PAGE
+				|| (lo_key != null && hi_key != null && BTSearchKey.keyCompare(lo_key, hi_key) > 0))
+			return new BTreeRangeSpliterator(this, keyType, new BTSearchKey[0], new int[0], hiKey, 0, 0);
+
+		// pages of one level that overlap the range, in key order, and the separators between them
+		ArrayList<PageId> pages = new ArrayList<PageId>();
+		ArrayList<BTSearchKey> separators = new ArrayList<BTSearchKey>();
+		pages.add(new PageId(rootId));
+		byte[] copy = concurrent ? new byte[MINIBASE_PAGESIZE] : null;
+		while (separators.size() + 1 < ranges) {
+			ArrayList<PageId> children = new ArrayList<PageId>();
+			ArrayList<BTSearchKey> childSeparators = new ArrayList<BTSearchKey>();
+			for (int i = 0; i < pages.size(); i++) {
+				PageId pageId = pages.get(i);
+				byte[] data = concurrent ? readCopy(pageId, null, copy, BTreePageStore.PROBE)
+						: pinPage(pageId).getpage();
+				if (BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.LEAF) {
+					// all pages of a level are leaves or none
+					if (!concurrent)
+						unpinPage(pageId);
+					children = null;
+					break;
+				}
+				if (i > 0)
+					childSeparators.add(separators.get(i - 1));
+				int first = loKey == null ? 0 : BTPageLayout.lowerBound(data, loKey);
+				int last = hiKey == null ? BTPageLayout.slotCount(data) : BTPageLayout.upperBound(data, hiKey);
+				children.add(new PageId(first == 0 ? BTPageLayout.getInt(data, HFPage.PREV_PAGE)
+						: BTPageLayout.childAt(data, first - 1)));
+				for (int slot = first; slot < last; slot++) {
+					childSeparators.add(new BTSearchKey(
+							BTPageLayout.keyAt(data, BTPageLayout.slotOffset(data, slot), keyType), keyType));
+					children.add(new PageId(BTPageLayout.childAt(data, slot)));
+				}
+				if (!concurrent)
+					unpinPage(pageId);
+			}
+			if (children == null)
+				break;
+			pages = children;
+			separators = childSeparators;
+		}
+
+		int count = Math.min(Math.max(1, ranges), separators.size() + 1);
+		BTSearchKey[] starts = new BTSearchKey[count];
+		int[] startPids = new int[count];
+		starts[0] = loKey;
+		for (int i = 1; i < count; i++)
+			starts[i] = separators.get((int) ((long) i * (separators.size() + 1) / count) - 1);
+		for (int i = 0; i < count; i++) {
+			BTLeafPage leaf = descendToLeaf(starts[i], true, null, null);
+			startPids[i] = leaf.getCurPage().pid;
+			unpinPage(leaf.getCurPage());
+		}
+		return new BTreeRangeSpliterator(this, keyType, starts, startPids, hiKey, 0, count);
+	}
+
+	/**
+	 * Number of leaves that a cursor reached after they had been read ahead, while they were still resident.
+	 */
+	public long getPrefetchHits() {
+		return prefetchHits.get();
+	}
+
+	/**
+	 * Number of leaves that were read ahead but replaced before their cursor reached them, or never reached.
+	 */
+	public long getPrefetchWasted() {
+		return prefetchWasted.get();
+	}
+
+	/**
+	 * Number of pages pinned through this file so far, new pages included. Pages that BTFileScan or
+	 * BTreeHeaderPage pin through the buffer manager themselves are not counted.
+	 */
+	public long getPinCount() {
+		return pins.sum();
+	}
+
+	public long getUnpinCount() {
+		return unpins.sum();
+	}
+
+	/**
+	 * Number of unpins so far that marked their page dirty. The buffer manager and the channel page store
+	 * write a page back once for all of them that come while it stays in memory.
+	 */
+	public long getDirtyUnpinCount() {
+		return dirtyUnpins.sum();
+	}
+
+	/**
+	 * Number of pages the page store wrote to the database file so far, or -1 when it cannot tell, as the
+	 * buffer manager cannot.
+	 */
+	public long getDiskWrites() {
+		return store instanceof ChannelPageStore ? ((ChannelPageStore) store).diskWrites() : -1;
+	}
+
+	/**
+	 * Bytes the write buffers of this file have written to their logs so far.
+	 */
+	public long getLogBytes() {
+		return logBytes + (writeBuffer == null ? 0 : writeBuffer.logBytes());
+	}
+
+	/**
+	 * Times the write buffers of this file have forced their logs to the disk so far.
+	 */
+	public long getLogSyncs() {
+		return logSyncs + (writeBuffer == null ? 0 : writeBuffer.syncs());
+	}
+
+	/**
+	 * Number of pages the page store read from the database file so far, or -1 when it cannot tell, as the
+	 * buffer manager cannot.
+	 */
+	public long getDiskReads() {
+		return store instanceof ChannelPageStore ? ((ChannelPageStore) store).diskReads() : -1;
+	}
+
+	/**
+	 * Returns the metrics of this file since it was opened or last reset: splits, delete hits and misses, and
+	 * per operation type the pages pinned, descent depths, scan lengths and latencies, see BTreeMetrics.
+	 */
+	public BTreeMetrics.Snapshot snapshot() {
+		return metrics.snapshot();
+	}
+
+	public void resetMetrics() {
+		metrics.reset();
+	}
+
+	/**
+	 * Turns the collection of metrics on or off, it is on by default.
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		metrics.setEnabled(enabled);
+	}
+
+	BTreeMetrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * new_scan_reverse returns a cursor over the entries from hi_key down to lo_key, null meaning unbounded on
+	 * that side. It descends to the leaf holding the last entry not above hi_key and walks the leaves back
+	 * through their prev links, so reading the top N entries touches about N / fanout leaves. The prev links
+	 * are only kept up to date outside concurrent mode, where the scan is refused.
+	 */
+	public BTreeCursor new_scan_reverse(KeyClass lo_key, KeyClass hi_key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		flushWriteBuffer();
+		if (latches != null) {
+			logger.error("Reverse scan error!");
+			throw new IteratorException(null, "new_scan_reverse does not run in concurrent mode");
+		}
+		long scanStart = metrics.start(BTreeMetrics.SCAN);
+		int keyType = headerPage.get_keyType();
+		BTSearchKey loKey = lo_key == null ? null : new BTSearchKey(lo_key, keyType);
+		BTSearchKey hiKey = hi_key == null ? null : new BTSearchKey(hi_key, keyType);
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return new BTreeCursor(this, keyType, loKey, hiKey, true, null, null, 0);
+		// the rightmost leaf that can hold hi_key, entries equal to it included
+		BTLeafPage leaf = hiKey == null ? lastLeaf() : descendToLeaf(hiKey, false, null, null);
+		byte[] data = leaf.getpage();
+		int slot = hiKey == null ? BTPageLayout.slotCount(data) : BTPageLayout.upperBound(data, hiKey);
+		BTreeCursor cursor = new BTreeCursor(this, keyType, loKey, null, true, leaf.getCurPage(), data, slot);
+		cursor.setScanStart(scanStart);
+		return cursor;
+	}
+
+	/**
+	 * Descends along the last child of every index page and returns the last leaf pinned.
+	 */
+	private BTLeafPage lastLeaf() throws IOException, PinPageException, UnpinPageException,
+			ConstructPageException {
+		PageId pageId = latches != null ? new PageId(rootPid) : headerPage.get_rootId();
+		while (true) {
+			Page page = pinPage(pageId);
+			byte[] data = page.getpage();
+			int next = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+			PageId childId;
+			if (next != INVALID_PAGE) {
+				// only a split that has not reached the parent yet leaves a page right of the last child
+				childId = new PageId(next);
+			} else if (BTPageLayout.getShort(data, HFPage.TYPE) == NodeType.LEAF) {
+				return new BTLeafPage(page, headerPage.get_keyType());
+			} else {
+				int count = BTPageLayout.slotCount(data);
+				childId = count == 0 ? new PageId(BTPageLayout.getInt(data, HFPage.PREV_PAGE))
+						: new PageId(BTPageLayout.childAt(data, count - 1));
+			}
+			unpinPage(pageId);
+			pageId = childId;
+		}
+	}
+
 	void trace_children(PageId id)
 			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
 
-		if (trace != null) {
+		if (BTreeTrace.enabled()) {
 			BTSortedPage sortedPage;
-			RID metaRid = new RID();
-			PageId childPageId;
-			KeyClass key;
 			KeyDataEntry entry;
+			StringBuilder text = new StringBuilder();
 			sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
 			if (sortedPage.getType() == NodeType.INDEX) {
 				BTIndexPage indexPage = new BTIndexPage(sortedPage, headerPage.get_keyType());
-				trace.writeBytes("INDEX CHILDREN " + id + " nodes" + lineSep);
-				trace.writeBytes(" " + indexPage.getPrevPage());
-				for (entry = indexPage.getFirst(metaRid); entry != null; entry = indexPage.getNext(metaRid)) {
-					trace.writeBytes("   " + ((IndexData) entry.data).getData());
+				text.append("INDEX CHILDREN " + id + " nodes" + lineSep);
+				text.append(" " + indexPage.getPrevPage());
+				for (int slot = 0; slot < indexPage.getSlotCnt(); slot++) {
+					entry = entryAt(indexPage, slot);
+					text.append("   " + ((IndexData) entry.data).getData());
 				}
 			} else if (sortedPage.getType() == NodeType.LEAF) {
 				BTLeafPage leafPage = new BTLeafPage(sortedPage, headerPage.get_keyType());
-				trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
-				for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage.getNext(metaRid)) {
-					trace.writeBytes("   " + entry.key + " " + entry.data);
+				text.append("LEAF CHILDREN " + id + " nodes" + lineSep);
+				for (int slot = 0; slot < leafPage.getSlotCnt(); slot++) {
+					entry = entryAt(leafPage, slot);
+					text.append("   " + entry.key + " " + entry.data);
 				}
 			}
 			unpinPage(id);
-			trace.writeBytes(lineSep);
-			trace.flush();
+			text.append(lineSep);
+			BTreeTrace.text(text.toString());
 		}
 
 	}
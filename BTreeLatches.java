@@ -0,0 +1,89 @@
+package btree;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+import global.*;
+
+/**
+ * BTreeLatches holds the page latches and high keys of a BTreeFile in concurrent mode. Latches are striped
+ * over a fixed set of StampedLocks by page number: a writer latches a page exclusively while it changes it,
+ * and a reader takes no latch at all but reads a page optimistically and validates the stamp afterwards,
+ * reading the page again if a writer got in between. Pages sharing a stripe only cost each other retries, so
+ * a thread must never hold two latches at once.
+ *
+ * The high key of a page is the separator it was last split at. A descent that reached a page through a
+ * parent read before the split finds its key at or beyond the high key, and follows the right link of the
+ * page to the new sibling instead.
+ *
+ * Unlike in Lehman and Yao, high keys are not stored on the pages. They are kept only here, in memory, while
+ * the file stays in concurrent mode. A page without an entry is treated as having no high key. That is only
+ * sound because of how the mode is entered and left. A high key matters only for a split whose separator is
+ * not in the parent yet. Every such split has finished by the time setConcurrent(false) returns, and a new
+ * BTreeLatches without high keys is made each time the mode is switched on, when every parent routes
+ * correctly. So splits, merges, compact and bulkLoad outside concurrent mode, or before the file was opened,
+ * need no high keys, and need not keep any up to date. What it costs is that the map holds one key per page
+ * split in concurrent mode until the mode is switched off, that the high keys are lost with the process, so no
+ * other process or file handle could descend concurrently with this one, and that a page read on its own, for
+ * instance by BTreeTrace, does not show its high key.
+ */
+final class BTreeLatches {
+
+	private final static int STRIPES = 1024;
+
+	private final StampedLock[] locks = new StampedLock[STRIPES];
+	// key bytes as they are stored on a page
+	private final ConcurrentHashMap<Integer, byte[]> highKeys = new ConcurrentHashMap<Integer, byte[]>();
+
+	BTreeLatches() {
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new StampedLock();
+	}
+
+	private StampedLock lock(PageId pageId) {
+		return locks[(pageId.pid & 0x7fffffff) % STRIPES];
+	}
+
+	/**
+	 * Stamp for an optimistic read of pageId, waiting for a writer that holds its latch to finish.
+	 */
+	long optimisticRead(PageId pageId) {
+		StampedLock lock = lock(pageId);
+		long stamp;
+		while ((stamp = lock.tryOptimisticRead()) == 0)
+			Thread.yield();
+		return stamp;
+	}
+
+	/**
+	 * Whether pageId was not latched by a writer since optimisticRead returned stamp.
+	 */
+	boolean validate(PageId pageId, long stamp) {
+		return lock(pageId).validate(stamp);
+	}
+
+	long latch(PageId pageId) {
+		return lock(pageId).writeLock();
+	}
+
+	void unlatch(PageId pageId, long stamp) {
+		lock(pageId).unlockWrite(stamp);
+	}
+
+	byte[] highKey(PageId pageId) {
+		return highKeys.get(pageId.pid);
+	}
+
+	/**
+	 * Records that the latched page leftId was split at key into itself and rightId, which inherits the old
+	 * high key of leftId.
+	 */
+	void split(PageId leftId, PageId rightId, byte[] key) {
+		byte[] old = highKeys.get(leftId.pid);
+		if (old != null)
+			highKeys.put(rightId.pid, old);
+		else
+			highKeys.remove(rightId.pid);
+		highKeys.put(leftId.pid, key);
+	}
+}
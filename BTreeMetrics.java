@@ -0,0 +1,237 @@
+package btree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BTreeMetrics collects what the operations of a BTreeFile do: how many pages they pin, how deep their
+ * descents go, the splits, delete hits and misses, scan lengths and the latency of every operation. All of it
+ * goes into striped counters, LongAdders, so that threads in concurrent mode do not contend on them, and
+ * distributions go into histograms with power of two buckets. Pins are counted per thread, so an operation
+ * only sees its own. Nothing is recorded while the metrics are disabled, which costs one volatile read per
+ * operation.
+ */
+public final class BTreeMetrics {
+
+	public static final int INSERT = 0;
+	public static final int DELETE = 1;
+	public static final int LOOKUP = 2;
+	public static final int SCAN = 3;
+
+	private static final String[] OPERATIONS = { "insert", "delete", "lookup", "scan" };
+
+	/**
+	 * Histogram of non-negative values in power of two buckets: bucket i holds the values of bit length i,
+	 * those in [2^(i-1), 2^i).
+	 */
+	static final class Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		void record(long value) {
+			value = Math.max(0, value);
+			buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+			count.increment();
+			sum.add(value);
+		}
+
+		void reset() {
+			for (LongAdder bucket : buckets)
+				bucket.reset();
+			count.reset();
+			sum.reset();
+		}
+
+		HistogramSnapshot snapshot() {
+			long[] counts = new long[buckets.length];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = buckets[i].sum();
+			return new HistogramSnapshot(counts, count.sum(), sum.sum());
+		}
+	}
+
+	/**
+	 * Counts of a Histogram at one point in time. Percentiles are the upper bound of the bucket they fall in,
+	 * so they are off by less than a factor of two.
+	 */
+	public static final class HistogramSnapshot {
+		private final long[] buckets;
+		public final long count;
+		public final long sum;
+
+		HistogramSnapshot(long[] buckets, long count, long sum) {
+			this.buckets = buckets;
+			this.count = count;
+			this.sum = sum;
+		}
+
+		public double mean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		public long percentile(double p) {
+			long rank = (long) Math.ceil(p * count);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return (1L << i) - 1;
+			}
+			return 0;
+		}
+
+		public String toString() {
+			return "count=" + count + " mean=" + String.format("%.1f", mean()) + " p50<=" + percentile(0.5)
+					+ " p99<=" + percentile(0.99) + " max<=" + percentile(1);
+		}
+	}
+
+	/**
+	 * All metrics at one point in time. Latencies are in nanoseconds.
+	 */
+	public static final class Snapshot {
+		public final long leafSplits;
+		public final long indexSplits;
+		public final long deleteHits;
+		public final long deleteMisses;
+		public final HistogramSnapshot descentDepth;
+		public final HistogramSnapshot scanLength;
+		private final HistogramSnapshot[] pins;
+		private final HistogramSnapshot[] latency;
+
+		private Snapshot(BTreeMetrics metrics) {
+			leafSplits = metrics.leafSplits.sum();
+			indexSplits = metrics.indexSplits.sum();
+			deleteHits = metrics.deleteHits.sum();
+			deleteMisses = metrics.deleteMisses.sum();
+			descentDepth = metrics.descentDepth.snapshot();
+			scanLength = metrics.scanLength.snapshot();
+			pins = new HistogramSnapshot[OPERATIONS.length];
+			latency = new HistogramSnapshot[OPERATIONS.length];
+			for (int op = 0; op < OPERATIONS.length; op++) {
+				pins[op] = metrics.pins[op].snapshot();
+				latency[op] = metrics.latency[op].snapshot();
+			}
+		}
+
+		/**
+		 * Pages pinned per operation of type op, INSERT, DELETE, LOOKUP or SCAN.
+		 */
+		public HistogramSnapshot pins(int op) {
+			return pins[op];
+		}
+
+		public HistogramSnapshot latency(int op) {
+			return latency[op];
+		}
+
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append("leaf splits ").append(leafSplits).append(", index splits ").append(indexSplits)
+					.append(", delete hits ").append(deleteHits).append(", delete misses ").append(deleteMisses)
+					.append('\n');
+			text.append("descent depth ").append(descentDepth).append('\n');
+			text.append("scan length ").append(scanLength).append('\n');
+			for (int op = 0; op < OPERATIONS.length; op++) {
+				text.append(OPERATIONS[op]).append(" pins ").append(pins[op]).append('\n');
+				text.append(OPERATIONS[op]).append(" latency ns ").append(latency[op]).append('\n');
+			}
+			return text.toString();
+		}
+	}
+
+	// pages pinned by the current thread so far, followed by the count at the start of its running operation
+	// of each type
+	private static final ThreadLocal<long[]> threadPins = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1 + OPERATIONS.length];
+		}
+	};
+
+	private volatile boolean enabled = true;
+	final LongAdder leafSplits = new LongAdder();
+	final LongAdder indexSplits = new LongAdder();
+	final LongAdder deleteHits = new LongAdder();
+	final LongAdder deleteMisses = new LongAdder();
+	final Histogram descentDepth = new Histogram();
+	final Histogram scanLength = new Histogram();
+	private final Histogram[] pins = new Histogram[OPERATIONS.length];
+	private final Histogram[] latency = new Histogram[OPERATIONS.length];
+
+	BTreeMetrics() {
+		for (int op = 0; op < OPERATIONS.length; op++) {
+			pins[op] = new Histogram();
+			latency[op] = new Histogram();
+		}
+	}
+
+	boolean enabled() {
+		return enabled;
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	void pinned() {
+		if (enabled)
+			threadPins.get()[0]++;
+	}
+
+	/**
+	 * Marks the start of an operation of type op on the current thread and returns the time it started, or 0
+	 * while disabled. The time is passed on to finish.
+	 */
+	long start(int op) {
+		if (!enabled)
+			return 0;
+		long[] counts = threadPins.get();
+		counts[1 + op] = counts[0];
+		return System.nanoTime();
+	}
+
+	void finish(int op, long start) {
+		if (start == 0 || !enabled)
+			return;
+		latency[op].record(System.nanoTime() - start);
+		long[] counts = threadPins.get();
+		pins[op].record(counts[0] - counts[1 + op]);
+	}
+
+	void descended(int depth) {
+		if (enabled)
+			descentDepth.record(depth);
+	}
+
+	void increment(LongAdder counter) {
+		if (enabled)
+			counter.increment();
+	}
+
+	void scanned(long entries) {
+		if (enabled)
+			scanLength.record(entries);
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	public void reset() {
+		leafSplits.reset();
+		indexSplits.reset();
+		deleteHits.reset();
+		deleteMisses.reset();
+		descentDepth.reset();
+		scanLength.reset();
+		for (int op = 0; op < OPERATIONS.length; op++) {
+			pins[op].reset();
+			latency[op].reset();
+		}
+	}
+}
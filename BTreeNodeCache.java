@@ -0,0 +1,129 @@
+package btree;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTreeNodeCache keeps the index pages of the top levels of a BTreeFile decoded in memory, so that a descent
+ * can pick the child of such a page without pinning it or building a BTIndexPage for it. A node holds the
+ * separator keys and child page numbers of one index page in plain arrays. The cache does not see changes
+ * that are made to a page behind its back: BTreeFile invalidates a node whenever it changes the page, and
+ * clears the cache when the root changes.
+ */
+final class BTreeNodeCache implements GlobalConst {
+
+	static final class Node {
+		// children[0] is the left link, children[i + 1] is the child to the right of key i
+		final int[] children;
+		final int[] intKeys;
+		// string keys in their writeUTF form, starting with the two byte length
+		final byte[][] utfKeys;
+		// RIDs stored behind the keys in a file with RID-ordered duplicates, as BTSearchKey.ridValue, or null
+		final long[] rids;
+		// set once a child was seen to be a leaf, the children of a node are all on the same level
+		boolean leafChildren;
+
+		private Node(int[] children, int[] intKeys, byte[][] utfKeys, long[] rids) {
+			this.children = children;
+			this.intKeys = intKeys;
+			this.utfKeys = utfKeys;
+			this.rids = rids;
+		}
+
+		int keyCount() {
+			return children.length - 1;
+		}
+
+		/**
+		 * Index into children that a descent for key continues in. With strict set this is the leftmost child
+		 * that can hold key, otherwise the child getPageNoByKey picks. A null key goes to the left link.
+		 */
+		int childIndex(BTSearchKey key, boolean strict) {
+			if (key == null)
+				return 0;
+			int lo = 0;
+			int hi = keyCount();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				int cmp = intKeys != null ? key.compareTo(intKeys[mid]) : key.compareKeyTo(utfKeys[mid], 0);
+				if (cmp == 0 && rids != null && key.hasRid())
+					cmp = key.compareRid(rids[mid]);
+				if (cmp > 0 || (!strict && cmp == 0))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		KeyClass keyAt(int slot) throws IOException {
+			if (intKeys != null)
+				return new IntegerKey(intKeys[slot]);
+			return BTPageLayout.keyAt(utfKeys[slot], 0, AttrType.attrString);
+		}
+	}
+
+	private final HashMap<Integer, Node> nodes = new HashMap<Integer, Node>();
+	private int levels;
+
+	BTreeNodeCache(int levels) {
+		this.levels = levels;
+	}
+
+	/**
+	 * Number of levels below and including the root that are kept.
+	 */
+	int levels() {
+		return levels;
+	}
+
+	void setLevels(int levels) {
+		this.levels = levels;
+		nodes.clear();
+	}
+
+	Node get(PageId pageId) {
+		return nodes.get(pageId.pid);
+	}
+
+	/**
+	 * Decodes the index page held in data and caches it under pageId, with the RIDs behind the keys when
+	 * ridOrdered is set.
+	 */
+	Node put(PageId pageId, byte[] data, int keyType, boolean ridOrdered) {
+		int count = BTPageLayout.slotCount(data);
+		int[] children = new int[count + 1];
+		int[] intKeys = keyType == AttrType.attrInteger ? new int[count] : null;
+		byte[][] utfKeys = intKeys == null ? new byte[count][] : null;
+		long[] rids = ridOrdered ? new long[count] : null;
+		children[0] = BTPageLayout.getInt(data, HFPage.PREV_PAGE);
+		for (int slot = 0; slot < count; slot++) {
+			int off = BTPageLayout.slotOffset(data, slot);
+			if (intKeys != null) {
+				intKeys[slot] = BTPageLayout.getInt(data, off);
+			} else {
+				utfKeys[slot] = BTPageLayout.keyBytes(data, off, keyType);
+			}
+			if (rids != null) {
+				int ridOff = off + BTPageLayout.keyLength(data, off, keyType);
+				rids[slot] = BTSearchKey.ridValue(BTPageLayout.getInt(data, ridOff + 4),
+						BTPageLayout.getInt(data, ridOff));
+			}
+			children[slot + 1] = BTPageLayout.childAt(data, slot);
+		}
+		Node node = new Node(children, intKeys, utfKeys, rids);
+		nodes.put(pageId.pid, node);
+		return node;
+	}
+
+	void invalidate(PageId pageId) {
+		nodes.remove(pageId.pid);
+	}
+
+	void clear() {
+		nodes.clear();
+	}
+}
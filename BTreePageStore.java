@@ -0,0 +1,39 @@
+package btree;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTreePageStore is where a BTreeFile pins, allocates and frees the pages of its index. BufferPoolPageStore,
+ * the default, goes through SystemDefs.JavabaseBM like the rest of Minibase. ChannelPageStore reads the
+ * database file through a FileChannel into frames of its own. The store is chosen when the BTreeFile is
+ * opened, by default from the system property btree.pagestore, see BTreeFile. The header page of a file
+ * always stays with the buffer manager, which BTreeHeaderPage pins it through.
+ *
+ * The methods follow BufMgr: pinPage returns the page sharing the bytes of its frame, newPage allocates count
+ * pages and pins the first of them, and freePage takes a page that BTreeFile has unpinned. Failures are
+ * passed on as they come, BTreeFile wraps them like the buffer manager's.
+ *
+ * pinPage takes a hint of how the page is used, which a store may go by when it picks pages to replace:
+ * PROBE for a page a single lookup or update reaches from the root, SCAN for a leaf that a walk along the
+ * leaf chain steps onto and leaves behind. Whether a page is an index page or a leaf the store can read
+ * from the page itself, a descent does not know before it has pinned the page.
+ */
+interface BTreePageStore {
+
+	static final int PROBE = 0;
+	static final int SCAN = 1;
+
+	Page pinPage(PageId pageId, int hint) throws Exception;
+
+	void unpinPage(PageId pageId, boolean dirty) throws Exception;
+
+	PageId newPage(Page page, int count) throws Exception;
+
+	void freePage(PageId pageId) throws Exception;
+
+	/**
+	 * Writes every page that was unpinned dirty to the database file.
+	 */
+	void flush() throws Exception;
+}
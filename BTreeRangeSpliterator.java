@@ -0,0 +1,220 @@
+package btree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTreeRangeSpliterator walks the entries of a BTreeFile between two keys as a sequence of subranges that
+ * BTreeFile cut at separator keys of its upper index levels. Range i runs from starts[i], inclusive, to
+ * starts[i + 1], exclusive, and the last one up to hiKey, inclusive. Each range begins on the leaf that a
+ * strict descent for its start key ends in, found up front, and is read along the next links of the leaves
+ * from there, so trySplit only hands half of the remaining ranges to another spliterator.
+ *
+ * Entries are read one leaf at a time into a buffer and the leaf is unpinned before any of them is passed
+ * on, so no page stays pinned while the entries are consumed, nor when a consumer throws or a stream stops
+ * early.
+ */
+final class BTreeRangeSpliterator implements Spliterator<KeyDataEntry> {
+
+	/**
+	 * Thrown through the stream for a page that could not be read, with the cause of the failure.
+	 */
+	static final class PageReadException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		PageReadException(Exception cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Fork-join task of BTreeFile.parallelScan: splits its spliterator down to single ranges, forking a task
+	 * for every split off half, and passes the entries of what is left to consumer.
+	 */
+	static final class ScanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Spliterator<KeyDataEntry> spliterator;
+		private final Consumer<? super KeyDataEntry> consumer;
+
+		ScanTask(Spliterator<KeyDataEntry> spliterator, Consumer<? super KeyDataEntry> consumer) {
+			this.spliterator = spliterator;
+			this.consumer = consumer;
+		}
+
+		protected void compute() {
+			ArrayList<ScanTask> forked = new ArrayList<ScanTask>();
+			Spliterator<KeyDataEntry> half;
+			while ((half = spliterator.trySplit()) != null) {
+				ScanTask task = new ScanTask(half, consumer);
+				task.fork();
+				forked.add(task);
+			}
+			try {
+				spliterator.forEachRemaining(consumer);
+			} finally {
+				// every forked task is waited for, so none is still reading when the scan fails
+				RuntimeException failure = null;
+				for (ScanTask task : forked) {
+					try {
+						task.join();
+					} catch (RuntimeException e) {
+						if (failure == null)
+							failure = e;
+					}
+				}
+				if (failure != null)
+					throw failure;
+			}
+		}
+	}
+
+	private final BTreeFile bfile;
+	private final int keyType;
+	private final BTSearchKey[] starts;
+	private final int[] startPids;
+	private final BTSearchKey hiKey;
+	// ranges [from, to) are left to this spliterator
+	private int from;
+	private int to;
+
+	// the range being read: the next leaf to read and where the range ends
+	private int nextPid = GlobalConst.INVALID_PAGE;
+	private BTSearchKey end;
+	private boolean firstLeaf;
+	private final ArrayDeque<KeyDataEntry> buffer = new ArrayDeque<KeyDataEntry>();
+	// copy of the leaf being read in concurrent mode
+	private byte[] copy;
+	// RIDs of a posting list with more than one, in a file with posting lists
+	private long[] rids;
+
+	BTreeRangeSpliterator(BTreeFile bfile, int keyType, BTSearchKey[] starts, int[] startPids, BTSearchKey hiKey,
+			int from, int to) {
+		this.bfile = bfile;
+		this.keyType = keyType;
+		this.starts = starts;
+		this.startPids = startPids;
+		this.hiKey = hiKey;
+		this.from = from;
+		this.to = to;
+	}
+
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+		while (buffer.isEmpty()) {
+			if (nextPid == GlobalConst.INVALID_PAGE && !openRange())
+				return false;
+			readLeaf();
+		}
+		action.accept(buffer.pollFirst());
+		return true;
+	}
+
+	public void forEachRemaining(Consumer<? super KeyDataEntry> action) {
+		while (true) {
+			while (!buffer.isEmpty())
+				action.accept(buffer.pollFirst());
+			if (nextPid == GlobalConst.INVALID_PAGE && !openRange())
+				return;
+			readLeaf();
+		}
+	}
+
+	/**
+	 * Hands the upper half of the ranges that were not started yet to a new spliterator.
+	 */
+	public Spliterator<KeyDataEntry> trySplit() {
+		int mid = (from + to) >>> 1;
+		if (mid <= from)
+			return null;
+		BTreeRangeSpliterator upper = new BTreeRangeSpliterator(bfile, keyType, starts, startPids, hiKey, mid, to);
+		to = mid;
+		return upper;
+	}
+
+	/**
+	 * Number of ranges left, which is all the splitting of a parallel stream goes by.
+	 */
+	public long estimateSize() {
+		return to - from + (nextPid != GlobalConst.INVALID_PAGE || !buffer.isEmpty() ? 1 : 0);
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/**
+	 * Moves on to the next range that is left, returning false when there is none.
+	 */
+	private boolean openRange() {
+		if (from >= to)
+			return false;
+		nextPid = startPids[from];
+		end = from + 1 < starts.length ? starts[from + 1] : null;
+		firstLeaf = true;
+		from++;
+		return nextPid != GlobalConst.INVALID_PAGE;
+	}
+
+	/**
+	 * Copies the entries of the next leaf of the range into the buffer, with the leaf pinned only meanwhile. In
+	 * concurrent mode the entries come from a validated copy of the leaf, see BTreeFile.readCopy. A posting list
+	 * gives an entry for every one of its RIDs.
+	 */
+	private void readLeaf() {
+		PageId pageId = new PageId(nextPid);
+		BTSearchKey start = firstLeaf ? starts[from - 1] : null;
+		boolean copied = bfile.isConcurrent();
+		byte[] data;
+		try {
+			if (copied) {
+				if (copy == null)
+					copy = new byte[GlobalConst.MINIBASE_PAGESIZE];
+				data = bfile.readCopy(pageId, start, copy, BTreePageStore.SCAN);
+			} else {
+				data = bfile.pinPage(pageId, BTreePageStore.SCAN).getpage();
+			}
+		} catch (Exception e) {
+			nextPid = GlobalConst.INVALID_PAGE;
+			throw new PageReadException(e);
+		}
+		try {
+			int count = BTPageLayout.slotCount(data);
+			int slot = start == null ? 0 : BTPageLayout.lowerBound(data, start);
+			firstLeaf = false;
+			nextPid = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+			for (; slot < count; slot++) {
+				int off = BTPageLayout.slotOffset(data, slot);
+				if ((end != null && end.compareTo(data, off) <= 0)
+						|| (hiKey != null && hiKey.compareTo(data, off) < 0)) {
+					nextPid = GlobalConst.INVALID_PAGE;
+					break;
+				}
+				KeyDataEntry entry = BTPageLayout.entryAt(data, slot, keyType, NodeType.LEAF);
+				buffer.addLast(entry);
+				int size = bfile.hasPostingLists() ? BTPostingList.size(data, slot, keyType) : 1;
+				if (size > 1) {
+					// every RID of the list is an entry of its own
+					rids = bfile.readPostings(data, slot, keyType, rids == null ? new long[size] : rids);
+					for (int i = 1; i < size; i++)
+						buffer.addLast(new KeyDataEntry(entry.key, BTPostingList.rid(rids[i])));
+				}
+			}
+		} catch (Exception e) {
+			nextPid = GlobalConst.INVALID_PAGE;
+			throw new PageReadException(e);
+		} finally {
+			try {
+				if (!copied)
+					bfile.unpinPage(pageId);
+			} catch (UnpinPageException e) {
+				throw new PageReadException(e);
+			}
+		}
+	}
+}
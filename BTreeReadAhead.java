@@ -0,0 +1,156 @@
+package btree;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTreeReadAhead loads the leaves ahead of a forward cursor into the page store from a background thread,
+ * so that the cursor finds the next leaf resident when it gets there. It follows the next links from the
+ * leaf the cursor is on and keeps up to depth leaves read ahead, stopping after the first leaf that starts
+ * beyond the upper bound of the scan. depth starts at one leaf and doubles, up to maxDepth, every time the
+ * cursor catches up with the read-ahead, so a scan that consumes leaves quickly gets a deeper window. The
+ * pages are pinned through the file's page store from another thread than the cursor's, which only
+ * ChannelPageStore allows, see BTreeFile.setReadAhead. They are pinned past the pin counters of BTreeFile, see
+ * BTreeFile.prefetchCopy, so the pins per operation that BTreeBench and BTreeMetrics report do not change with
+ * read-ahead.
+ *
+ * A prefetched leaf is pinned only while it is read in and is unpinned right away, so the store may still
+ * replace it before the cursor arrives. Leaves the cursor reached while they were still resident count as
+ * hits. Leaves that were replaced before the cursor reached them count as wasted, and so do those the cursor
+ * never reaches because it was closed or the chain changed under it. A leaf the cursor got to while it was
+ * still being read ahead counts as neither.
+ */
+final class BTreeReadAhead implements Runnable {
+
+	private final static ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "btree-read-ahead");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final BTreeFile bfile;
+	private final ChannelPageStore store;
+	private final BTSearchKey hiKey;
+	private final int maxDepth;
+	private final AtomicLong hits;
+	private final AtomicLong wasted;
+
+	// leaves read ahead that the cursor did not reach yet, in chain order
+	private final ArrayDeque<Integer> ahead = new ArrayDeque<Integer>();
+	// next leaf to read ahead, INVALID_PAGE once the range is covered
+	private int frontier;
+	private int depth = 1;
+	// copy of the leaf being read ahead
+	private byte[] copy;
+	private boolean running;
+	private boolean closed;
+
+	/**
+	 * Starts reading ahead from the leaf nextPid that follows the one the cursor starts on.
+	 */
+	BTreeReadAhead(BTreeFile bfile, ChannelPageStore store, BTSearchKey hiKey, int maxDepth, AtomicLong hits,
+			AtomicLong wasted, int nextPid) {
+		this.bfile = bfile;
+		this.store = store;
+		this.hiKey = hiKey;
+		this.maxDepth = maxDepth;
+		this.hits = hits;
+		this.wasted = wasted;
+		this.frontier = nextPid;
+		schedule();
+	}
+
+	/**
+	 * Whether the leaf pid is in the store, asked by the cursor before it pins the leaf.
+	 */
+	boolean resident(int pid) {
+		return store.isResident(pid);
+	}
+
+	/**
+	 * Called by the cursor when it moved onto the leaf pid, whose next link is nextPid. resident tells whether
+	 * the leaf was in the store before the cursor pinned it.
+	 */
+	synchronized void entered(int pid, int nextPid, boolean resident) {
+		if (ahead.contains(pid)) {
+			// leaves read ahead in front of pid were linked out of the chain meanwhile
+			while (ahead.peekFirst().intValue() != pid) {
+				ahead.pollFirst();
+				wasted.incrementAndGet();
+			}
+			ahead.pollFirst();
+			(resident ? hits : wasted).incrementAndGet();
+		} else if (!ahead.isEmpty() && ahead.peekFirst().intValue() == nextPid) {
+			// the cursor is on a leaf linked in right before the ones read ahead, it reaches them next
+		} else {
+			// the cursor caught up, maybe with the leaf being read ahead right now, read further ahead from here
+			// on; leaves still read ahead are no longer on its way
+			wasted.addAndGet(ahead.size());
+			ahead.clear();
+			frontier = nextPid;
+			depth = Math.min(depth * 2, maxDepth);
+		}
+		schedule();
+	}
+
+	synchronized void close() {
+		closed = true;
+		wasted.addAndGet(ahead.size());
+		ahead.clear();
+	}
+
+	private void schedule() {
+		if (!running && !closed && frontier != GlobalConst.INVALID_PAGE && ahead.size() < depth) {
+			running = true;
+			EXECUTOR.execute(this);
+		}
+	}
+
+	public void run() {
+		while (true) {
+			int pid;
+			synchronized (this) {
+				if (closed || frontier == GlobalConst.INVALID_PAGE || ahead.size() >= depth) {
+					running = false;
+					return;
+				}
+				pid = frontier;
+			}
+			int next;
+			boolean beyond;
+			PageId pageId = new PageId(pid);
+			try {
+				if (copy == null)
+					copy = new byte[GlobalConst.MINIBASE_PAGESIZE];
+				byte[] data = bfile.prefetchCopy(pageId, copy);
+				next = BTPageLayout.getInt(data, HFPage.NEXT_PAGE);
+				beyond = hiKey != null && BTPageLayout.slotCount(data) > 0
+						&& hiKey.compareTo(data, BTPageLayout.slotOffset(data, 0)) < 0;
+			} catch (Exception e) {
+				synchronized (this) {
+					running = false;
+				}
+				return;
+			}
+			synchronized (this) {
+				if (closed) {
+					wasted.incrementAndGet();
+				} else if (frontier != pid) {
+					// the cursor got to the leaf first and moved the frontier on
+				} else {
+					ahead.addLast(pid);
+					// the cursor still reads the first leaf beyond hi_key to find out that it is done
+					frontier = beyond ? GlobalConst.INVALID_PAGE : next;
+				}
+			}
+		}
+	}
+}
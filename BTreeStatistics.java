@@ -0,0 +1,69 @@
+package btree;
+
+/**
+ * BTreeStatistics describes the shape of a BTreeFile as BTreeFile.analyze found it. Levels are numbered from
+ * the root, level height - 1 being the leaves. The fill of a page is the part of its space below the header
+ * that records and their slots take. A hop is a step along the leaf chain, and it is non-adjacent when the
+ * next leaf is not the page right after the current one in the database file, which a scan then has to seek
+ * to.
+ */
+public final class BTreeStatistics {
+
+	public final int height;
+	public final long entries;
+	public final int emptyLeaves;
+	public final long hops;
+	public final long nonAdjacentHops;
+	private final int[] pages;
+	private final double[] averageFill;
+	private final double[] minimumFill;
+
+	BTreeStatistics(int height, long entries, int emptyLeaves, long hops, long nonAdjacentHops, int[] pages,
+			double[] averageFill, double[] minimumFill) {
+		this.height = height;
+		this.entries = entries;
+		this.emptyLeaves = emptyLeaves;
+		this.hops = hops;
+		this.nonAdjacentHops = nonAdjacentHops;
+		this.pages = pages;
+		this.averageFill = averageFill;
+		this.minimumFill = minimumFill;
+	}
+
+	public int pages(int level) {
+		return pages[level];
+	}
+
+	public double averageFill(int level) {
+		return averageFill[level];
+	}
+
+	public double minimumFill(int level) {
+		return minimumFill[level];
+	}
+
+	public int leafPages() {
+		return height == 0 ? 0 : pages[height - 1];
+	}
+
+	/**
+	 * Fraction of the hops along the leaf chain that go to a physically non-adjacent page, 0 for a chain of
+	 * one leaf.
+	 */
+	public double nonAdjacentFraction() {
+		return hops == 0 ? 0 : (double) nonAdjacentHops / hops;
+	}
+
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append("height ").append(height).append(", entries ").append(entries).append(", empty leaves ")
+				.append(emptyLeaves).append(", non-adjacent hops ").append(nonAdjacentHops).append('/').append(hops)
+				.append('\n');
+		for (int level = 0; level < height; level++)
+			text.append("level ").append(level).append(level == height - 1 ? " (leaves)" : "").append(": pages ")
+					.append(pages[level]).append(String.format(", fill avg %.2f min %.2f", averageFill[level],
+							minimumFill[level]))
+					.append('\n');
+		return text.toString();
+	}
+}
@@ -0,0 +1,328 @@
+package btree;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import global.*;
+
+/**
+ * BTreeStress runs BTreeFile in concurrent mode from many threads at once and checks the result. Every writer
+ * thread owns the keys k with k % threads equal to its number, inserts them in random order and deletes every
+ * third one again, and after each insert or delete looks its own key up, which has to show the change at once.
+ * In between it looks up keys of the other writers, which may or may not be there yet but must carry their own
+ * RID when they are. A scanner thread meanwhile reads short ranges through openCursor, new_scan and stream,
+ * which have to come back in key order with every key carrying its own RID.
+ *
+ * java btree.BTreeStress [-threads t,t,...] [-keys n] [-type int|string] [-pool frames]
+ * [-store bufmgr|channel] [-seed s]
+ *
+ * The whole run is repeated on a new database for each number of writer threads in -threads, 1,2,4,8,16 by
+ * default, after one round that only warms up, and the operations per second of the writers are printed for
+ * each, with the speedup over the first. -keys is the number of keys of all writers together. Once the threads
+ * are done the file is switched out of concurrent mode and checked on its own: a forward scan along the next
+ * links and a reverse scan along the prev links have to return exactly the keys that were inserted and not
+ * deleted, in order and with their RIDs, analyze has to count as many entries below the root as the leaf chain
+ * holds, and every key has to be found by lookup or not, as it should. The driver exits with status 1 when a
+ * check fails.
+ */
+public class BTreeStress {
+
+	// numbers of writer threads to run one after another, and the number of the current run
+	private String threadCounts = "1,2,4,8,16";
+	private int threads;
+	private int keys = 200000;
+	private boolean stringKeys;
+	private int pool = 1000;
+	private String store = "bufmgr";
+	private long seed = 4331;
+
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong scans = new AtomicLong();
+	private volatile boolean writing;
+
+	public static void main(String[] args) throws Exception {
+		BTreeStress stress = new BTreeStress();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-threads"))
+				stress.threadCounts = value;
+			else if (args[i].equals("-keys"))
+				stress.keys = Integer.parseInt(value);
+			else if (args[i].equals("-type"))
+				stress.stringKeys = value.equals("string");
+			else if (args[i].equals("-pool"))
+				stress.pool = Integer.parseInt(value);
+			else if (args[i].equals("-store"))
+				stress.store = value;
+			else if (args[i].equals("-seed"))
+				stress.seed = Long.parseLong(value);
+			else
+				throw new IllegalArgumentException("unknown option " + args[i]);
+		}
+		System.exit(stress.run() ? 0 : 1);
+	}
+
+	private boolean run() throws Exception {
+		System.out.println("threads=" + threadCounts + " keys=" + keys + " type=" + (stringKeys ? "string" : "int")
+				+ " pool=" + pool + " store=" + store + " seed=" + seed);
+		String[] counts = threadCounts.split(",");
+		// a first round that is not reported, so that the first count is not measured on code being compiled
+		System.out.print("warm-up, ");
+		threads = Integer.parseInt(counts[0].trim());
+		round();
+		double[] throughput = new double[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			threads = Integer.parseInt(counts[i].trim());
+			throughput[i] = round();
+		}
+		System.out.printf("%8s %12s %8s%n", "threads", "ops/s", "speedup");
+		for (int i = 0; i < counts.length; i++)
+			System.out.printf("%8s %12.0f %8.2f%n", counts[i].trim(), throughput[i], throughput[i] / throughput[0]);
+		System.out.println(failures.get() == 0 ? "ok" : "FAILED with " + failures.get() + " failures");
+		return failures.get() == 0;
+	}
+
+	/**
+	 * Runs the writers and the scanner once with threads writers on a new database, checks the file and
+	 * returns the operations per second of the writers.
+	 */
+	private double round() throws Exception {
+		operations.set(0);
+		scans.set(0);
+		long failed = failures.get();
+		String dbpath = System.getProperty("java.io.tmpdir") + File.separator + "btstress.minibase-db";
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, keys / 4 + 5000, store.equals("channel") ? 50 : pool, "Clock");
+		BTreeFile file = new BTreeFile("stress", stringKeys ? AttrType.attrString : AttrType.attrInteger,
+				stringKeys ? 20 : 4, DeleteFashion.FULL_DELETE, 0, store, pool, BTreeFile.POLICY_CLOCK);
+		double opsPerSecond;
+		try {
+			file.setConcurrent(true);
+			long start = System.nanoTime();
+			writing = true;
+			ArrayList<Thread> writers = new ArrayList<Thread>();
+			for (int t = 0; t < threads; t++)
+				writers.add(start(writer(file, t)));
+			Thread scanner = start(scanner(file));
+			for (Thread writer : writers)
+				writer.join();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			writing = false;
+			scanner.join();
+			opsPerSecond = operations.get() / seconds;
+			System.out.printf("%d threads: %.1f s, %.0f ops/s, %d scans, %d failures%n", threads, seconds,
+					opsPerSecond, scans.get(), failures.get() - failed);
+			file.setConcurrent(false);
+			check(file);
+		} finally {
+			// closing the last file of the database closes the channel store as well
+			file.close();
+			new File(dbpath).delete();
+		}
+		return opsPerSecond;
+	}
+
+	private Thread start(Runnable runnable) {
+		Thread thread = new Thread(runnable);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Inserts the keys of writer t, deleting every third one again a few inserts later.
+	 */
+	private Runnable writer(final BTreeFile file, final int t) {
+		return new Runnable() {
+			public void run() {
+				Random random = new Random(seed + t);
+				ArrayList<Integer> own = new ArrayList<Integer>();
+				for (int k = t; k < keys; k += threads)
+					own.add(k);
+				for (int i = own.size() - 1; i > 0; i--)
+					own.set(i, own.set(random.nextInt(i + 1), own.get(i)));
+				try {
+					for (int i = 0; i < own.size(); i++) {
+						int k = own.get(i);
+						file.insert(key(k), rid(k));
+						expect(file, k, true, "insert");
+						if (i >= 8 && deleted(own.get(i - 8))) {
+							int d = own.get(i - 8);
+							if (!file.Delete(key(d), rid(d)))
+								fail("Delete of key " + d + " found nothing");
+							expect(file, d, false, "Delete");
+							operations.addAndGet(2);
+						}
+						// a key of another writer is there or not, but never with another RID
+						int other = random.nextInt(keys);
+						RID found = file.lookup(key(other));
+						if (found != null && !sameRid(found, other))
+							fail("lookup of key " + other + " returned the RID of another key");
+						operations.addAndGet(3);
+					}
+					for (int i = Math.max(0, own.size() - 8); i < own.size(); i++) {
+						int d = own.get(i);
+						if (deleted(d) && !file.Delete(key(d), rid(d)))
+							fail("Delete of key " + d + " found nothing");
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					fail("writer " + t + " failed: " + e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads ranges of 100 keys from random keys on while the writers run, in turn through openCursor, new_scan
+	 * and stream. Each range has to come back in ascending key order, starting at or after its first key, with
+	 * every key carrying its own RID.
+	 */
+	private Runnable scanner(final BTreeFile file) {
+		return new Runnable() {
+			public void run() {
+				Random random = new Random(seed - 1);
+				for (int round = 0; writing; round++) {
+					int from = random.nextInt(keys);
+					try {
+						int last = from - 1;
+						for (int k : scan(file, round % 3, from)) {
+							if (k <= last)
+								fail("scan from key " + from + " returned key " + k + " after " + last);
+							last = k;
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+						fail("scan from key " + from + " failed: " + e);
+					}
+					scans.incrementAndGet();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Keys of up to 100 entries from key from on, read through openCursor, new_scan or stream as how is 0, 1
+	 * or 2. An entry whose key does not match its RID is returned as -1.
+	 */
+	private ArrayList<Integer> scan(BTreeFile file, int how, int from) throws Exception {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		if (how == 0) {
+			BTreeCursor cursor = file.openCursor(key(from), null);
+			try {
+				while (found.size() < 100 && cursor.next()) {
+					int k = keyOf(cursor);
+					found.add(!stringKeys && cursor.intKey() != k ? -1 : k);
+				}
+			} finally {
+				cursor.close();
+			}
+		} else if (how == 1) {
+			BTFileScan scan = file.new_scan(key(from), null);
+			try {
+				KeyDataEntry entry;
+				while (found.size() < 100 && (entry = scan.get_next()) != null)
+					found.add(keyOf(entry));
+			} finally {
+				scan.DestroyBTreeFileScan();
+			}
+		} else {
+			for (Object entry : file.stream(key(from), null).limit(100).toArray())
+				found.add(keyOf((KeyDataEntry) entry));
+		}
+		return found;
+	}
+
+	/**
+	 * Checks the file, out of concurrent mode, against the keys the writers leave behind.
+	 */
+	private void check(BTreeFile file) throws Exception {
+		int expected = 0;
+		for (int k = 0; k < keys; k++)
+			if (!deleted(k))
+				expected++;
+
+		int count = 0;
+		int last = -1;
+		BTreeCursor cursor = file.openCursor(null, null);
+		while (cursor.next()) {
+			int k = keyOf(cursor);
+			if (k <= last || deleted(k) || !stringKeys && cursor.intKey() != k)
+				fail("forward scan returned key " + k + " after " + last);
+			last = k;
+			count++;
+		}
+		cursor.close();
+		if (count != expected)
+			fail("forward scan returned " + count + " entries, expected " + expected);
+
+		count = 0;
+		last = keys;
+		cursor = file.new_scan_reverse(null, null);
+		while (cursor.next()) {
+			int k = keyOf(cursor);
+			if (k >= last || deleted(k))
+				fail("reverse scan returned key " + k + " after " + last);
+			last = k;
+			count++;
+		}
+		cursor.close();
+		if (count != expected)
+			fail("reverse scan returned " + count + " entries, expected " + expected);
+
+		BTreeStatistics statistics = file.analyze();
+		if (statistics.entries != expected)
+			fail("analyze counted " + statistics.entries + " entries below the root, expected " + expected);
+
+		for (int k = 0; k < keys; k++)
+			expect(file, k, !deleted(k), "check");
+		System.out.println("checked " + expected + " entries on " + statistics.pages(statistics.height - 1)
+				+ " leaves, height " + statistics.height);
+	}
+
+	/**
+	 * Fails unless lookup finds key k with its RID when present is set, and nothing when it is not.
+	 */
+	private void expect(BTreeFile file, int k, boolean present, String after) throws Exception {
+		RID found = file.lookup(key(k));
+		if (present ? found == null || !sameRid(found, k) : found != null)
+			fail("lookup of key " + k + " after " + after + (present ? " missed it" : " still found it"));
+	}
+
+	private void fail(String message) {
+		if (failures.incrementAndGet() <= 20)
+			System.out.println("FAIL " + message);
+	}
+
+	private static boolean deleted(int k) {
+		return k % 3 == 0;
+	}
+
+	private KeyClass key(int i) {
+		if (stringKeys)
+			return new StringKey(String.format("k%08d", i));
+		return new IntegerKey(i);
+	}
+
+	private static RID rid(int i) {
+		return new RID(new PageId(i / 100), i % 100);
+	}
+
+	private static boolean sameRid(RID rid, int i) {
+		return rid.pageNo.pid == i / 100 && rid.slotNo == i % 100;
+	}
+
+	// the key of the entry under cursor, as rid encodes it
+	private static int keyOf(BTreeCursor cursor) {
+		return cursor.ridPageNo() * 100 + cursor.ridSlotNo();
+	}
+
+	// the key of entry as its rid encodes it, -1 when the key stored with it is another one
+	private int keyOf(KeyDataEntry entry) throws Exception {
+		RID rid = ((LeafData) entry.data).getData();
+		int k = rid.pageNo.pid * 100 + rid.slotNo;
+		return BT.keyCompare(entry.key, key(k)) == 0 ? k : -1;
+	}
+}
@@ -0,0 +1,160 @@
+package btree;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * BTreeTrace takes the trace events of BTreeFile into a bounded ring buffer in memory, from which a daemon
+ * thread writes them to the trace file, so that no operation waits for the file. Writers claim a slot with
+ * one atomic increment and publish it with its sequence number; when the drainer falls a whole ring behind,
+ * the oldest events are overwritten and counted as dropped. While tracing is off an event costs the read of
+ * a static field.
+ */
+final class BTreeTrace implements Runnable {
+
+	static final int VISIT = 0;
+	static final int TEXT = 1;
+
+	private static final int SIZE = 1 << 14;
+	private static final String lineSep = System.getProperty("line.separator");
+
+	// the trace being written, null while tracing is off
+	private static volatile BTreeTrace current;
+
+	private final int[] types = new int[SIZE];
+	private final int[] pids = new int[SIZE];
+	private final String[] texts = new String[SIZE];
+	// sequence number of the event in each slot once it is written, -1 before
+	private final AtomicLongArray published = new AtomicLongArray(SIZE);
+	private final AtomicLong next = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final DataOutputStream out;
+	private final Thread drainer;
+	private long read;
+	private volatile boolean closing;
+
+	private BTreeTrace(DataOutputStream out) {
+		this.out = out;
+		for (int i = 0; i < SIZE; i++)
+			published.set(i, -1);
+		drainer = new Thread(this, "btree-trace");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	static boolean enabled() {
+		return current != null;
+	}
+
+	/**
+	 * Starts tracing into out, ending a trace that is still running.
+	 */
+	static synchronized void start(DataOutputStream out) throws IOException {
+		stop();
+		current = new BTreeTrace(out);
+	}
+
+	/**
+	 * Ends the running trace, writing out what is left of it, and closes its stream.
+	 */
+	static synchronized void stop() throws IOException {
+		BTreeTrace trace = current;
+		if (trace == null)
+			return;
+		current = null;
+		trace.closing = true;
+		trace.drainer.interrupt();
+		try {
+			trace.drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		trace.out.close();
+	}
+
+	static void event(int type, int pid) {
+		BTreeTrace trace = current;
+		if (trace != null)
+			trace.add(type, pid, null);
+	}
+
+	static void text(String text) {
+		BTreeTrace trace = current;
+		if (trace != null)
+			trace.add(TEXT, 0, text);
+	}
+
+	private void add(int type, int pid, String text) {
+		long seq = next.getAndIncrement();
+		int slot = (int) (seq & (SIZE - 1));
+		// marks the slot as being rewritten for a drainer that is reading it
+		published.set(slot, -1);
+		types[slot] = type;
+		pids[slot] = pid;
+		texts[slot] = text;
+		published.set(slot, seq);
+	}
+
+	public void run() {
+		try {
+			while (!closing) {
+				if (!drain())
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+						// woken up to finish
+					}
+			}
+			drain();
+			if (dropped.get() > 0)
+				out.writeBytes("DROPPED " + dropped.get() + " events" + lineSep);
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes out the events published since the last drain, returning whether there were any.
+	 */
+	private boolean drain() throws IOException {
+		long end = next.get();
+		if (end - read > SIZE) {
+			dropped.addAndGet(end - read - SIZE);
+			read = end - SIZE;
+		}
+		boolean any = false;
+		while (read < end) {
+			int slot = (int) (read & (SIZE - 1));
+			long seq = published.get(slot);
+			if (seq != read) {
+				if (seq > read || next.get() - read > SIZE) {
+					// overwritten by a writer that went around the ring
+					dropped.incrementAndGet();
+					read++;
+					continue;
+				}
+				// claimed but still being written
+				break;
+			}
+			int type = types[slot];
+			int pid = pids[slot];
+			String text = texts[slot];
+			if (published.get(slot) != read) {
+				dropped.incrementAndGet();
+				read++;
+				continue;
+			}
+			if (type == VISIT)
+				out.writeBytes("VISIT node " + pid + lineSep);
+			else
+				out.writeBytes(text);
+			read++;
+			any = true;
+		}
+		if (any)
+			out.flush();
+		return any;
+	}
+}
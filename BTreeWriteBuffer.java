@@ -0,0 +1,326 @@
+package btree;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeMap;
+
+import global.*;
+
+/**
+ * BTreeWriteBuffer holds the inserts and deletes of a BTreeFile in memory, sorted by key and RID, until the
+ * file merges them into the tree all at once. A delete is taken blind, without looking into the tree, and the
+ * merge settles it: it deletes the entry if the tree holds it and does nothing otherwise. An entry that is
+ * inserted and deleted again while buffered cancels out, one that is deleted and inserted again does not,
+ * since the delete may still find a copy in the tree. Every operation is appended to a log file, and the
+ * log is emptied once a merge has reached the database file, so the operations of a process or machine that
+ * dies in between are read back by the next buffer opened on the same log. Changes that are read back, or
+ * that a merge failed on, may already be partly in the tree, which mayBeMerged tells the next merge.
+ *
+ * Without group commit every record is forced to the disk before its operation is taken. With group commit
+ * a record is only handed to the operating system, which keeps it through a crash of the process. The log
+ * is forced by the operation that brings GROUP_RECORDS records since the last force, or comes GROUP_NANOS
+ * after the first of them, as well as by sync and by every merge. A crash of the machine loses the
+ * operations of the group that was not forced yet, and an idle buffer leaves its last group unforced until
+ * one of those comes.
+ *
+ * handOff moves the changes to a merge that may run on another thread while new operations go on arriving.
+ * The log holds the records of both until merged drops the handed off ones, and mergeFailed takes them back
+ * in front of the newer changes. The methods are synchronized for that.
+ */
+final class BTreeWriteBuffer {
+
+	private static final byte INSERT = 1;
+	private static final byte DELETE = 2;
+
+	// the most records, and the longest time, a group commit leaves unforced
+	private static final int GROUP_RECORDS = 256;
+	private static final long GROUP_NANOS = 10000000L;
+
+	/**
+	 * The buffered change of one entry: deleted from the tree deletes times, or as many times as the tree
+	 * holds it if that is fewer, and then inserted inserts times.
+	 */
+	static final class Change implements Comparable<Change> {
+		final KeyClass key;
+		final RID rid;
+		final BTSearchKey search;
+		// the entry as it is stored on a leaf: key, slot number, page number
+		final byte[] record;
+		int deletes;
+		int inserts;
+
+		Change(KeyClass key, RID rid, int keyType) throws KeyNotMatchException, IOException {
+			this.key = key;
+			this.rid = new RID(new PageId(rid.pageNo.pid), rid.slotNo);
+			search = new BTSearchKey(key, keyType, this.rid);
+			record = new byte[search.length() + 8];
+			search.writeTo(record, 0);
+			search.writeRidTo(record, search.length());
+		}
+
+		private Change(Change change) {
+			key = change.key;
+			rid = change.rid;
+			search = change.search;
+			record = change.record;
+			deletes = change.deletes;
+			inserts = change.inserts;
+		}
+
+		public int compareTo(Change other) {
+			return search.compareTo(other.record, 0);
+		}
+	}
+
+	private final int keyType;
+	private final int capacity;
+	private final boolean groupCommit;
+	private final File logFile;
+	private FileOutputStream logOut;
+	private DataOutputStream log;
+	// records written since the log was last forced, and when the first of them was
+	private int unsynced;
+	private long unsyncedSince;
+	// bytes written to the log, and times it was forced, since the buffer was opened
+	private long logBytes;
+	private long syncs;
+	private TreeMap<Change, Change> changes = new TreeMap<Change, Change>();
+	// the changes handOff gave to the merge that is running, null when none is
+	private Change[] merging;
+	private boolean mayBeMerged;
+
+	/**
+	 * Opens a buffer of at most capacity changes on logName, taking back the operations a log that is already
+	 * there holds. A record the last process did not finish writing is dropped.
+	 */
+	BTreeWriteBuffer(String logName, int capacity, int keyType, boolean groupCommit)
+			throws IOException, KeyNotMatchException {
+		this.keyType = keyType;
+		this.capacity = Math.max(1, capacity);
+		this.groupCommit = groupCommit;
+		logFile = new File(logName);
+		if (logFile.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+			try {
+				while (true) {
+					byte type = in.readByte();
+					KeyClass key = keyType == AttrType.attrInteger ? new IntegerKey(in.readInt())
+							: new StringKey(in.readUTF());
+					RID rid = new RID(new PageId(in.readInt()), in.readInt());
+					apply(new Change(key, rid, keyType), type);
+				}
+			} catch (EOFException e) {
+				// end of the log, or of the record that was being written
+			} finally {
+				in.close();
+			}
+			mayBeMerged = !changes.isEmpty();
+		}
+		// write the log afresh, without the torn record, so that new records follow whole ones
+		rewriteLog();
+	}
+
+	synchronized void insert(KeyClass key, RID rid) throws IOException, KeyNotMatchException {
+		Change change = new Change(key, rid, keyType);
+		write(INSERT, change);
+		logged();
+		apply(change, INSERT);
+	}
+
+	synchronized void delete(KeyClass key, RID rid) throws IOException, KeyNotMatchException {
+		Change change = new Change(key, rid, keyType);
+		write(DELETE, change);
+		logged();
+		apply(change, DELETE);
+	}
+
+	synchronized boolean isFull() {
+		return changes.size() >= capacity;
+	}
+
+	/**
+	 * Whether there are no changes besides those handed off.
+	 */
+	synchronized boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	/**
+	 * Copies of the changes with lo_key <= key <= hi_key in key and RID order, null meaning unbounded.
+	 */
+	synchronized Change[] range(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException {
+		Collection<Change> range;
+		if (lo_key == null && hi_key == null)
+			range = changes.values();
+		else if (hi_key == null)
+			range = changes.tailMap(lowest(lo_key), true).values();
+		else if (lo_key == null)
+			range = changes.headMap(highest(hi_key), true).values();
+		else if (BTSearchKey.keyCompare(lo_key, hi_key) > 0)
+			range = new ArrayList<Change>();
+		else
+			range = changes.subMap(lowest(lo_key), true, highest(hi_key), true).values();
+		Change[] copies = new Change[range.size()];
+		int i = 0;
+		for (Change change : range)
+			copies[i++] = new Change(change);
+		return copies;
+	}
+
+	/**
+	 * Hands all changes of the buffer in key and RID order to a merge, which is only allowed while no other
+	 * merge runs, and starts over with an empty buffer. The changes stay in the log until the merge calls
+	 * merged, or come back to the buffer when it calls mergeFailed.
+	 */
+	synchronized Change[] handOff() {
+		merging = changes.values().toArray(new Change[changes.size()]);
+		changes = new TreeMap<Change, Change>();
+		mayBeMerged = false;
+		return merging;
+	}
+
+	/**
+	 * Whether some of the changes may already be in the tree: they were read back from the log, or a merge
+	 * failed after applying part of them.
+	 */
+	synchronized boolean mayBeMerged() {
+		return mayBeMerged;
+	}
+
+	/**
+	 * Drops the handed off changes from the log once their merge has brought them to the database file.
+	 */
+	synchronized void merged() throws IOException {
+		merging = null;
+		rewriteLog();
+	}
+
+	/**
+	 * Takes the handed off changes back after their merge failed, ahead of the changes that came since, so
+	 * that the next merge checks which of them reached the tree.
+	 */
+	synchronized void mergeFailed() {
+		for (Change handedOff : merging) {
+			Change later = changes.get(handedOff);
+			if (later == null) {
+				changes.put(handedOff, handedOff);
+			} else {
+				// the later deletes take back the handed off inserts first
+				int taken = Math.min(handedOff.inserts, later.deletes);
+				later.deletes = handedOff.deletes + later.deletes - taken;
+				later.inserts = handedOff.inserts - taken + later.inserts;
+				if (later.deletes == 0 && later.inserts == 0)
+					changes.remove(later);
+			}
+		}
+		merging = null;
+		mayBeMerged = true;
+	}
+
+	/**
+	 * Forces the records written so far to the disk.
+	 */
+	synchronized void sync() throws IOException {
+		log.flush();
+		logOut.getFD().sync();
+		unsynced = 0;
+		syncs++;
+	}
+
+	synchronized long logBytes() {
+		return logBytes;
+	}
+
+	synchronized long syncs() {
+		return syncs;
+	}
+
+	/**
+	 * Replaces the log by the changes the buffer holds now, besides those handed off.
+	 */
+	private void rewriteLog() throws IOException {
+		if (log != null)
+			log.close();
+		logOut = new FileOutputStream(logFile, false);
+		log = new DataOutputStream(new BufferedOutputStream(logOut));
+		for (Change change : changes.values()) {
+			for (int i = 0; i < change.deletes; i++)
+				write(DELETE, change);
+			for (int i = 0; i < change.inserts; i++)
+				write(INSERT, change);
+		}
+		sync();
+	}
+
+	/**
+	 * Makes the record just written survive a crash of the machine, or with group commit at least one of the
+	 * process, see the class comment.
+	 */
+	private void logged() throws IOException {
+		if (!groupCommit) {
+			sync();
+			return;
+		}
+		log.flush();
+		long now = System.nanoTime();
+		if (unsynced++ == 0)
+			unsyncedSince = now;
+		if (unsynced >= GROUP_RECORDS || now - unsyncedSince >= GROUP_NANOS)
+			sync();
+	}
+
+	synchronized void close() throws IOException {
+		log.close();
+	}
+
+	/**
+	 * Closes the log and deletes it, dropping whatever the buffer holds.
+	 */
+	synchronized void discard() throws IOException {
+		changes.clear();
+		log.close();
+		logFile.delete();
+	}
+
+	private void write(byte type, Change change) throws IOException {
+		int start = log.size();
+		log.writeByte(type);
+		if (keyType == AttrType.attrInteger)
+			log.writeInt(((IntegerKey) change.key).getKey().intValue());
+		else
+			log.writeUTF(((StringKey) change.key).getKey());
+		log.writeInt(change.rid.pageNo.pid);
+		log.writeInt(change.rid.slotNo);
+		logBytes += log.size() - start;
+	}
+
+	/**
+	 * Adds an insert or a delete of the entry of change to the buffer. A delete takes back a buffered insert
+	 * if there is one and is left for the tree otherwise.
+	 */
+	private void apply(Change change, byte type) {
+		Change present = changes.get(change);
+		if (present == null) {
+			present = change;
+			changes.put(change, change);
+		}
+		if (type == INSERT)
+			present.inserts++;
+		else if (present.inserts > 0)
+			present.inserts--;
+		else
+			present.deletes++;
+		if (present.deletes == 0 && present.inserts == 0)
+			changes.remove(present);
+	}
+
+	// the smallest and the largest change key can have, the RIDs ordering as ridValue does
+	private Change lowest(KeyClass key) throws IOException, KeyNotMatchException {
+		return new Change(key, new RID(new PageId(Integer.MIN_VALUE), 0), keyType);
+	}
+
+	private Change highest(KeyClass key) throws IOException, KeyNotMatchException {
+		return new Change(key, new RID(new PageId(Integer.MAX_VALUE), -1), keyType);
+	}
+}
@@ -0,0 +1,54 @@
+package btree;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * BufferPoolPageStore keeps the pages of a BTreeFile in the Minibase buffer pool. The buffer manager is not
+ * thread safe, so every call into it is serialized on it. Its replacement policy is the one SystemDefs was
+ * started with, and it takes no hints.
+ */
+final class BufferPoolPageStore implements BTreePageStore {
+
+	static final BufferPoolPageStore INSTANCE = new BufferPoolPageStore();
+
+	private BufferPoolPageStore() {
+	}
+
+	public Page pinPage(PageId pageId, int hint) throws Exception {
+		Page page = new Page();
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.pinPage(pageId, page, false/* Rdisk */);
+		}
+		return page;
+	}
+
+	public void unpinPage(PageId pageId, boolean dirty) throws Exception {
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.unpinPage(pageId, dirty);
+		}
+	}
+
+	public PageId newPage(Page page, int count) throws Exception {
+		synchronized (SystemDefs.JavabaseBM) {
+			return SystemDefs.JavabaseBM.newPage(page, count);
+		}
+	}
+
+	public void freePage(PageId pageId) throws Exception {
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.freePage(pageId);
+		}
+	}
+
+	public void flush() throws Exception {
+		synchronized (SystemDefs.JavabaseBM) {
+			try {
+				SystemDefs.JavabaseBM.flushAllPages();
+			} catch (PagePinnedException e) {
+				// reported after every page was written, header pages of open files stay pinned
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package btree;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * ChannelPageStore keeps the pages of BTreeFiles in frames of its own, which it reads from the database file
+ * with positional FileChannel reads into the frame arrays. A pinned page shares the bytes of its frame, so
+ * pinning a resident page copies nothing. A page that is not resident is copied twice, since the frames are
+ * heap arrays: FileChannel reads it into a temporary direct buffer and copies that into the frame. That is
+ * still without going through the buffer manager's frames. Pages are
+ * allocated and freed in the space map of SystemDefs.JavabaseDB, as BufMgr does, under the lock of the buffer
+ * manager that the space map pages go through.
+ *
+ * A page that is unpinned dirty keeps a dirty bit in its frame. It is written back when its frame is reused,
+ * on flush and when the store is closed, so a page updated many times while resident is written once. The
+ * database file holds the current pages after flush and once the store is closed, and only then can a file
+ * be opened with the other store. The store is shared by all BTreeFiles of a
+ * database: pages never belong to two files, but two BTreeFile objects of one file have to see the same
+ * frames. It lives as long as the database: it is closed once the last BTreeFile using it is closed or
+ * destroyed, and dropped when SystemDefs creates or opens the database again, so that a database created
+ * anew under the same name is not served the frames of the old one.
+ *
+ * Unpinned frames are replaced in clock order. The scan resistant policy keeps a leaf that is read for the
+ * first time on probation, in the manner of 2Q: it is not referenced for the clock and sits in a FIFO queue,
+ * and is only taken into the clock when a lookup pins it again while it is still resident. Pins with the
+ * SCAN hint never do that, so the leaves a long scan walks over go first, and once more than a quarter of
+ * the frames are on probation they are replaced before any page of the clock. Index pages skip probation.
+ * The policy is this store's alone: the buffer manager replaces its frames the way SystemDefs was started
+ * with, whatever policy a BTreeFile is opened with.
+ *
+ * The pages must not be pinned through the buffer manager at the same time, which keeps frames of its own.
+ * BTFileScan does that, so new_scan returns a BTreeCursorScan with this store, which reads the leaves through
+ * the store as openCursor, new_scan_reverse, stream and parallelScan do.
+ */
+final class ChannelPageStore implements BTreePageStore, GlobalConst {
+
+	private final static HashMap<String, ChannelPageStore> STORES = new HashMap<String, ChannelPageStore>();
+
+	/**
+	 * The store of the database file fileName, opened with frames frames and the scan resistant policy or plain
+	 * clock replacement when it is first asked for.
+	 */
+	static synchronized ChannelPageStore forDatabase(String fileName, int frames, boolean scanResistant)
+			throws IOException {
+		ChannelPageStore store = STORES.get(fileName);
+		if (store != null && store.database != SystemDefs.JavabaseDB) {
+			// SystemDefs created or opened the database again, the frames belong to what was there before and
+			// must not be written over the new file
+			STORES.remove(fileName);
+			store.channel.close();
+			store = null;
+		}
+		if (store == null) {
+			store = new ChannelPageStore(fileName, new RandomAccessFile(fileName, "rw").getChannel(),
+					Math.max(8, frames), scanResistant);
+			STORES.put(fileName, store);
+		}
+		store.users++;
+		return store;
+	}
+
+	/**
+	 * Gives up a store forDatabase returned, which closes it when no other BTreeFile uses it anymore.
+	 */
+	static synchronized void release(ChannelPageStore store) throws IOException {
+		if (--store.users == 0 && STORES.get(store.fileName) == store)
+			closeDatabase(store.fileName);
+	}
+
+	/**
+	 * Closes the store of the database file fileName, whether BTreeFiles still use it or not.
+	 */
+	static synchronized void closeDatabase(String fileName) throws IOException {
+		ChannelPageStore store = STORES.remove(fileName);
+		if (store != null) {
+			try {
+				store.flush();
+			} finally {
+				store.channel.close();
+			}
+		}
+	}
+
+	private final String fileName;
+	// the database the store was opened for, see forDatabase
+	private final DB database;
+	// BTreeFiles using the store, changed under the lock of the class
+	private int users;
+	private final FileChannel channel;
+	private final byte[][] frames;
+	// page held by each frame, INVALID_PAGE for a free frame
+	private final int[] framePids;
+	private final int[] pinCounts;
+	// frames whose page was changed since it was read or last written
+	private final boolean[] dirty;
+	private final boolean[] referenced;
+	private final HashMap<Integer, Integer> frameOf = new HashMap<Integer, Integer>();
+	private int hand;
+
+	private final boolean scanResistant;
+	private final boolean[] probation;
+	// frames put on probation, oldest first, each with the load count of its frame at the time
+	private final ArrayDeque<Long> probationQueue = new ArrayDeque<Long>();
+	private final int[] loads;
+	private int probationCount;
+	private long reads;
+	private long writes;
+
+	private ChannelPageStore(String fileName, FileChannel channel, int count, boolean scanResistant) {
+		this.fileName = fileName;
+		database = SystemDefs.JavabaseDB;
+		this.channel = channel;
+		this.scanResistant = scanResistant;
+		frames = new byte[count][MINIBASE_PAGESIZE];
+		framePids = new int[count];
+		pinCounts = new int[count];
+		dirty = new boolean[count];
+		referenced = new boolean[count];
+		probation = new boolean[count];
+		loads = new int[count];
+		Arrays.fill(framePids, INVALID_PAGE);
+	}
+
+	public synchronized Page pinPage(PageId pageId, int hint) throws IOException {
+		Integer frame = frameOf.get(pageId.pid);
+		if (frame == null) {
+			frame = victim();
+			read(frames[frame], pageId.pid);
+			assign(frame, pageId.pid);
+			if (scanResistant
+					&& BTPageLayout.getShort(frames[frame], HFPage.TYPE) != NodeType.INDEX) {
+				probation[frame] = true;
+				probationCount++;
+				probationQueue.addLast(((long) loads[frame] << 32) | frame);
+			} else {
+				referenced[frame] = true;
+			}
+		} else if (probation[frame]) {
+			if (hint != SCAN) {
+				// pinned again by a lookup, the leaf is worth keeping
+				probation[frame] = false;
+				probationCount--;
+				referenced[frame] = true;
+			}
+		} else if (hint != SCAN || !scanResistant) {
+			referenced[frame] = true;
+		}
+		pinCounts[frame]++;
+		return new Page(frames[frame]);
+	}
+
+	public synchronized void unpinPage(PageId pageId, boolean dirty) throws IOException {
+		Integer frame = frameOf.get(pageId.pid);
+		if (frame == null || pinCounts[frame] == 0)
+			throw new IOException("page " + pageId.pid + " is not pinned");
+		if (dirty)
+			this.dirty[frame] = true;
+		pinCounts[frame]--;
+	}
+
+	public synchronized PageId newPage(Page page, int count) throws Exception {
+		int frame = victim();
+		PageId pageId = new PageId();
+		// the space map is pinned through the buffer manager, which BufferPoolPageStore and the header pages
+		// use at the same time
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseDB.allocate_page(pageId, count);
+		}
+		Arrays.fill(frames[frame], (byte) 0);
+		assign(frame, pageId.pid);
+		// the page on disk may hold what an earlier page there left behind
+		dirty[frame] = true;
+		pinCounts[frame] = 1;
+		referenced[frame] = true;
+		page.setpage(frames[frame]);
+		return pageId;
+	}
+
+	public synchronized void freePage(PageId pageId) throws Exception {
+		Integer frame = frameOf.get(pageId.pid);
+		if (frame != null) {
+			// BTreeFile unpins a page before it frees it, a pin left is someone else's
+			if (pinCounts[frame] > 0)
+				throw new IOException("page " + pageId.pid + " is still pinned");
+			// the page is gone, there is nothing to write back
+			dirty[frame] = false;
+			release(frame);
+		}
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseDB.deallocate_page(pageId);
+		}
+	}
+
+	/**
+	 * Writes the pages of the dirty frames, pinned or not, and has the file system write them.
+	 */
+	public synchronized void flush() throws IOException {
+		for (int frame = 0; frame < frames.length; frame++)
+			writeBack(frame);
+		channel.force(false);
+	}
+
+	/**
+	 * Whether the page pid has a frame, so that pinning it reads nothing.
+	 */
+	synchronized boolean isResident(int pid) {
+		return frameOf.containsKey(pid);
+	}
+
+	/**
+	 * Number of pages read from the database file so far.
+	 */
+	synchronized long diskReads() {
+		return reads;
+	}
+
+	/**
+	 * Number of pages written to the database file so far.
+	 */
+	synchronized long diskWrites() {
+		return writes;
+	}
+
+	/**
+	 * Finds an unpinned frame to reuse: the oldest frame on probation when too many are, otherwise the next
+	 * one of the clock, which gives every recently pinned frame one more round.
+	 */
+	private int victim() throws IOException {
+		if (probationCount > frames.length / 4) {
+			int frame = probationVictim();
+			if (frame >= 0)
+				return frame;
+		}
+		for (int step = 0; step < 2 * frames.length; step++) {
+			int frame = hand;
+			hand = (hand + 1) % frames.length;
+			if (pinCounts[frame] > 0)
+				continue;
+			if (referenced[frame] && framePids[frame] != INVALID_PAGE) {
+				referenced[frame] = false;
+				continue;
+			}
+			writeBack(frame);
+			release(frame);
+			return frame;
+		}
+		throw new IOException("all " + frames.length + " frames of the page store are pinned");
+	}
+
+	/**
+	 * Takes the oldest unpinned frame off probation, writes it back and frees it, or returns -1 when there is
+	 * none. Entries of frames that left probation or were loaded again since are dropped on the way.
+	 */
+	private int probationVictim() throws IOException {
+		for (int left = probationQueue.size(); left > 0; left--) {
+			long entry = probationQueue.pollFirst();
+			int frame = (int) entry;
+			if (!probation[frame] || loads[frame] != (int) (entry >>> 32))
+				continue;
+			if (pinCounts[frame] > 0) {
+				probationQueue.addLast(entry);
+				continue;
+			}
+			writeBack(frame);
+			release(frame);
+			return frame;
+		}
+		return -1;
+	}
+
+	private void assign(int frame, int pid) {
+		framePids[frame] = pid;
+		frameOf.put(pid, frame);
+		loads[frame]++;
+	}
+
+	private void release(int frame) {
+		if (framePids[frame] != INVALID_PAGE)
+			frameOf.remove(framePids[frame]);
+		framePids[frame] = INVALID_PAGE;
+		referenced[frame] = false;
+		if (probation[frame]) {
+			probation[frame] = false;
+			probationCount--;
+		}
+	}
+
+	private void writeBack(int frame) throws IOException {
+		if (dirty[frame]) {
+			write(frames[frame], framePids[frame]);
+			dirty[frame] = false;
+		}
+	}
+
+	private void read(byte[] frame, int pid) throws IOException {
+		reads++;
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		long pos = (long) pid * MINIBASE_PAGESIZE;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, pos + buffer.position());
+			if (read < 0) {
+				// past the end of the file, which was never written there
+				Arrays.fill(frame, buffer.position(), frame.length, (byte) 0);
+				break;
+			}
+		}
+	}
+
+	private void write(byte[] frame, int pid) throws IOException {
+		writes++;
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		long pos = (long) pid * MINIBASE_PAGESIZE;
+		while (buffer.hasRemaining())
+			channel.write(buffer, pos + buffer.position());
+	}
+}